@@ -0,0 +1,29 @@
+/*
+ * Copyright (c) 2018-2021 Karlatemp and contributors. All rights reserved.
+ *
+ * Use of this source code is governed by the MIT license that can be found via the following link.
+ *
+ * https://github.com/KasukuSakura/kasuku-fzos/blob/master/LICENSE
+ */
+
+package io.github.karlatemp.kasukufzos.cli;
+
+import io.github.karlatemp.kasukufzos.image.writer.KFzWriter;
+
+import java.io.File;
+
+public class Compact {
+    public static void main(String[] args) throws Exception {
+        if (args.length != 2) {
+            System.out.println("Usage:");
+            System.out.println();
+            System.out.println("java ..... [image] [output location]");
+            System.out.println();
+            System.out.println("Drops the content replaced or removed by updates of the image");
+            return;
+        }
+        File image = new File(args[0]), output = new File(args[1]);
+        KFzWriter.compact(image, output);
+        System.out.println("Compacted " + image + " from " + image.length() + " to " + output.length() + " bytes");
+    }
+}
@@ -8,39 +8,361 @@
 
 package io.github.karlatemp.kasukufzos.cli;
 
+import io.github.karlatemp.kasukufzos.image.writer.CompressionPolicy;
 import io.github.karlatemp.kasukufzos.image.writer.KFzWriter;
+import io.github.karlatemp.kasukufzos.utils.ExplodedDirectory;
+import io.github.karlatemp.kasukufzos.utils.RawZipFile;
 import io.github.karlatemp.kasukufzos.utils.TransferKit;
 
+import java.io.Closeable;
 import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.zip.ZipFile;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.Semaphore;
 
 public class Zip {
     public static void main(String[] args) throws Exception {
-        if (args.length < 2) {
-            System.out.println("Usage:");
-            System.out.println();
-            System.out.println("java ..... [output location] [library] [library] ....");
+        CompressionPolicy.Rules policy = new CompressionPolicy.Rules();
+        Map<String, CompressionPolicy.Method> moduleMethods = new LinkedHashMap<>();
+        KFzWriter.Options options = new KFzWriter.Options();
+        File output = null;
+        // Libraries and directories of classes, in argument order
+        List<File> inputs = new ArrayList<>();
+        List<String> removed = new ArrayList<>();
+        Set<File> classDirectories = new HashSet<>();
+        boolean mmap = false;
+        boolean update = false;
+        long memory = 256L << 20;
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (!arg.startsWith("--")) {
+                if (output == null) {
+                    output = new File(arg);
+                } else {
+                    inputs.add(new File(arg));
+                }
+                continue;
+            }
+            if (i + 1 == args.length) {
+                usage();
+                return;
+            }
+            String value = args[++i];
+            switch (arg) {
+                case "--level":
+                    policy.defaultMethod = method(value);
+                    break;
+                case "--small":
+                    policy.smallMethod = method(value);
+                    break;
+                case "--small-size":
+                    policy.smallSize = Integer.parseInt(value);
+                    break;
+                case "--solid-block-size":
+                    options.solidBlockSize = Integer.parseInt(value);
+                    break;
+                case "--deduplicate":
+                    options.deduplicate = Boolean.parseBoolean(value);
+                    break;
+                case "--trust-table-key":
+                    options.trustTableKey = Files.readAllBytes(new File(value).toPath());
+                    break;
+                case "--classes":
+                    // A library itself, in argument order, but never the output
+                    inputs.add(new File(value));
+                    classDirectories.add(new File(value));
+                    break;
+                case "--mmap":
+                    mmap = Boolean.parseBoolean(value);
+                    break;
+                case "--threads":
+                    options.threads = Integer.parseInt(value);
+                    break;
+                case "--memory":
+                    memory = Long.parseLong(value) << 20;
+                    break;
+                case "--update":
+                    update = Boolean.parseBoolean(value);
+                    break;
+                case "--remove":
+                    removed.add(value);
+                    break;
+                case "--dictionary-size":
+                    options.dictionarySize = Integer.parseInt(value);
+                    break;
+                case "--min-savings":
+                    policy.minSavings = Integer.parseInt(value);
+                    break;
+                case "--ext": {
+                    int spl = value.indexOf('=');
+                    if (spl == -1) {
+                        usage();
+                        return;
+                    }
+                    policy.extensions.put(value.substring(0, spl).toLowerCase(Locale.ROOT), method(value.substring(spl + 1)));
+                    break;
+                }
+                case "--module": {
+                    int spl = value.lastIndexOf('=');
+                    if (spl == -1) {
+                        usage();
+                        return;
+                    }
+                    moduleMethods.put(value.substring(0, spl), method(value.substring(spl + 1)));
+                    break;
+                }
+                default:
+                    usage();
+                    return;
+            }
+        }
+        if (output == null || (!update && (inputs.isEmpty() || !removed.isEmpty()))) {
+            usage();
+            return;
+        }
+        for (Map.Entry<String, CompressionPolicy.Method> module : moduleMethods.entrySet()) {
+            CompressionPolicy.Rules override = new CompressionPolicy.Rules();
+            override.defaultMethod = module.getValue();
+            override.extensions.putAll(policy.extensions);
+            override.minSavings = policy.minSavings;
+            override.smallSize = policy.smallSize;
+            override.smallMethod = policy.smallMethod;
+            policy.modules.put(module.getKey(), override);
+        }
+
+        options.compressionPolicy = policy;
+        options.threads = Math.max(options.threads, 1);
+        inputs = ForkJoinPool.commonPool().invoke(new Walk(inputs, classDirectories));
+
+        KFzWriter writer = update ? KFzWriter.update(output, options) : KFzWriter.of(output, options);
+        for (String module : removed) {
+            if (!writer.removeModule(module)) System.out.println("No module " + module + " in " + output);
+        }
+        boolean completed = false;
+        try {
+            emit(inputs, classDirectories, mmap, writer, options.threads, memory);
+            writer.close();
+            completed = true;
+        } finally {
+            // Restores the image being updated
+            if (!completed) writer.abort();
+        }
+        System.out.println("Deduplicated " + writer.deduplicatedResources() + " resources, "
+                + writer.deduplicatedBytes() + " bytes saved");
+    }
+
+    private static CompressionPolicy.Method method(String value) {
+        if (value.equals("store")) return CompressionPolicy.Method.STORE;
+        if (value.equals("lz4")) return CompressionPolicy.Method.lz4();
+        if (value.equals("dict")) return CompressionPolicy.Method.dictionary(-1);
+        if (value.equals("solid")) return CompressionPolicy.Method.solid(-1);
+        return CompressionPolicy.Method.deflate(Integer.parseInt(value));
+    }
+
+    private static void usage() {
+        System.out.println("Usage:");
+        System.out.println();
+        System.out.println("java ..... [options] [output location] [library] [library] ....");
+        System.out.println();
+        System.out.println("Libraries are jars, or directories of them");
+        System.out.println();
+        System.out.println("Methods: 0-9 (deflate level, -1 for the zlib default), lz4, store, dict, solid");
+        System.out.println();
+        System.out.println("Options:");
+        System.out.println("  --level <method>                   Default method");
+        System.out.println("  --ext <ext>=<method>               Method for files with the extension, may be repeated");
+        System.out.println("  --small <method>                   Method for small files, default dict");
+        System.out.println("  --small-size <bytes>               Files smaller than this are small, default 4096");
+        System.out.println("  --min-savings <percent>            Store a file if compression saves less, default 5");
+        System.out.println("  --dictionary-size <bytes>          Dictionary trained per library for small files, 0 to disable");
+        System.out.println("  --solid-block-size <bytes>         Uncompressed size of solid blocks, 0 to disable");
+        System.out.println("  --deduplicate <true|false>         Store identical files once, default true");
+        System.out.println("  --trust-table-key <file>           Verify signed libraries and record their trust table, authenticated with the key");
+        System.out.println("  --module <name>=<method>           Default method of a library, may be repeated");
+        System.out.println("  --classes <directory>              A directory of classes as a library, in argument order");
+        System.out.println("  --mmap <true|false>                Map the files of --classes directories to read them, default false");
+        System.out.println("  --threads <count>                  Threads reading and compressing libraries, default all processors");
+        System.out.println("  --memory <MiB>                     Memory for libraries read ahead, default 256");
+        System.out.println("  --update <true|false>              Replace or add the libraries in an existing image, default false");
+        System.out.println("  --remove <name>                    Remove a library when updating, may be repeated");
+    }
+
+    /**
+     * The libraries of the inputs in order, listing the directories in parallel
+     */
+    static class Walk extends RecursiveTask<List<File>> {
+        private static final long serialVersionUID = 1L;
+
+        private final List<File> files;
+        private final Set<File> classDirectories;
+
+        Walk(List<File> files, Set<File> classDirectories) {
+            this.files = files;
+            this.classDirectories = classDirectories;
+        }
+
+        @Override
+        protected List<File> compute() {
+            List<Object> results = new ArrayList<>(files.size());
+            for (File file : files) {
+                if (file.isFile() || classDirectories.contains(file)) {
+                    results.add(file);
+                } else if (file.isDirectory()) {
+                    File[] children = file.listFiles();
+                    if (children == null) continue;
+                    // Keep the module order, and so the shadowing order, reproducible
+                    Arrays.sort(children);
+                    results.add(new Walk(Arrays.asList(children), classDirectories).fork());
+                }
+            }
+            List<File> libraries = new ArrayList<>();
+            for (Object result : results) {
+                if (result instanceof File) {
+                    libraries.add((File) result);
+                } else {
+                    libraries.addAll(((Walk) result).join());
+                }
+            }
+            return libraries;
         }
-        File output = new File(args[0]);
-        KFzWriter writer = KFzWriter.of(output);
-        for (String path : Arrays.asList(args).subList(1, args.length)) {
-            emit(new File(path), writer);
+    }
+
+    /**
+     * A library opened and read into memory ahead of being written, or a directory of classes listed
+     */
+    static class Input {
+        final File file;
+        final int permits;
+        /**
+         * {@link RawZipFile} or {@link ExplodedDirectory}
+         */
+        Future<Closeable> source;
+        long readNanos;
+
+        Input(File file, int permits) {
+            this.file = file;
+            this.permits = permits;
         }
-        writer.close();
     }
 
-    private static void emit(File file, KFzWriter writer) throws Exception {
-        if (file.isFile()) {
-            System.out.println("Emitting " + file);
-            try (ZipFile zf = new ZipFile(file)) {
-                TransferKit.transfer(zf, file.getName(), writer);
+    /**
+     * Write the libraries as modules in order. The next ones are opened and read into memory by {@code threads}
+     * threads meanwhile, as long as they fit in {@code memory} with the ones not written yet.
+     * Directories of classes are only listed ahead, their files are read by the compressor threads of the writer.
+     */
+    private static void emit(List<File> files, Set<File> classDirectories, boolean mmap,
+                             KFzWriter writer, int threads, long memory) throws Exception {
+        ExecutorService readers = Executors.newFixedThreadPool(threads, task -> {
+            Thread thread = new Thread(task, "Zip Reader");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // In KiB
+        int budget = (int) Math.min(Math.max(memory >> 10, 1), Integer.MAX_VALUE);
+        Semaphore available = new Semaphore(budget);
+        ArrayDeque<Input> ahead = new ArrayDeque<>();
+        long start = System.nanoTime(), totalBytes = 0;
+        int next = 0;
+        try {
+            for (int i = 0; i < files.size(); i++) {
+                while (next < files.size() && ahead.size() < 2 * threads) {
+                    File file = files.get(next);
+                    boolean classes = classDirectories.contains(file);
+                    int permits = classes ? 1 : (int) Math.min(Math.max(file.length() >> 10, 1), budget);
+                    // Nothing is held when the next library to write isn't read yet
+                    if (ahead.isEmpty()) {
+                        available.acquire(permits);
+                    } else if (!available.tryAcquire(permits)) {
+                        break;
+                    }
+                    Input input = new Input(file, permits);
+                    input.source = readers.submit(() -> {
+                        long readStart = System.nanoTime();
+                        if (classes) {
+                            ExplodedDirectory directory = new ExplodedDirectory(file, mmap);
+                            input.readNanos = System.nanoTime() - readStart;
+                            return directory;
+                        }
+                        RawZipFile zip = new RawZipFile(file);
+                        try {
+                            zip.preload();
+                        } catch (Throwable throwable) {
+                            zip.close();
+                            throw throwable;
+                        }
+                        input.readNanos = System.nanoTime() - readStart;
+                        return zip;
+                    });
+                    ahead.add(input);
+                    next++;
+                }
+
+                Input input = ahead.poll();
+                long writeStart = System.nanoTime();
+                int entries;
+                long size;
+                try (Closeable source = get(input.source)) {
+                    if (source instanceof ExplodedDirectory) {
+                        ExplodedDirectory directory = (ExplodedDirectory) source;
+                        entries = directory.entries().size();
+                        size = directory.length();
+                        TransferKit.transfer(directory, input.file.getName(), writer);
+                    } else {
+                        RawZipFile zip = (RawZipFile) source;
+                        entries = zip.entries().size();
+                        size = zip.length();
+                        TransferKit.transfer(zip, input.file.getName(), writer);
+                    }
+                } finally {
+                    available.release(input.permits);
+                }
+                totalBytes += size;
+                long now = System.nanoTime();
+                System.out.printf("[%d/%d] Emitted %s: %d entries, %.1f KiB, read %.1f ms, written in %.1f ms (%.1f MiB/s)%n",
+                        i + 1, files.size(), input.file, entries, size / 1024.0,
+                        input.readNanos / 1e6, (now - writeStart) / 1e6, mibPerSecond(size, now - writeStart));
             }
-            System.out.println("Emitted  " + file);
-        } else if (file.isDirectory()) {
-            File[] files = file.listFiles();
-            if (files == null) return;
-            for (File f : files) emit(f, writer);
+        } finally {
+            // Queued reads still run, so that every library read ahead is closed
+            readers.shutdown();
+            for (Input input : ahead) {
+                try {
+                    get(input.source).close();
+                } catch (Exception ignored) {
+                }
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        System.out.printf("Emitted %d libraries, %.1f MiB in %.1f ms (%.1f MiB/s)%n",
+                files.size(), totalBytes / 1048576.0, elapsed / 1e6, mibPerSecond(totalBytes, elapsed));
+    }
+
+    private static double mibPerSecond(long bytes, long nanos) {
+        return nanos == 0 ? 0 : bytes / 1048576.0 / (nanos / 1e9);
+    }
+
+    private static <T> T get(Future<T> future) throws Exception {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) throw (Exception) cause;
+            if (cause instanceof Error) throw (Error) cause;
+            throw e;
         }
     }
 }
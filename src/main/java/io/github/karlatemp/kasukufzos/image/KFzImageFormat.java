@@ -0,0 +1,57 @@
+/*
+ * Copyright (c) 2018-2021 Karlatemp and contributors. All rights reserved.
+ *
+ * Use of this source code is governed by the MIT license that can be found via the following link.
+ *
+ * https://github.com/KasukuSakura/kasuku-fzos/blob/master/LICENSE
+ */
+
+package io.github.karlatemp.kasukufzos.image;
+
+/**
+ * Layout constants of the image file.
+ *
+ * @see <a href="https://github.com/KasukuSakura/kasuku-fzos/blob/master/misc/image-struct.txt">image-struct.txt</a>
+ */
+public class KFzImageFormat {
+    /**
+     * {@code "KFZI"}, the first and the last four bytes of a v2 image.
+     * A v1 image starts with its module count instead.
+     */
+    public static final int MAGIC = 0x4B465A49;
+
+    public static final int VERSION_2 = 2;
+    public static final int CURRENT_VERSION = VERSION_2;
+
+    /**
+     * Header flag: every ResourceInfoV2 ends with the uncompressed size and the CRC-32C of the resource
+     */
+    public static final int FLAG_RESOURCE_CHECKSUMS = 0x0001;
+
+    public static final int HEADER_SIZE = 8;
+    public static final int FOOTER_SIZE = 16;
+
+    public static final int
+            SECTION_MODULE_TABLE = 1,
+            SECTION_RESOURCE_INDEX = 2,
+            SECTION_PATH_INDEX = 3,
+            SECTION_PACKAGE_TABLE = 4,
+            SECTION_DICTIONARY = 5,
+            SECTION_BLOCK_TABLE = 6,
+            SECTION_TRUST_TABLE = 7,
+            VOID = 0;
+
+    public static final String MANIFEST = "META-INF/MANIFEST.MF";
+
+    /**
+     * The package of a class resource in internal form, empty for the default package.
+     *
+     * @return {@code null} if {@code path} isn't a class that can be defined from the module root
+     */
+    public static String packageOf(String path) {
+        if (!path.endsWith(".class") || path.startsWith("META-INF/")) return null;
+        int spl = path.lastIndexOf('/');
+        if (spl == -1) return "";
+        return path.substring(0, spl);
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright (c) 2018-2021 Karlatemp and contributors. All rights reserved.
+ *
+ * Use of this source code is governed by the MIT license that can be found via the following link.
+ *
+ * https://github.com/KasukuSakura/kasuku-fzos/blob/master/LICENSE
+ */
+
+package io.github.karlatemp.kasukufzos.image;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.jar.Attributes;
+import java.util.jar.Manifest;
+
+/**
+ * The manifest attributes used to define a package, resolved the same way as {@link java.net.URLClassLoader}:
+ * the section of the package first, then the main attributes.
+ */
+public class KFzPackageAttributes {
+    private static final Attributes.Name[] NAMES = {
+            Attributes.Name.SPECIFICATION_TITLE,
+            Attributes.Name.SPECIFICATION_VERSION,
+            Attributes.Name.SPECIFICATION_VENDOR,
+            Attributes.Name.IMPLEMENTATION_TITLE,
+            Attributes.Name.IMPLEMENTATION_VERSION,
+            Attributes.Name.IMPLEMENTATION_VENDOR,
+    };
+
+    private final String[] values;
+
+    private KFzPackageAttributes(String[] values) {
+        this.values = values;
+    }
+
+    /**
+     * @param packagePath the package in internal form, like {@code java/lang}
+     */
+    public static KFzPackageAttributes resolve(Manifest manifest, String packagePath) {
+        Attributes section = manifest.getAttributes(packagePath + '/');
+        Attributes main = manifest.getMainAttributes();
+        String[] values = new String[NAMES.length];
+        for (int i = 0; i < NAMES.length; i++) {
+            String value = section == null ? null : section.getValue(NAMES[i]);
+            if (value == null) value = main.getValue(NAMES[i]);
+            values[i] = value;
+        }
+        return new KFzPackageAttributes(values);
+    }
+
+    public static KFzPackageAttributes read(DataInput input) throws IOException {
+        String[] values = new String[NAMES.length];
+        for (int i = 0; i < NAMES.length; i++) {
+            if (input.readBoolean()) values[i] = input.readUTF();
+        }
+        return new KFzPackageAttributes(values);
+    }
+
+    public void write(DataOutput output) throws IOException {
+        for (String value : values) {
+            output.writeBoolean(value != null);
+            if (value != null) output.writeUTF(value);
+        }
+    }
+
+    public String specTitle() {
+        return values[0];
+    }
+
+    public String specVersion() {
+        return values[1];
+    }
+
+    public String specVendor() {
+        return values[2];
+    }
+
+    public String implTitle() {
+        return values[3];
+    }
+
+    public String implVersion() {
+        return values[4];
+    }
+
+    public String implVendor() {
+        return values[5];
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof KFzPackageAttributes)) return false;
+        return Arrays.equals(values, ((KFzPackageAttributes) o).values);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(values);
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright (c) 2018-2021 Karlatemp and contributors. All rights reserved.
+ *
+ * Use of this source code is governed by the MIT license that can be found via the following link.
+ *
+ * https://github.com/KasukuSakura/kasuku-fzos/blob/master/LICENSE
+ */
+
+package io.github.karlatemp.kasukufzos.image.reader;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads the image through one shared {@link FileChannel}.
+ * <p>
+ * Every stream keeps its own position and uses {@link FileChannel#read(ByteBuffer, long)},
+ * so concurrent readers never contend on a file pointer and never open another descriptor.
+ */
+class KFzChannelAccess extends KFzImageAccess {
+    private final File file;
+    private final long size;
+    private volatile FileChannel channel;
+    private volatile boolean closed;
+
+    KFzChannelAccess(File file) throws IOException {
+        this.file = file;
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        this.size = channel.size();
+    }
+
+    /**
+     * Fill {@code dst} from {@code position} of the image, or until the end of the image.
+     */
+    void readAt(ByteBuffer dst, long position) throws IOException {
+        while (dst.hasRemaining()) {
+            FileChannel ch = channel;
+            int len;
+            try {
+                len = ch.read(dst, position);
+            } catch (ClosedByInterruptException interrupted) {
+                // An interrupted reader closes the channel for everyone, give others a new one
+                reopen(ch);
+                throw interrupted;
+            } catch (ClosedChannelException closedChannel) {
+                if (closed) throw closedChannel;
+                reopen(ch);
+                continue;
+            }
+            if (len == -1) return;
+            position += len;
+        }
+    }
+
+    @Override
+    long size() {
+        return size;
+    }
+
+    private synchronized void reopen(FileChannel broken) throws IOException {
+        if (closed || channel != broken) return;
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+    }
+
+    @Override
+    InputStream open(long pointer, long size) throws IOException {
+        if (closed) throw new ClosedChannelException();
+        return new ChannelInputStream(pointer, size);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        closed = true;
+        channel.close();
+    }
+
+    class ChannelInputStream extends InputStream {
+        private final ByteBuffer buffer;
+        private long position;
+        private long remaining;
+
+        ChannelInputStream(long position, long size) {
+            this.position = position;
+            this.remaining = size;
+            this.buffer = ByteBuffer.allocate((int) Math.min(size, 8192));
+            this.buffer.limit(0);
+        }
+
+        private boolean fill() throws IOException {
+            if (remaining == 0) return false;
+            buffer.clear();
+            if (buffer.capacity() > remaining) buffer.limit((int) remaining);
+            readAt(buffer, position);
+            buffer.flip();
+            int len = buffer.remaining();
+            if (len == 0) throw new IOException("Unexpected end of image at " + position);
+            position += len;
+            remaining -= len;
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!buffer.hasRemaining() && !fill()) return -1;
+            return buffer.get() & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            if (!buffer.hasRemaining()) {
+                if (remaining == 0) return -1;
+                if (len >= buffer.capacity()) {
+                    // Large reads go straight into the caller's array
+                    ByteBuffer dst = ByteBuffer.wrap(b, off, (int) Math.min(len, remaining));
+                    readAt(dst, position);
+                    int rd = dst.position() - off;
+                    if (rd == 0) throw new IOException("Unexpected end of image at " + position);
+                    position += rd;
+                    remaining -= rd;
+                    return rd;
+                }
+                fill();
+            }
+            int rd = Math.min(len, buffer.remaining());
+            buffer.get(b, off, rd);
+            return rd;
+        }
+
+        @Override
+        public long skip(long n) {
+            if (n <= 0) return 0;
+            long skipped = Math.min(n, buffer.remaining() + remaining);
+            int inBuffer = (int) Math.min(skipped, buffer.remaining());
+            buffer.position(buffer.position() + inBuffer);
+            position += skipped - inBuffer;
+            remaining -= skipped - inBuffer;
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return (int) Math.min(Integer.MAX_VALUE, buffer.remaining() + remaining);
+        }
+    }
+}
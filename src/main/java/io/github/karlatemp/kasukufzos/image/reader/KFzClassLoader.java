@@ -9,8 +9,8 @@
 package io.github.karlatemp.kasukufzos.image.reader;
 
 import io.github.karlatemp.kasukufzos.utils.IteratorE;
-import io.github.karlatemp.kasukufzos.utils.TransferKit;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.MalformedURLException;
@@ -22,6 +22,7 @@ import java.security.cert.Certificate;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Enumeration;
+import java.util.concurrent.Executor;
 
 public class KFzClassLoader extends SecureClassLoader {
     final KFzClassLoaderData image;
@@ -73,11 +74,46 @@ public class KFzClassLoader extends SecureClassLoader {
         public SignAction signAction = SignAction.SKIP_SIGN;
         public Collection<String> publiclyModules;
         public Certificate publiclyCertificate = Assets.EXPORTED_CLASSES;
+        /**
+         * Verifies the signed modules, and the manifest digests of their resources in batches.
+         * The constructor returns once all is verified. {@code null} for the common {@link java.util.concurrent.ForkJoinPool}.
+         */
+        public Executor verifyExecutor;
+        /**
+         * File to save the CodeSources resolved by verifying the image to, and to take them from instead of
+         * verifying the same image file again with the same {@link #signAction}, {@link #publiclyCertificate}
+         * and {@link #publiclyModules}. The image is recognized by the SHA-256 of its whole content.
+         * Used with {@link #verificationCacheKey}, not with {@link SignAction#VERIFY_ON_LOAD} nor {@link SignAction#TRUST_TABLE}.
+         */
+        public File verificationCache;
+        /**
+         * Non-empty HMAC-SHA256 key authenticating the {@link #verificationCache}, a cache it doesn't authenticate is ignored.
+         * Keep it where the cache file can't be written from, or a forged cache could be authenticated.
+         */
+        public byte[] verificationCacheKey;
+        /**
+         * HMAC-SHA256 key the trust table of the image was built with, see {@link SignAction#TRUST_TABLE}.
+         * Keep it where the image can't be written from, or a forged table could be authenticated.
+         */
+        public byte[] trustTableKey;
 
         public enum SignAction {
             SKIP_SIGN,
             CONTINUE_WHEN_ERROR,
-            THROW_ON_FAILURE;
+            THROW_ON_FAILURE,
+            /**
+             * Verify the signatures and the manifests as {@link #THROW_ON_FAILURE} when the class loader is created,
+             * but the digest of a resource only when it's first read. A resource not matching its digest fails with
+             * a {@link SecurityException}, or a {@link ClassNotFoundException} caused by one for a class.
+             */
+            VERIFY_ON_LOAD,
+            /**
+             * Assign the CodeSources from the {@link KFzTrustTable} recorded when the image was built once it authenticates
+             * with the {@link #trustTableKey}, without verifying the signatures nor reading the manifests.
+             * The digest of a resource is checked against the table when it's first read, as with {@link #VERIFY_ON_LOAD}.
+             * Images without a trust table, or without a key to authenticate it, are verified as {@link #THROW_ON_FAILURE}.
+             */
+            TRUST_TABLE;
         }
     }
 
@@ -96,12 +132,17 @@ public class KFzClassLoader extends SecureClassLoader {
         super.definePackage(name, specTitle, specVersion, specVendor, implTitle, implVersion, implVendor, sealBase);
     }
 
+    @SuppressWarnings("deprecation")
+    Package pkg(String pkg) {
+        return getPackage(pkg);
+    }
+
     @Override
     protected URL findResource(String name) {
-        KFzReaderImpl.Node node = image.findResource(name);
-        if (node != null) {
+        KFzReaderImpl.Entry entry = image.findResource(name);
+        if (entry != null) {
             try {
-                return new URL(image.rootURL, "/" + node.parent.name + '/' + node.name);
+                return new URL(image.rootURL, "/" + entry.module.name + '/' + name);
             } catch (MalformedURLException e) {
                 throw new RuntimeException(e);
             }
@@ -113,12 +154,9 @@ public class KFzClassLoader extends SecureClassLoader {
     protected Enumeration<URL> findResources(String name) throws IOException {
         ArrayList<URL> urlC = new ArrayList<>();
         try {
-            for (KFzReaderImpl.Node module : image.reader.root.children.values()) {
-                KFzReaderImpl.Node res = module.children.get(name);
-                if (res != null) {
-                    URL u = new URL(image.rootURL, "/" + module.name + '/' + res.name);
-                    urlC.add(u);
-                }
+            for (KFzReaderImpl.Entry res : image.reader.findEntries(name)) {
+                URL u = new URL(image.rootURL, "/" + res.module.name + '/' + name);
+                urlC.add(u);
             }
         } catch (MalformedURLException e) {
             throw new RuntimeException(e);
@@ -126,15 +164,12 @@ public class KFzClassLoader extends SecureClassLoader {
         return new IteratorE<>(urlC.iterator());
     }
 
-    @SuppressWarnings("deprecation")
-    Package pkg(String pkg) {
-        return getPackage(pkg);
-    }
-
     @Override
     public InputStream getResourceAsStream(String name) {
         try {
             return image.resource(image.findResource(name));
+        } catch (SecurityException e) {
+            throw e;
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
@@ -142,11 +177,10 @@ public class KFzClassLoader extends SecureClassLoader {
 
     @Override
     protected Class<?> findClass(String name) throws ClassNotFoundException {
-        KFzReaderImpl.Node node = image.findResAndPreDefinePackage(name.replace('.', '/') + ".class");
-        if (node != null) {
-            KFzClassLoaderData.KClData data = node.data;
+        KFzReaderImpl.Entry entry = image.findClassAndDefinePackage(name);
+        if (entry != null) {
             try {
-                return defineClass(name, TransferKit.read(image.resource(node)), data == null ? node.parent.data.cs : data.cs);
+                return defineClass(name, image.content(entry), image.codeSource(entry));
             } catch (Exception e) {
                 throw new ClassNotFoundException(name, e);
             }
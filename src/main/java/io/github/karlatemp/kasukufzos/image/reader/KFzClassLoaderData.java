@@ -8,6 +8,8 @@
 
 package io.github.karlatemp.kasukufzos.image.reader;
 
+import io.github.karlatemp.kasukufzos.image.KFzImageFormat;
+import io.github.karlatemp.kasukufzos.image.KFzPackageAttributes;
 import io.github.karlatemp.kasukufzos.utils.AlgorithmId;
 import io.github.karlatemp.kasukufzos.utils.JdkJarSignReader;
 import io.github.karlatemp.kasukufzos.utils.ManifestDigester;
@@ -15,12 +17,19 @@ import io.github.karlatemp.kasukufzos.utils.TransferKit;
 
 import java.io.*;
 import java.net.URL;
+import java.nio.ByteBuffer;
 import java.security.*;
 import java.security.cert.CertPath;
 import java.security.cert.Certificate;
 import java.security.cert.CertificateFactory;
 import java.security.cert.X509Certificate;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import java.util.jar.Attributes;
 import java.util.jar.Manifest;
 
@@ -31,329 +40,723 @@ class KFzClassLoaderData {
     static class KClData {
         CodeSource cs;
         URL sealBase;
-        Manifest manifest;
-        List<Certificate> certificates;
+        /**
+         * CodeSource of each signed resource by id, {@code null} if none of the module is signed
+         */
+        CodeSource[] entryCs;
+        /**
+         * Manifest digests of each resource by id not verified yet, see {@link KFzClassLoader.Options.SignAction#VERIFY_ON_LOAD}.
+         * {@code null} if the module has none.
+         */
+        AtomicReferenceArray<Attributes> digests;
+        /**
+         * The verified .SF files of the module, {@code null} if signatures are skipped or come from the verification cache
+         */
+        SignInf[] signers;
     }
 
     final KFzReaderImpl reader;
+    /**
+     * Packages whose first class has been found, defined at most once
+     */
+    private final ConcurrentHashMap<String, Boolean> definedPackages = new ConcurrentHashMap<>();
+    private final MessageDigests mds = new MessageDigests();
 
     public KFzClassLoaderData(KFzReader reader, KFzClassLoader kFzClassLoader) throws Exception {
         this.reader = (KFzReaderImpl) reader;
         this.cl = kFzClassLoader;
-        rootURL = new URL("kfz", "", 0, "/", new KFzUrlStreamHandler(reader));
+        rootURL = new URL("kfz", "", 0, "/", new KFzUrlStreamHandler(reader, this));
         initModules();
     }
 
-    private static MessageDigest getMd(Map<String, MessageDigest> m, String t) throws Exception {
-        MessageDigest digest = m.get(t);
-        if (digest == null) {
-            m.put(t, digest = MessageDigest.getInstance(t));
+    /**
+     * MessageDigests by algorithm, shared by the verification threads
+     */
+    static final class MessageDigests {
+        private final ConcurrentHashMap<String, ConcurrentLinkedQueue<MessageDigest>> idle = new ConcurrentHashMap<>();
+
+        MessageDigest acquire(String algorithm) throws NoSuchAlgorithmException {
+            MessageDigest digest = idle.computeIfAbsent(algorithm, k -> new ConcurrentLinkedQueue<>()).poll();
+            if (digest != null) return digest;
+            return MessageDigest.getInstance(algorithm);
+        }
+
+        void release(String algorithm, MessageDigest digest) {
+            digest.reset();
+            idle.get(algorithm).offer(digest);
+        }
+
+        byte[] digest(String algorithm, byte[] data) throws NoSuchAlgorithmException {
+            MessageDigest digest = acquire(algorithm);
+            try {
+                return digest.digest(data);
+            } finally {
+                release(algorithm, digest);
+            }
         }
-        return digest;
     }
 
-    @SuppressWarnings("DuplicatedCode")
+    /**
+     * The {@code *-Digest} attributes of a manifest section, updated together chunk by chunk
+     * so the content is read once for all of them
+     */
+    final class ManifestDigests implements AutoCloseable {
+        private final List<String> types = new ArrayList<>(2);
+        private final List<String> values = new ArrayList<>(2);
+        private final List<MessageDigest> digests = new ArrayList<>(2);
+
+        ManifestDigests(Attributes attributes) throws NoSuchAlgorithmException {
+            for (Map.Entry<Object, Object> attribute : attributes.entrySet()) {
+                String type = attribute.getKey().toString();
+                if (!type.endsWith("-Digest")) continue;
+                digests.add(mds.acquire(type.substring(0, type.length() - 7)));
+                types.add(type);
+                values.add(attribute.getValue().toString());
+            }
+        }
+
+        /**
+         * Update all digests with the remaining bytes of {@code content}, which is left at its limit
+         */
+        void update(ByteBuffer content) {
+            int end = content.limit();
+            for (int position = content.position(); position < end; position += DIGEST_BUFFER_SIZE) {
+                int limit = Math.min(position + DIGEST_BUFFER_SIZE, end);
+                for (MessageDigest digest : digests) {
+                    content.limit(limit);
+                    content.position(position);
+                    digest.update(content);
+                }
+            }
+            content.limit(end);
+            content.position(end);
+        }
+
+        /**
+         * The first attribute the content doesn't match, {@code null} if all match
+         */
+        String mismatch() {
+            for (int i = 0; i < digests.size(); i++) {
+                if (!MessageDigest.isEqual(digests.get(i).digest(), Base64.getMimeDecoder().decode(values.get(i)))) {
+                    return types.get(i);
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public void close() {
+            for (int i = 0; i < digests.size(); i++) {
+                String type = types.get(i);
+                mds.release(type.substring(0, type.length() - 7), digests.get(i));
+            }
+        }
+    }
+
+    private static final List<String> SIGN_TYPES = Arrays.asList("RSA", "DSA", "DF");
+    /**
+     * Resources whose manifest digests are checked by one task
+     */
+    private static final int DIGEST_BATCH = 64;
+    /**
+     * Size of the buffer resources are read through to digest them,
+     * and of the chunks all the digests of a resource are updated with in turn
+     */
+    private static final int DIGEST_BUFFER_SIZE = 8192;
+
+    static class SignInf {
+        X509Certificate c;
+        KFzReaderImpl.Entry sf;
+        /**
+         * The signature block of {@link #sf}
+         */
+        KFzReaderImpl.Entry block;
+        String des, alg;
+    }
+
+    /**
+     * Verification of a module, run in the steps of {@link #initModules()}
+     */
+    static class ModuleVerification {
+        final KFzReaderImpl.Module module;
+        final KClData data = new KClData();
+        final List<SignInf> signInfs = new ArrayList<>();
+        byte[] manifestRaw;
+        Manifest manifest;
+        /**
+         * Resources listed with digests in the manifest, in manifest order
+         */
+        final List<KFzReaderImpl.Entry> digested = new ArrayList<>();
+        final List<Attributes> digests = new ArrayList<>();
+        /**
+         * The first failure of each digest batch
+         */
+        Throwable[] batchFailures;
+        /**
+         * Certificates of each resource by id
+         */
+        List<Certificate>[] certificates;
+        /**
+         * Failure of the signatures and the manifest, or of assigning the certificates
+         */
+        Throwable failure, certificatesFailure;
+
+        ModuleVerification(KFzReaderImpl.Module module) {
+            this.module = module;
+        }
+    }
+
+    /**
+     * Verify the modules on the {@link KFzClassLoader.Options#verifyExecutor}: the signatures of each module,
+     * then the manifest digests of the resources in batches, then the certificates of each module.
+     * Everything is verified before returning, then the first failure met in module order is thrown,
+     * the same failure verifying one module after another would throw.
+     * With {@link KFzClassLoader.Options.SignAction#TRUST_TABLE}, the CodeSources are taken from the trust table
+     * of the image instead, and the resources are checked when first read.
+     * All is skipped if the {@link KFzClassLoader.Options#verificationCache} matches the image.
+     */
     private void initModules() throws Exception {
-        List<String> SIGN_TYPES = Arrays.asList("RSA", "DSA", "DF");
-        CertificateFactory factory;
-        boolean throwOnVerifyFailed = cl.options.signAction == KFzClassLoader.Options.SignAction.THROW_ON_FAILURE;
+        KFzClassLoader.Options.SignAction signAction = cl.options.signAction;
+        boolean verifyOnLoad = signAction == KFzClassLoader.Options.SignAction.VERIFY_ON_LOAD;
+        boolean throwOnVerifyFailed = verifyOnLoad || signAction == KFzClassLoader.Options.SignAction.THROW_ON_FAILURE
+                || signAction == KFzClassLoader.Options.SignAction.TRUST_TABLE;
+        boolean factoryAvailable;
         try {
-            factory = CertificateFactory.getInstance("X509");
+            CertificateFactory.getInstance("X509");
+            factoryAvailable = true;
         } catch (Exception exception) {
             if (throwOnVerifyFailed)
                 throw new RuntimeException(exception);
-            factory = null;
-        }
-        class SignInf {
-            X509Certificate c;
-            KFzReaderImpl.Node sf;
-            String des, alg;
+            factoryAvailable = false;
         }
-        Map<String, MessageDigest> mds = new HashMap<>();
-        for (KFzReaderImpl.Node module : reader.root.children.values()) {
+        Executor executor = cl.options.verifyExecutor == null ? ForkJoinPool.commonPool() : cl.options.verifyExecutor;
+
+        List<ModuleVerification> verifications = new ArrayList<>();
+        for (KFzReaderImpl.Module module : reader.modules) {
             if (module.data != null) continue;
-            KClData data = new KClData();
+            ModuleVerification verification = new ModuleVerification(module);
+            KClData data = verification.data;
+            data.sealBase = new URL(rootURL, "/" + module.name + "/");
+            data.cs = new CodeSource(data.sealBase, (CodeSigner[]) null);
             module.data = data;
+            verifications.add(verification);
+        }
 
-            {
-                data.sealBase = new URL(rootURL, "/" + module.name + "/");
-                data.cs = new CodeSource(data.sealBase, (CodeSigner[]) null);
-                List<SignInf> signInfs = new ArrayList<>();
-                if (cl.options.signAction != KFzClassLoader.Options.SignAction.SKIP_SIGN) {
-                    for (KFzReaderImpl.Node entry : module.children.values()) {
-                        if (entry.name.startsWith("META-INF/") && entry.name.endsWith(".SF")) {
-                            String base = entry.name.substring(0, entry.name.length() - 2);
-                            // .RSA, .DSA, .DF
-                            KFzReaderImpl.Node sign = null;
-                            for (String type : SIGN_TYPES) {
-                                KFzReaderImpl.Node sig = module.children.get(base + type);
-                                if (sig != null) {
-                                    sign = sig;
-                                    break;
-                                }
-                            }
-                            if (sign == null) {
-                                if (throwOnVerifyFailed) {
-                                    throw new IllegalStateException(entry.name + " missing a signature file");
-                                }
-                                continue;
-                            }
-                            try {
-                                byte[] signRaw = TransferKit.readAndClose(reader.resource(sign));
-                                //noinspection ConstantConditions
-                                CertPath pkcs7 = factory.generateCertPath(new ByteArrayInputStream(signRaw), "PKCS7");
-                                // System.out.println(pkcs7);
-
-                                X509Certificate certificate = (X509Certificate) pkcs7.getCertificates().get(pkcs7.getCertificates().size() - 1);
-                                // System.out.println(certificate);
-                                JdkJarSignReader.Response RSAsign = new JdkJarSignReader.Response();
-
-                                JdkJarSignReader.findSignature(signRaw, RSAsign);
-                                SignInf inf = new SignInf();
-                                inf.des = AlgorithmId.find(RSAsign.digestAlgorithmId.toString()).replace("-", "");
-                                inf.alg = AlgorithmId.find(RSAsign.algorithmId.toString());
-                                String metx = inf.des + "with" + inf.alg;
-                                Signature signature = Signature.getInstance(metx);
-                                signature.initVerify(certificate);
-
-                                try (InputStream sf = reader.resource(entry)) {
-                                    TransferKit.transfer(sf, new OutputStream() {
-                                        @Override
-                                        public void write(int b) throws IOException {
-                                            try {
-                                                signature.update((byte) b);
-                                            } catch (SignatureException e) {
-                                                throw new IOException(e);
-                                            }
-                                        }
+        byte[] key = cl.options.verificationCacheKey;
+        // Resources not read yet with VERIFY_ON_LOAD and TRUST_TABLE are not verified
+        File cache = signAction == KFzClassLoader.Options.SignAction.SKIP_SIGN || verifyOnLoad
+                || signAction == KFzClassLoader.Options.SignAction.TRUST_TABLE || key == null
+                ? null : cl.options.verificationCache;
+        byte[] fingerprint = cache == null ? null : KFzVerificationCache.fingerprint(
+                reader, signAction.name(), cl.options.publiclyCertificate, cl.options.publiclyModules
+        );
+        if (fingerprint == null) cache = null;
+        if (cache != null) {
+            List<Certificate>[][] cached = KFzVerificationCache.read(cache, key, fingerprint, reader);
+            if (cached != null) {
+                for (ModuleVerification verification : verifications) {
+                    assignCodeSources(verification.module, verification.data, cached[verification.module.ordinal]);
+                }
+                return;
+            }
+        }
 
-                                        @Override
-                                        public void write(byte[] b, int off, int len) throws IOException {
-                                            try {
-                                                signature.update(b, off, len);
-                                            } catch (SignatureException e) {
-                                                throw new IOException(e);
-                                            }
-                                        }
-                                    });
-                                }
-                                boolean result = signature.verify(RSAsign.signature);
-                                if (!result) {
-                                    if (throwOnVerifyFailed)
-                                        throw new IOException("Illegal Signature: " + module.name + " with method " + metx + " of " + entry.name + ", " + sign.name);
-                                    continue;
-                                }
-                                inf.c = certificate;
-                                inf.sf = entry;
-                                signInfs.add(inf);
-                            } catch (Exception any) {
-                                if (throwOnVerifyFailed) {
-                                    throw any;
-                                }
-                            }
-                        }
+        KFzTrustTable trustTable = signAction == KFzClassLoader.Options.SignAction.TRUST_TABLE && cl.options.trustTableKey != null
+                ? KFzTrustTable.read(reader, cl.options.trustTableKey) : null;
+        if (trustTable != null) {
+            for (ModuleVerification verification : verifications) {
+                assignTrusted(verification, trustTable);
+            }
+        } else {
+            verifyModules(verifications, executor, factoryAvailable, throwOnVerifyFailed, verifyOnLoad);
+        }
+        if (cache != null) {
+            KFzVerificationCache.write(cache, key, fingerprint, reader, cl.options.publiclyCertificate);
+        }
+    }
+
+    /**
+     * Verify the signatures, then the digests, then the certificates of {@code verifications}
+     */
+    private void verifyModules(List<ModuleVerification> verifications, Executor executor, boolean factoryAvailable,
+                               boolean throwOnVerifyFailed, boolean verifyOnLoad) throws Exception {
+        List<CompletableFuture<?>> tasks = new ArrayList<>();
+
+        boolean factory = factoryAvailable;
+        for (ModuleVerification verification : verifications) {
+            tasks.add(CompletableFuture.runAsync(() -> {
+                try {
+                    verifySignatures(verification, factory, throwOnVerifyFailed, verifyOnLoad);
+                } catch (Throwable throwable) {
+                    verification.failure = throwable;
+                }
+            }, executor));
+        }
+        await(tasks);
+
+        for (ModuleVerification verification : verifications) {
+            if (verification.failure != null || verifyOnLoad) continue;
+            int count = verification.digested.size();
+            verification.batchFailures = new Throwable[(count + DIGEST_BATCH - 1) / DIGEST_BATCH];
+            for (int batch = 0; batch < verification.batchFailures.length; batch++) {
+                int index = batch, from = batch * DIGEST_BATCH, to = Math.min(from + DIGEST_BATCH, count);
+                tasks.add(CompletableFuture.runAsync(() -> {
+                    try {
+                        verifyDigests(verification, from, to);
+                    } catch (Throwable throwable) {
+                        verification.batchFailures[index] = throwable;
                     }
-                    KFzReaderImpl.Node manifestEntry = module.children.get("META-INF/MANIFEST.MF");
-                    if (!signInfs.isEmpty() && manifestEntry == null) {
-                        if (throwOnVerifyFailed)
-                            throw new IllegalStateException("Missing META-INF/MANIFEST.MF in module " + module.name);
+                }, executor));
+            }
+        }
+        await(tasks);
+
+        for (ModuleVerification verification : verifications) {
+            if (verification.failure != null || firstFailure(verification.batchFailures) != null) continue;
+            tasks.add(CompletableFuture.runAsync(() -> {
+                try {
+                    assignCertificates(verification, throwOnVerifyFailed);
+                } catch (Throwable throwable) {
+                    verification.certificatesFailure = throwable;
+                }
+            }, executor));
+        }
+        await(tasks);
+        throwFirstFailure(verifications);
+    }
+
+    private static void throwFirstFailure(List<ModuleVerification> verifications) throws Exception {
+        for (ModuleVerification verification : verifications) {
+            Throwable failure = verification.failure;
+            if (failure == null) failure = firstFailure(verification.batchFailures);
+            if (failure == null) failure = verification.certificatesFailure;
+            if (failure instanceof Exception) throw (Exception) failure;
+            if (failure instanceof Error) throw (Error) failure;
+            if (failure != null) throw new IllegalStateException(failure);
+        }
+    }
+
+    private static void await(List<CompletableFuture<?>> tasks) {
+        // Tasks catch their own failures
+        CompletableFuture.allOf(tasks.toArray(new CompletableFuture<?>[0])).join();
+        tasks.clear();
+    }
+
+    private static Throwable firstFailure(Throwable[] failures) {
+        if (failures == null) return null;
+        for (Throwable failure : failures) {
+            if (failure != null) return failure;
+        }
+        return null;
+    }
+
+    /**
+     * Verify the signature of each .SF of the module, read its manifest and list the resources it has digests of
+     *
+     * @param verifyOnLoad keep the digests of the resources to verify them when they are read
+     */
+    private void verifySignatures(ModuleVerification verification, boolean factoryAvailable,
+                                  boolean throwOnVerifyFailed, boolean verifyOnLoad) throws Exception {
+        KFzReaderImpl.Module module = verification.module;
+        KClData data = verification.data;
+        List<SignInf> signInfs = verification.signInfs;
+        if (cl.options.signAction == KFzClassLoader.Options.SignAction.SKIP_SIGN) return;
+        // Not thread safe, one per module
+        CertificateFactory factory = factoryAvailable ? CertificateFactory.getInstance("X509") : null;
+        for (int id = 0; id < module.resourceCount; id++) {
+            String entryName = reader.name(module, id);
+            if (entryName.startsWith("META-INF/") && entryName.endsWith(".SF")) {
+                KFzReaderImpl.Entry entry = new KFzReaderImpl.Entry(module, id);
+                String base = entryName.substring(0, entryName.length() - 2);
+                // .RSA, .DSA, .DF
+                KFzReaderImpl.Entry sign = null;
+                for (String type : SIGN_TYPES) {
+                    KFzReaderImpl.Entry sig = reader.entry(module, base + type);
+                    if (sig != null) {
+                        sign = sig;
+                        break;
                     }
-                    byte[] manifestRaw;
-                    Manifest manifest;
-                    if (manifestEntry == null) {
-                        manifestRaw = null;
-                        manifest = null;
-                    } else {
-                        manifestRaw = TransferKit.readAndClose(reader.resource(manifestEntry));
-                        try {
-                            manifest = new Manifest(new ByteArrayInputStream(manifestRaw));
-                        } catch (Exception e) {
-                            if (throwOnVerifyFailed) throw e;
-                            manifest = null;
-                        }
+                }
+                if (sign == null) {
+                    if (throwOnVerifyFailed) {
+                        throw new IllegalStateException(entryName + " missing a signature file");
                     }
+                    continue;
+                }
+                try {
+                    signInfs.add(verifySignatureFile(module, entry, sign, factory));
+                } catch (Exception any) {
                     if (throwOnVerifyFailed) {
-                        assert manifest != null;
-                        for (Map.Entry<String, Attributes> manifestEntryX : manifest.getEntries().entrySet()) {
-                            KFzReaderImpl.Node resource = module.children.get(manifestEntryX.getKey());
-                            if (resource != null) {
-                                Attributes value = manifestEntryX.getValue();
-                                msf:
-                                {//noinspection unchecked
-                                    for (Map.Entry<Attributes.Name, Object> maniEntry : (Set<Map.Entry<Attributes.Name, Object>>) (Set<?>) value.entrySet()) {
-                                        if (maniEntry.getKey().toString().endsWith("-Digest")) {
-                                            break msf;
-                                        }
-                                    }
-                                    continue;
-                                }
-                                byte[] rs = TransferKit.readAndClose(reader.resource(resource));
-                                for (Map.Entry<Attributes.Name, Object> maniEntry : TransferKit.<Map.Entry<Attributes.Name, Object>>cast(value.entrySet())) {
-                                    String type = maniEntry.getKey().toString();
-                                    if (type.endsWith("-Digest")) {
-                                        MessageDigest digest = getMd(mds, type.substring(0, type.length() - 7));
-                                        digest.reset();
-                                        byte[] dg = digest.digest(rs);
-                                        if (!Arrays.equals(dg, Base64.getMimeDecoder().decode(maniEntry.getValue().toString()))) {
-                                            throw new IllegalStateException("MessageDigest not match: " + maniEntry.getKey());
-                                        }
-                                    }
-                                }
+                        throw any;
+                    }
+                }
+            }
+        }
+        KFzReaderImpl.Entry manifestEntry = reader.entry(module, KFzImageFormat.MANIFEST);
+        if (!signInfs.isEmpty() && manifestEntry == null) {
+            if (throwOnVerifyFailed)
+                throw new IllegalStateException("Missing META-INF/MANIFEST.MF in module " + module.name);
+        }
+        byte[] manifestRaw;
+        Manifest manifest;
+        if (manifestEntry == null) {
+            manifestRaw = null;
+            manifest = null;
+        } else {
+            manifestRaw = TransferKit.readAndClose(reader.resource(manifestEntry));
+            try {
+                manifest = new Manifest(new ByteArrayInputStream(manifestRaw));
+            } catch (Exception e) {
+                if (throwOnVerifyFailed) throw e;
+                manifest = null;
+            }
+        }
+        verification.manifestRaw = manifestRaw;
+        verification.manifest = manifest;
+        // Unsigned, or the failure is ignored
+        if (manifest == null) return;
+        if (throwOnVerifyFailed) {
+            for (Map.Entry<String, Attributes> manifestEntryX : manifest.getEntries().entrySet()) {
+                KFzReaderImpl.Entry resource = reader.entry(module, manifestEntryX.getKey());
+                if (resource != null) {
+                    Attributes value = manifestEntryX.getValue();
+                    msf:
+                    {//noinspection unchecked
+                        for (Map.Entry<Attributes.Name, Object> maniEntry : (Set<Map.Entry<Attributes.Name, Object>>) (Set<?>) value.entrySet()) {
+                            if (maniEntry.getKey().toString().endsWith("-Digest")) {
+                                break msf;
                             }
                         }
+                        continue;
                     }
+                    verification.digested.add(resource);
+                    verification.digests.add(value);
+                }
+            }
+        }
+        if (verifyOnLoad && !verification.digested.isEmpty()) {
+            data.digests = new AtomicReferenceArray<>(module.resourceCount);
+            for (int i = 0; i < verification.digested.size(); i++) {
+                data.digests.set(verification.digested.get(i).id, verification.digests.get(i));
+            }
+        }
+    }
 
-                    ManifestDigester manifestDigester = manifestRaw == null ? null : new ManifestDigester(manifestRaw);
+    /**
+     * Verify the signature block {@code sign} of the .SF {@code entry}
+     *
+     * @throws IOException if the signature doesn't match
+     */
+    private SignInf verifySignatureFile(KFzReaderImpl.Module module, KFzReaderImpl.Entry entry, KFzReaderImpl.Entry sign,
+                                        CertificateFactory factory) throws Exception {
+        String entryName = reader.name(entry);
+        byte[] signRaw = TransferKit.readAndClose(reader.resource(sign));
+        //noinspection ConstantConditions
+        CertPath pkcs7 = factory.generateCertPath(new ByteArrayInputStream(signRaw), "PKCS7");
+        // System.out.println(pkcs7);
 
-                    infLp:
-                    for (SignInf sinf : signInfs) {
-                        Manifest sf;
-                        try (InputStream is = resource(sinf.sf)) {
-                            sf = new Manifest(is);
-                        }
+        X509Certificate certificate = (X509Certificate) pkcs7.getCertificates().get(pkcs7.getCertificates().size() - 1);
+        // System.out.println(certificate);
+        JdkJarSignReader.Response RSAsign = new JdkJarSignReader.Response();
 
-                        // System.out.println("Ovk " + sinf.sf.name + " " + sf.getEntries());
-                        String mdm = "-Digest-Manifest";
-                        if (manifestRaw != null) {
-                            for (Map.Entry<Attributes.Name, Object> maniEntry : TransferKit.<Map.Entry<Attributes.Name, Object>>cast(sf.getMainAttributes().entrySet())) {
-                                String t = maniEntry.getKey().toString();
-                                if (t.endsWith(mdm)) {
-                                    MessageDigest md = getMd(mds, t.substring(0, t.length() - mdm.length()));
-                                    md.reset();
-                                    if (!Arrays.equals(md.digest(manifestRaw), Base64.getMimeDecoder().decode(maniEntry.getValue().toString()))) {
-                                        if (throwOnVerifyFailed) {
-                                            throw new IllegalStateException("Manifest checksum failed with " + sinf.c);
-                                        }
-                                        continue infLp;
-                                    }
+        JdkJarSignReader.findSignature(signRaw, RSAsign);
+        SignInf inf = new SignInf();
+        inf.des = AlgorithmId.find(RSAsign.digestAlgorithmId.toString()).replace("-", "");
+        inf.alg = AlgorithmId.find(RSAsign.algorithmId.toString());
+        String metx = inf.des + "with" + inf.alg;
+        Signature signature = Signature.getInstance(metx);
+        signature.initVerify(certificate);
+
+        try (InputStream sf = reader.resource(entry)) {
+            TransferKit.transfer(sf, ByteBuffer.allocate(DIGEST_BUFFER_SIZE), signature::update);
+        }
+        boolean result = signature.verify(RSAsign.signature);
+        if (!result) {
+            throw new IOException("Illegal Signature: " + module.name + " with method " + metx + " of " + entryName + ", " + reader.name(sign));
+        }
+        inf.c = certificate;
+        inf.sf = entry;
+        inf.block = sign;
+        return inf;
+    }
+
+    /**
+     * Check the resources {@code [from, to)} of {@link ModuleVerification#digested} against the manifest
+     */
+    private void verifyDigests(ModuleVerification verification, int from, int to) throws Exception {
+        ByteBuffer buffer = ByteBuffer.allocate(DIGEST_BUFFER_SIZE);
+        for (int i = from; i < to; i++) {
+            String mismatch;
+            try (ManifestDigests digests = new ManifestDigests(verification.digests.get(i));
+                 InputStream resource = reader.resource(verification.digested.get(i))) {
+                TransferKit.transfer(resource, buffer, digests::update);
+                mismatch = digests.mismatch();
+            }
+            if (mismatch != null) {
+                throw new IllegalStateException("MessageDigest not match: " + mismatch);
+            }
+        }
+    }
+
+    /**
+     * Check the manifest and its sections against each verified .SF, then resolve the CodeSources of the resources
+     */
+    @SuppressWarnings("DuplicatedCode")
+    private void assignCertificates(ModuleVerification verification, boolean throwOnVerifyFailed) throws Exception {
+        KFzReaderImpl.Module module = verification.module;
+        KClData data = verification.data;
+        byte[] manifestRaw = verification.manifestRaw;
+        List<Certificate>[] certificates = null;
+        if (cl.options.signAction != KFzClassLoader.Options.SignAction.SKIP_SIGN) {
+            ManifestDigester manifestDigester = manifestRaw == null ? null : new ManifestDigester(manifestRaw);
+
+            for (SignInf sinf : verification.signInfs) {
+                Manifest sf;
+                try (InputStream is = resource(sinf.sf)) {
+                    sf = new Manifest(is);
+                }
+
+                // System.out.println("Ovk " + reader.name(sinf.sf) + " " + sf.getEntries());
+                if (manifestRaw != null) {
+                    if (!manifestDigestMatches(sf, manifestRaw)) {
+                        if (throwOnVerifyFailed) {
+                            throw new IllegalStateException("Manifest checksum failed with " + sinf.c);
+                        }
+                        continue;
+                    }
+                } else continue;
+                for (Map.Entry<String, Attributes> manifestEntryX : sf.getEntries().entrySet()) {
+                    ManifestDigester.Entry resource = manifestDigester.get(manifestEntryX.getKey());
+                    KFzReaderImpl.Entry childrenEntry = reader.entry(module, manifestEntryX.getKey());
+                    if (resource != null) {
+                        Attributes value = manifestEntryX.getValue();
+                        msf:
+                        {//noinspection unchecked
+                            for (Map.Entry<Attributes.Name, Object> maniEntry : (Set<Map.Entry<Attributes.Name, Object>>) (Set<?>) value.entrySet()) {
+                                if (maniEntry.getKey().toString().endsWith("-Digest")) {
+                                    break msf;
                                 }
                             }
-                        } else continue;
-                        for (Map.Entry<String, Attributes> manifestEntryX : sf.getEntries().entrySet()) {
-                            ManifestDigester.Entry resource = manifestDigester.get(manifestEntryX.getKey());
-                            KFzReaderImpl.Node childrenNode = module.children.get(manifestEntryX.getKey());
-                            if (resource != null) {
-                                Attributes value = manifestEntryX.getValue();
-                                msf:
-                                {//noinspection unchecked
-                                    for (Map.Entry<Attributes.Name, Object> maniEntry : (Set<Map.Entry<Attributes.Name, Object>>) (Set<?>) value.entrySet()) {
-                                        if (maniEntry.getKey().toString().endsWith("-Digest")) {
-                                            break msf;
-                                        }
-                                    }
-                                    continue;
+                            continue;
+                        }
+                        for (Map.Entry<Attributes.Name, Object> maniEntry : TransferKit.<Map.Entry<Attributes.Name, Object>>cast(value.entrySet())) {
+                            String type = maniEntry.getKey().toString();
+                            if (type.endsWith("-Digest")) {
+                                String algorithm = type.substring(0, type.length() - 7);
+                                MessageDigest md = mds.acquire(algorithm);
+                                byte[] digest;
+                                try {
+                                    digest = resource.digest(md);
+                                } finally {
+                                    mds.release(algorithm, md);
                                 }
-                                for (Map.Entry<Attributes.Name, Object> maniEntry : TransferKit.<Map.Entry<Attributes.Name, Object>>cast(value.entrySet())) {
-                                    String type = maniEntry.getKey().toString();
-                                    if (type.endsWith("-Digest")) {
-                                        MessageDigest md = getMd(mds, type.substring(0, type.length() - 7));
-                                        md.reset();
-                                        if (!Arrays.equals(resource.digest(md), Base64.getMimeDecoder().decode(maniEntry.getValue().toString()))) {
-                                            throw new IllegalStateException("MessageDigest not match: " + maniEntry.getKey() + " with " + sinf.sf.name + " of " + manifestEntryX.getKey());
-                                        } else {
-                                            if (childrenNode != null) {
-                                                KClData data1 = childrenNode.data;
-                                                if (data1 == null) {
-                                                    data1 = childrenNode.data = new KClData();
-                                                }
-                                                List<Certificate> certificates = data1.certificates;
-                                                if (certificates == null) {
-                                                    certificates = data1.certificates = new ArrayList<>();
-                                                }
-                                                certificates.add(sinf.c);
-                                            }
+                                if (!Arrays.equals(digest, Base64.getMimeDecoder().decode(maniEntry.getValue().toString()))) {
+                                    throw new IllegalStateException("MessageDigest not match: " + maniEntry.getKey() + " with " + reader.name(sinf.sf) + " of " + manifestEntryX.getKey());
+                                } else {
+                                    if (childrenEntry != null) {
+                                        if (certificates == null) {
+                                            certificates = newCertificates(module.resourceCount);
+                                        }
+                                        List<Certificate> entryCertificates = certificates[childrenEntry.id];
+                                        if (entryCertificates == null) {
+                                            entryCertificates = certificates[childrenEntry.id] = new ArrayList<>();
                                         }
+                                        entryCertificates.add(sinf.c);
                                     }
                                 }
                             }
                         }
                     }
+                }
+            }
+
+            data.signers = verification.signInfs.toArray(new SignInf[0]);
+        }
+        assignCodeSources(module, data, certificates);
+    }
 
+    /**
+     * Resolve the CodeSources of the module from the groups {@code trustTable} lists for it, and keep the digests
+     * of its signed resources to check them when they are first read
+     */
+    private void assignTrusted(ModuleVerification verification, KFzTrustTable trustTable) {
+        KFzReaderImpl.Module module = verification.module;
+        KFzTrustTable.ModuleTrust trust = trustTable.modules.get(module.ordinal);
+        List<Certificate>[] entryCertificates = null;
+        if (trust != null) {
+            entryCertificates = newCertificates(module.resourceCount);
+            for (int group = 0; group < trust.groupCertificates.length; group++) {
+                List<Certificate> chain = new ArrayList<>(trust.groupCertificates[group].length);
+                for (int certificate : trust.groupCertificates[group]) {
+                    chain.add(trustTable.certificates[certificate]);
                 }
-                {
-                    Collection<String> publiclyModule = cl.options.publiclyModules;
-                    Certificate publiclyCertificate = cl.options.publiclyCertificate;
-                    if (publiclyModule != null && publiclyModule.contains(module.name) && publiclyCertificate != null) {
-                        for (KFzReaderImpl.Node children : module.children.values()) {
-                            KClData kClData = children.data;
-                            if (kClData == null) {
-                                kClData = children.data = new KClData();
-                            }
-                            List<Certificate> certificates = kClData.certificates;
-                            if (certificates == null) {
-                                kClData.certificates = certificates = new ArrayList<>();
-                            }
-                            certificates.add(publiclyCertificate);
-                        }
-                    }
+                for (int id : trust.groupEntries[group]) {
+                    entryCertificates[id] = new ArrayList<>(chain);
+                }
+            }
+            verification.data.digests = new AtomicReferenceArray<>(trust.digests);
+        }
+        assignCodeSources(module, verification.data, entryCertificates);
+    }
 
-                    { // flatten
-                        Map<List<Certificate>, CodeSource> csmap = new HashMap<>();
-                        for (KFzReaderImpl.Node children : module.children.values()) {
-                            if (children.data == null) continue;
-                            List<Certificate> certificates = children.data.certificates;
-                            if (certificates == null) continue;
-                            children.data.certificates = null;
-                            CodeSource source = csmap.get(certificates);
-                            if (source != null) {
-                                children.data.cs = source;
-                            } else {
-                                children.data.cs = new CodeSource(module.data.sealBase, certificates.toArray(new Certificate[0]));
-                                csmap.put(certificates, children.data.cs);
-                            }
-                        }
-                    }
+    /**
+     * Check the {@code *-Digest-Manifest} attributes of the .SF {@code sf} against the manifest
+     */
+    private boolean manifestDigestMatches(Manifest sf, byte[] manifestRaw) throws NoSuchAlgorithmException {
+        String mdm = "-Digest-Manifest";
+        for (Map.Entry<Attributes.Name, Object> maniEntry : TransferKit.<Map.Entry<Attributes.Name, Object>>cast(sf.getMainAttributes().entrySet())) {
+            String t = maniEntry.getKey().toString();
+            if (t.endsWith(mdm)) {
+                if (!Arrays.equals(mds.digest(t.substring(0, t.length() - mdm.length()), manifestRaw), Base64.getMimeDecoder().decode(maniEntry.getValue().toString()))) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Add the {@link KFzClassLoader.Options#publiclyCertificate} to publicly modules,
+     * then share a CodeSource between the resources of the same certificates
+     *
+     * @param certificates certificates of each resource by id, {@code null} if the module isn't signed
+     */
+    private void assignCodeSources(KFzReaderImpl.Module module, KClData data, List<Certificate>[] certificates) {
+        Collection<String> publiclyModule = cl.options.publiclyModules;
+        Certificate publiclyCertificate = cl.options.publiclyCertificate;
+        if (publiclyModule != null && publiclyModule.contains(module.name) && publiclyCertificate != null) {
+            if (certificates == null) {
+                certificates = newCertificates(module.resourceCount);
+            }
+            for (int id = 0; id < module.resourceCount; id++) {
+                List<Certificate> entryCertificates = certificates[id];
+                if (entryCertificates == null) {
+                    certificates[id] = entryCertificates = new ArrayList<>();
                 }
+                entryCertificates.add(publiclyCertificate);
             }
+        }
 
-            manifest:
-            {
-                KFzReaderImpl.Node manifest0 = module.children.get("META-INF/MANIFEST.MF");
-                if (manifest0 == null) break manifest;
-                Manifest manifest;
-                try (InputStream res = new BufferedInputStream(reader.resource(manifest0))) {
-                    manifest = new Manifest(res);
+        if (certificates != null) { // flatten
+            Map<List<Certificate>, CodeSource> csmap = new HashMap<>();
+            data.entryCs = new CodeSource[module.resourceCount];
+            for (int id = 0; id < module.resourceCount; id++) {
+                List<Certificate> entryCertificates = certificates[id];
+                if (entryCertificates == null) continue;
+                CodeSource source = csmap.get(entryCertificates);
+                if (source == null) {
+                    source = new CodeSource(data.sealBase, entryCertificates.toArray(new Certificate[0]));
+                    csmap.put(entryCertificates, source);
                 }
-                data.manifest = manifest;
+                data.entryCs[id] = source;
             }
+        }
+    }
 
+    @SuppressWarnings("unchecked")
+    private static List<Certificate>[] newCertificates(int size) {
+        return (List<Certificate>[]) new List<?>[size];
+    }
+
+    KFzReaderImpl.Entry findResource(String path) {
+        return reader.findEntry(path);
+    }
+
+    public InputStream resource(Object entry) throws Exception {
+        KFzReaderImpl.Entry res = (KFzReaderImpl.Entry) entry;
+        KClData data = res.module.data;
+        if (data == null || data.digests == null || data.digests.get(res.id) == null) {
+            return reader.resource(res);
         }
+        byte[] content = reader.bytes(res);
+        if (content == null) return reader.resource(res);
+        verify(res, ByteBuffer.wrap(content));
+        return new ByteArrayInputStream(content);
+    }
+
+    /**
+     * The content of {@code entry} to define a class with, see {@link KFzReaderImpl#content(KFzReaderImpl.Entry)}
+     */
+    ByteBuffer content(KFzReaderImpl.Entry entry) throws IOException {
+        ByteBuffer content = reader.content(entry);
+        if (content != null) verify(entry, content.duplicate());
+        return content;
     }
 
-    KFzReaderImpl.Node findResource(String path) {
-        for (KFzReaderImpl.Node module : reader.root.children.values()) {
-            KFzReaderImpl.Node node = module.children.get(path);
-            if (node != null) return node;
+    /**
+     * Check {@code content} against the manifest digests of {@code entry} if they are not verified yet
+     *
+     * @throws SecurityException if a digest doesn't match
+     */
+    void verify(KFzReaderImpl.Entry entry, ByteBuffer content) {
+        KClData data = entry.module.data;
+        if (data == null || data.digests == null) return;
+        Attributes digests = data.digests.get(entry.id);
+        if (digests == null) return;
+        String mismatch;
+        try (ManifestDigests manifestDigests = new ManifestDigests(digests)) {
+            manifestDigests.update(content);
+            mismatch = manifestDigests.mismatch();
+        } catch (NoSuchAlgorithmException e) {
+            throw new SecurityException("Cannot verify " + entry.module.name + '/' + reader.name(entry), e);
         }
-        return null;
+        if (mismatch != null) {
+            throw new SecurityException("MessageDigest not match: " + mismatch + " of " + entry.module.name + '/' + reader.name(entry));
+        }
+        // Verified once, concurrent first reads may verify it twice
+        data.digests.compareAndSet(entry.id, digests, null);
     }
 
-    public InputStream resource(Object node) throws Exception {
-        return reader.resource((KFzReaderImpl.Node) node);
+    /**
+     * The CodeSource to define the class of {@code entry} with
+     */
+    CodeSource codeSource(KFzReaderImpl.Entry entry) {
+        KClData data = entry.module.data;
+        if (data.entryCs != null) {
+            CodeSource cs = data.entryCs[entry.id];
+            if (cs != null) return cs;
+        }
+        return data.cs;
     }
 
-    KFzReaderImpl.Node findResAndPreDefinePackage(String path) {
-        KFzReaderImpl.Node res = findResource(path);
-        if (res == null) return null;
-        int spl = path.lastIndexOf('/');
-        if (spl == -1) return res;
-        String pkgName = path.substring(0, spl).replace('/', '.');
-        if (cl.pkg(pkgName) == null) {
-            KClData data = res.parent.data;
-            if (data == null) return res;
-            Manifest manifest = data.manifest;
-            if (manifest == null) return res;
-            cl.definePackage0(
-                    pkgName,
-                    manifest.getMainAttributes().getValue(Attributes.Name.SPECIFICATION_TITLE),
-                    manifest.getMainAttributes().getValue(Attributes.Name.SPECIFICATION_VERSION),
-                    manifest.getMainAttributes().getValue(Attributes.Name.SPECIFICATION_VENDOR),
-                    manifest.getMainAttributes().getValue(Attributes.Name.IMPLEMENTATION_TITLE),
-                    manifest.getMainAttributes().getValue(Attributes.Name.IMPLEMENTATION_VERSION),
-                    manifest.getMainAttributes().getValue(Attributes.Name.IMPLEMENTATION_VENDOR),
-                    data.sealBase
-            );
-        }
-        return res;
+    /**
+     * Find the class through the package table and define its package on first use.
+     */
+    KFzReaderImpl.Entry findClassAndDefinePackage(String name) {
+        int spl = name.lastIndexOf('.');
+        String pkgPath = spl == -1 ? "" : name.substring(0, spl).replace('.', '/');
+        KFzReaderImpl.Pkg pkg = reader.packageIndex().get(pkgPath);
+        if (pkg == null) return null;
+        String path = name.replace('.', '/') + ".class";
+        for (int i = 0; i < pkg.modules.length; i++) {
+            KFzReaderImpl.Entry res = reader.entry(pkg.modules[i], path);
+            if (res == null) continue;
+            if (spl != -1) {
+                KFzPackageAttributes attributes = pkg.attributes[i];
+                definedPackages.computeIfAbsent(pkgPath, k -> {
+                    String pkgName = name.substring(0, spl);
+                    // Also defined by an ancestor for split packages
+                    if (attributes != null && cl.pkg(pkgName) == null) {
+                        try {
+                            cl.definePackage0(
+                                    pkgName,
+                                    attributes.specTitle(),
+                                    attributes.specVersion(),
+                                    attributes.specVendor(),
+                                    attributes.implTitle(),
+                                    attributes.implVersion(),
+                                    attributes.implVendor(),
+                                    res.module.data == null ? null : res.module.data.sealBase
+                            );
+                        } catch (IllegalArgumentException alreadyDefined) {
+                            // Defined by an ancestor meanwhile
+                        }
+                    }
+                    return Boolean.TRUE;
+                });
+            }
+            return res;
+        }
+        return null;
     }
 }
@@ -0,0 +1,62 @@
+/*
+ * Copyright (c) 2018-2021 Karlatemp and contributors. All rights reserved.
+ *
+ * Use of this source code is governed by the MIT license that can be found via the following link.
+ *
+ * https://github.com/KasukuSakura/kasuku-fzos/blob/master/LICENSE
+ */
+
+package io.github.karlatemp.kasukufzos.image.reader;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Random access to the raw bytes of an image file.
+ */
+abstract class KFzImageAccess implements Closeable {
+
+    /**
+     * Open a stream over {@code [pointer, pointer + size)} of the image.
+     */
+    abstract InputStream open(long pointer, long size) throws IOException;
+
+    /**
+     * The size of the image in bytes.
+     */
+    abstract long size() throws IOException;
+
+    /**
+     * A read-only view of {@code [pointer, pointer + size)} without copying,
+     * or {@code null} if this access doesn't support it for the given range.
+     */
+    ByteBuffer slice(long pointer, long size) throws IOException {
+        return null;
+    }
+
+    @Override
+    public abstract void close() throws IOException;
+
+    static KFzImageAccess open(File file, KFzReader.Options.ReadMode mode) throws IOException {
+        switch (mode) {
+            case MAPPED:
+                return new KFzMappedAccess(file);
+            case CHANNEL:
+                return new KFzChannelAccess(file);
+            case AUTO:
+                if (KFzMappedAccess.isSupported()) {
+                    try {
+                        return new KFzMappedAccess(file);
+                    } catch (IOException | OutOfMemoryError ignored) {
+                        // Address space exhausted or mapping not supported by the file system
+                    }
+                }
+                return new KFzChannelAccess(file);
+            default:
+                throw new IllegalArgumentException("Unknown read mode: " + mode);
+        }
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (c) 2018-2021 Karlatemp and contributors. All rights reserved.
+ *
+ * Use of this source code is governed by the MIT license that can be found via the following link.
+ *
+ * https://github.com/KasukuSakura/kasuku-fzos/blob/master/LICENSE
+ */
+
+package io.github.karlatemp.kasukufzos.image.reader;
+
+import io.github.karlatemp.kasukufzos.utils.ByteBufferInputStream;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Maps the whole image once. A single {@link MappedByteBuffer} can't exceed 2 GB,
+ * so the image is split into {@link #CHUNK_SIZE} chunks.
+ */
+class KFzMappedAccess extends KFzImageAccess {
+    static final int CHUNK_SHIFT = 30;
+    static final long CHUNK_SIZE = 1L << CHUNK_SHIFT;
+
+    private final long size;
+    private volatile MappedByteBuffer[] chunks;
+
+    KFzMappedAccess(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            FileChannel channel = raf.getChannel();
+            long size = this.size = channel.size();
+            int count = (int) ((size + CHUNK_SIZE - 1) >>> CHUNK_SHIFT);
+            MappedByteBuffer[] chunks = new MappedByteBuffer[count];
+            for (int i = 0; i < count; i++) {
+                long start = (long) i << CHUNK_SHIFT;
+                chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(CHUNK_SIZE, size - start));
+            }
+            this.chunks = chunks;
+        }
+    }
+
+    @Override
+    long size() {
+        return size;
+    }
+
+    static boolean isSupported() {
+        // A 32-bit VM can't reserve address space for a large image
+        return !"32".equals(System.getProperty("sun.arch.data.model"));
+    }
+
+    private MappedByteBuffer[] chunks() throws ClosedChannelException {
+        MappedByteBuffer[] chunks = this.chunks;
+        if (chunks == null) throw new ClosedChannelException();
+        return chunks;
+    }
+
+    private static ByteBuffer chunkSlice(MappedByteBuffer[] chunks, int chunk, int offset, int size) {
+        ByteBuffer buffer = chunks[chunk].duplicate();
+        buffer.position(offset);
+        buffer.limit(offset + size);
+        return buffer.slice();
+    }
+
+    @Override
+    ByteBuffer slice(long pointer, long size) throws IOException {
+        int chunk = (int) (pointer >>> CHUNK_SHIFT);
+        int offset = (int) (pointer & (CHUNK_SIZE - 1));
+        if (offset + size > CHUNK_SIZE) return null;
+        return chunkSlice(chunks(), chunk, offset, (int) size);
+    }
+
+    @Override
+    InputStream open(long pointer, long size) throws IOException {
+        ByteBuffer slice = slice(pointer, size);
+        if (slice != null) return new ByteBufferInputStream(slice);
+
+        MappedByteBuffer[] chunks = chunks();
+        List<InputStream> parts = new ArrayList<>();
+        while (size > 0) {
+            int chunk = (int) (pointer >>> CHUNK_SHIFT);
+            int offset = (int) (pointer & (CHUNK_SIZE - 1));
+            int len = (int) Math.min(size, CHUNK_SIZE - offset);
+            parts.add(new ByteBufferInputStream(chunkSlice(chunks, chunk, offset, len)));
+            pointer += len;
+            size -= len;
+        }
+        return new SequenceInputStream(Collections.enumeration(parts));
+    }
+
+    @Override
+    public void close() {
+        // Streams already handed out keep their slices, the mapping is released once they are collected
+        chunks = null;
+    }
+}
@@ -0,0 +1,228 @@
+/*
+ * Copyright (c) 2018-2021 Karlatemp and contributors. All rights reserved.
+ *
+ * Use of this source code is governed by the MIT license that can be found via the following link.
+ *
+ * https://github.com/KasukuSakura/kasuku-fzos/blob/master/LICENSE
+ */
+
+package io.github.karlatemp.kasukufzos.image.reader;
+
+import java.io.DataInput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * A set of names packed into one byte array, as written by {@link java.io.DataOutput#writeUTF(String)},
+ * with an open-addressing hash table of name ids.
+ * <p>
+ * Names are only decoded into {@link String}s when asked for.
+ */
+class KFzNameTable {
+    private byte[] pool;
+    private int poolSize;
+    /**
+     * Name {@code i} is {@code pool[offsets[i], offsets[i + 1])}
+     */
+    private int[] offsets;
+    private int[] hashes;
+    /**
+     * Name id + 1, 0 for empty slots
+     */
+    private int[] table;
+    private int size;
+
+    KFzNameTable(int expectedNames, int expectedBytes) {
+        pool = new byte[Math.max(expectedBytes, 16)];
+        offsets = new int[Math.max(expectedNames, 1) + 1];
+        hashes = new int[Math.max(expectedNames, 1)];
+        table = new int[tableSize(expectedNames)];
+    }
+
+    private static int tableSize(int names) {
+        // Load factor <= 0.5
+        return Integer.highestOneBit(Math.max(names, 1) * 4 - 1);
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Read a name written by {@link java.io.DataOutput#writeUTF(String)}.
+     * Leading {@code '/'} are dropped.
+     *
+     * @return the id of the name
+     */
+    int read(DataInput input) throws IOException {
+        int len = input.readUnsignedShort();
+        ensurePool(len);
+        input.readFully(pool, poolSize, len);
+        return append(len);
+    }
+
+    int add(String name) {
+        byte[] encoded = encode(name);
+        ensurePool(encoded.length);
+        System.arraycopy(encoded, 0, pool, poolSize, encoded.length);
+        return append(encoded.length);
+    }
+
+    /**
+     * Find {@code name} or add it if missing.
+     */
+    int intern(String name) {
+        int id = find(name);
+        if (id != -1) return id;
+        return add(name);
+    }
+
+    private void ensurePool(int len) {
+        if (poolSize + len > pool.length) {
+            pool = Arrays.copyOf(pool, Math.max(pool.length * 2, poolSize + len));
+        }
+    }
+
+    private int append(int len) {
+        int start = poolSize;
+        int slashes = 0;
+        while (slashes < len && pool[start + slashes] == '/') slashes++;
+        if (slashes != 0) {
+            System.arraycopy(pool, start + slashes, pool, start, len - slashes);
+            len -= slashes;
+        }
+        poolSize += len;
+
+        if (size == hashes.length) {
+            hashes = Arrays.copyOf(hashes, size * 2);
+            offsets = Arrays.copyOf(offsets, size * 2 + 1);
+        }
+        int id = size++;
+        offsets[id] = start;
+        offsets[id + 1] = poolSize;
+        hashes[id] = hash(id);
+
+        if (size * 2 > table.length) {
+            rehash(tableSize(size * 2));
+        } else {
+            insert(id);
+        }
+        return id;
+    }
+
+    private int hash(int id) {
+        int off = offsets[id], end = offsets[id + 1];
+        int h = 0;
+        for (int i = off; i < end; i++) {
+            byte b = pool[i];
+            if (b < 0) return name(id).hashCode();
+            h = 31 * h + b;
+        }
+        return h;
+    }
+
+    private static int spread(int h) {
+        return h ^ (h >>> 16);
+    }
+
+    private void insert(int id) {
+        int mask = table.length - 1;
+        int slot = spread(hashes[id]) & mask;
+        while (table[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        table[slot] = id + 1;
+    }
+
+    private void rehash(int tableSize) {
+        table = new int[tableSize];
+        for (int i = 0; i < size; i++) {
+            insert(i);
+        }
+    }
+
+    /**
+     * Release the spare capacity once all names are added.
+     */
+    void trim() {
+        pool = Arrays.copyOf(pool, poolSize);
+        offsets = Arrays.copyOf(offsets, size + 1);
+        hashes = Arrays.copyOf(hashes, size);
+    }
+
+    /**
+     * @return the id of {@code name}, or {@code -1}
+     */
+    int find(String name) {
+        int h = name.hashCode();
+        int mask = table.length - 1;
+        int slot = spread(h) & mask;
+        int entry;
+        while ((entry = table[slot]) != 0) {
+            int id = entry - 1;
+            if (hashes[id] == h && matches(id, name)) return id;
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    private boolean matches(int id, String name) {
+        int off = offsets[id], len = offsets[id + 1] - off;
+        if (len == name.length()) {
+            int i = 0;
+            for (; i < len; i++) {
+                byte b = pool[off + i];
+                if (b < 0) break;
+                if (b != name.charAt(i)) return false;
+            }
+            if (i == len) return true;
+        }
+        return name(id).equals(name);
+    }
+
+    String name(int id) {
+        int off = offsets[id], end = offsets[id + 1];
+        char[] chars = new char[end - off];
+        int count = 0;
+        while (off < end) {
+            int c = pool[off] & 0xFF;
+            if (c < 0x80) {
+                chars[count++] = (char) c;
+                off++;
+            } else if ((c >> 5) == 0b110) {
+                chars[count++] = (char) (((c & 0x1F) << 6) | (pool[off + 1] & 0x3F));
+                off += 2;
+            } else {
+                chars[count++] = (char) (((c & 0x0F) << 12) | ((pool[off + 1] & 0x3F) << 6) | (pool[off + 2] & 0x3F));
+                off += 3;
+            }
+        }
+        return new String(chars, 0, count);
+    }
+
+    private static byte[] encode(String name) {
+        int len = 0;
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (c != 0 && c < 0x80) len++;
+            else if (c < 0x800) len += 2;
+            else len += 3;
+        }
+        byte[] encoded = new byte[len];
+        int pos = 0;
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (c != 0 && c < 0x80) {
+                encoded[pos++] = (byte) c;
+            } else if (c < 0x800) {
+                encoded[pos++] = (byte) (0xC0 | (c >> 6));
+                encoded[pos++] = (byte) (0x80 | (c & 0x3F));
+            } else {
+                encoded[pos++] = (byte) (0xE0 | (c >> 12));
+                encoded[pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                encoded[pos++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        return encoded;
+    }
+}
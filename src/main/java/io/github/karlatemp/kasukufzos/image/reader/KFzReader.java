@@ -8,21 +8,107 @@
 
 package io.github.karlatemp.kasukufzos.image.reader;
 
+import java.io.Closeable;
 import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
 import java.util.List;
+import java.util.Map;
 
-
-public abstract class KFzReader {
+/**
+ * An opened image.
+ * <p>
+ * A reader holds the image file open until {@link #close()}. Closing the reader doesn't
+ * close the streams already returned, but they may fail on their next read.
+ * Don't close a reader that is still used by a {@link KFzClassLoader}.
+ */
+public abstract class KFzReader implements Closeable {
     public static final int
-            COMPRESS_TYPE_BITS = 0b0000_0000_0000_0011,
+            COMPRESS_TYPE_BITS = 0b0000_0000_0000_0111,
             COMPRESS_TYPE_GZIP = 0b0000_0000_0000_0001,
             COMPRESS_TYPE_NONE = 0b0000_0000_0000_0000,
             COMPRESS_TYPE_INF_ = 0b0000_0000_0000_0010,
+            /**
+             * Raw DEFLATE without zlib header (nowrap), as stored in zip files
+             */
+            COMPRESS_TYPE_DEFL = 0b0000_0000_0000_0011,
+            /**
+             * {@link io.github.karlatemp.kasukufzos.utils.Lz4Block}, decoded in Java without native calls
+             */
+            COMPRESS_TYPE_LZ4_ = 0b0000_0000_0000_0100,
+            /**
+             * Raw DEFLATE with the preset dictionary of the module, see the DICTIONARY section of the image
+             */
+            COMPRESS_TYPE_DICT = 0b0000_0000_0000_0101,
+            /**
+             * Part of a solid block, see the BLOCK_TABLE section of the image
+             */
+            COMPRESS_TYPE_SOLID = 0b0000_0000_0000_0110,
             VOID = 0;
 
+    /**
+     * Modifiers of a {@link #COMPRESS_TYPE_DICT} resource from this bit up: {@code 0} if deflated with the
+     * dictionary of its module, otherwise 1 + the id of the dictionary: the ordinal of the module it shares the
+     * content of, or an id past the module table if that module was removed or replaced by an update
+     */
+    public static final int DICTIONARY_MODULE_SHIFT = 8;
+
+    public static class Options {
+        public ReadMode readMode = ReadMode.AUTO;
+        /**
+         * How module indexes of a v2 image are loaded. v1 images are always loaded eagerly.
+         */
+        public OpenStrategy openStrategy = OpenStrategy.LAZY;
+        /**
+         * Bytes of decompressed solid blocks kept for the next resources of the block,
+         * {@code 0} to decompress the block on each read
+         */
+        public long solidCacheSize = 16L * 1024 * 1024;
+        /**
+         * Check resources read by {@link #readBytes(String, String)} and classes defined from the image
+         * against the CRC-32C of the index
+         */
+        public boolean verifyChecksums;
+
+        public enum ReadMode {
+            /**
+             * {@link #MAPPED} if the platform allows it, otherwise {@link #CHANNEL}
+             */
+            AUTO,
+            /**
+             * Map the image into memory once and serve resources as slices of the mapping
+             */
+            MAPPED,
+            /**
+             * Positional reads on one shared {@link java.nio.channels.FileChannel},
+             * for environments where mapped pages are not wanted
+             */
+            CHANNEL;
+        }
+
+        public enum OpenStrategy {
+            /**
+             * Read all module indexes on the opening thread
+             */
+            EAGER,
+            /**
+             * Only read the module table when opening, and the index of a module on its first access
+             */
+            LAZY,
+            /**
+             * Read all module indexes on the common {@link java.util.concurrent.ForkJoinPool}
+             */
+            PARALLEL;
+        }
+    }
+
     public static KFzReader from(File file) throws Exception {
-        return new KFzReaderImpl(file);
+        return from(file, new Options());
+    }
+
+    public static KFzReader from(File file, Options options) throws Exception {
+        if (options == null) options = new Options();
+        return new KFzReaderImpl(file, options);
     }
 
     public abstract InputStream getResource(String path) throws Exception;
@@ -32,4 +118,39 @@ public abstract class KFzReader {
     public abstract List<String> paths(String module);
 
     public abstract InputStream resource(String module, String path) throws Exception;
+
+    /**
+     * The uncompressed size of a resource
+     *
+     * @return {@code -1} if the resource doesn't exist or its size isn't known without decompressing it
+     */
+    public abstract long size(String module, String path) throws IOException;
+
+    /**
+     * The whole resource in an array of exactly its size, allocated once if the image records the size
+     *
+     * @return {@code null} if the resource doesn't exist
+     */
+    public abstract byte[] readBytes(String module, String path) throws IOException;
+
+    /**
+     * Check a resource against the size and CRC-32C recorded in the image
+     *
+     * @return {@code false} if the resource doesn't exist or the image doesn't record them
+     * @throws IOException if the resource doesn't match or can't be read
+     */
+    public abstract boolean verify(String module, String path) throws IOException;
+
+    /**
+     * The modules providing {@code path}, in image order. The first one shadows the others.
+     */
+    public abstract List<String> providers(String path);
+
+    /**
+     * All paths provided by more than one module, with their {@link #providers(String)}.
+     */
+    public abstract Map<String, List<String>> duplicates();
+
+    @Override
+    public abstract void close() throws IOException;
 }
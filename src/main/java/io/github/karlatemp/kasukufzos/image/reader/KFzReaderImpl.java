@@ -8,148 +8,1118 @@
 
 package io.github.karlatemp.kasukufzos.image.reader;
 
+import io.github.karlatemp.kasukufzos.image.KFzImageFormat;
+import io.github.karlatemp.kasukufzos.image.KFzPackageAttributes;
+import io.github.karlatemp.kasukufzos.utils.Crc32c;
 import io.github.karlatemp.kasukufzos.utils.EmptyStream;
-import io.github.karlatemp.kasukufzos.utils.LimitedInputStream;
-import io.github.karlatemp.kasukufzos.utils.RAFInputStream;
+import io.github.karlatemp.kasukufzos.utils.InflaterPool;
+import io.github.karlatemp.kasukufzos.utils.Lz4Block;
+import io.github.karlatemp.kasukufzos.utils.PooledInflaterInputStream;
+import io.github.karlatemp.kasukufzos.utils.RawInflaterInputStream;
+import io.github.karlatemp.kasukufzos.utils.TransferKit;
 
 import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.security.CodeSource;
+import java.security.MessageDigest;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.jar.Manifest;
+import java.util.zip.DataFormatException;
 import java.util.zip.GZIPInputStream;
-import java.util.zip.InflaterInputStream;
+import java.util.zip.Inflater;
 
 class KFzReaderImpl extends KFzReader {
 
-    private final File file;
+    final File file;
+    private final KFzImageAccess access;
 
-    static class Node {
+    static class Module {
+        final String name;
+        /**
+         * Position in the image, which is also the shadowing order
+         */
+        final int ordinal;
+        final int resourceCount;
+        /**
+         * Location of the resource index in a v2 image
+         */
+        long indexPointer, indexSize;
+        /**
+         * Path id of every resource, filled with the {@link #pathIndex()}
+         */
+        int[] paths;
+        /**
+         * {@code null} until the index of the module is loaded, see {@link #index(Module)}
+         */
+        volatile ModuleIndex index;
+        KFzClassLoaderData.KClData data;
+
+        Module(String name, int ordinal, int resourceCount) {
+            this.name = name;
+            this.ordinal = ordinal;
+            this.resourceCount = resourceCount;
+            this.paths = new int[resourceCount];
+        }
+    }
+
+    /**
+     * Resources of a module in parallel arrays, by resource id
+     */
+    static class ModuleIndex {
+        final long[] pointers;
+        final long[] endPointers;
+        final int[] modifiers;
+        /**
+         * Uncompressed sizes, {@code -1} if unknown, and CRC-32C. {@code null} if the image doesn't record them
+         */
+        final long[] sizes;
+        final int[] checksums;
+
+        ModuleIndex(int resourceCount, boolean checksums) {
+            pointers = new long[resourceCount];
+            endPointers = new long[resourceCount];
+            modifiers = new int[resourceCount];
+            this.sizes = checksums ? new long[resourceCount] : null;
+            this.checksums = checksums ? new int[resourceCount] : null;
+        }
+    }
+
+    /**
+     * All distinct paths of the image. The providers of path {@code i} are
+     * {@code [providerOffsets[i], providerOffsets[i + 1])}, in shadowing order.
+     */
+    static class PathIndex {
+        KFzNameTable names;
+        int[] providerOffsets;
+        int[] providerModules;
+        int[] providerEntries;
+    }
+
+    /**
+     * A resource found by a lookup
+     */
+    static final class Entry {
+        final Module module;
+        final int id;
+
+        Entry(Module module, int id) {
+            this.module = module;
+            this.id = id;
+        }
+    }
+
+    static class Pkg {
         String name;
-        Node parent;
-        Map<String, Node> children;
-        int modifiers;
+        /**
+         * Owning modules in shadowing order
+         */
+        Module[] modules;
+        /**
+         * Attributes to define the package with if it's loaded from {@code modules[i]},
+         * {@code null} if the module has no manifest
+         */
+        KFzPackageAttributes[] attributes;
+    }
 
-        long pointer, endPointer;
-        KFzClassLoaderData.KClData data;
+    private final Map<String, Module> moduleByName = new HashMap<>();
+    Module[] modules;
+    /**
+     * v2 sections by id, {pointer, size}
+     */
+    private final Map<Integer, long[]> sections = new HashMap<>();
+    private volatile PathIndex pathIndex;
+    /**
+     * package in internal form -> owning modules, see {@link #packageIndex()}
+     */
+    private volatile Map<String, Pkg> packageIndex;
+    /**
+     * Preset dictionaries by id, see {@link #dictionary(int)}
+     */
+    private volatile byte[][] dictionaries;
+    private volatile BlockTable blockTable;
+    private final long solidCacheSize;
+    private final boolean verifyChecksums;
+    /**
+     * Header flags of a v2 image
+     */
+    private int flags;
+    /**
+     * Decompressed solid blocks by id, in access order
+     */
+    private final LinkedHashMap<Integer, byte[]> solidCache = new LinkedHashMap<>(16, 0.75f, true);
+    private long solidCached;
+
+    /**
+     * Ends its inflater at the end of the data, as streams given to user code are often never closed
+     */
+    static final class EndingGZIPInputStream extends GZIPInputStream {
+        private boolean ended;
+        private boolean closed;
+
+        EndingGZIPInputStream(InputStream in) throws IOException {
+            super(in);
+        }
+
+        @Override
+        public int read(byte[] buf, int off, int len) throws IOException {
+            if (ended) {
+                if (closed) throw new IOException("Stream closed");
+                return len == 0 ? 0 : -1;
+            }
+            int n = super.read(buf, off, len);
+            if (n == -1) {
+                ended = true;
+                inf.end();
+            }
+            return n;
+        }
+
+        @Override
+        public int available() throws IOException {
+            if (ended) return 0;
+            return super.available();
+        }
+
+        @Override
+        public void close() throws IOException {
+            closed = true;
+            super.close();
+        }
     }
 
-    final Node root = new Node();
+    static class BlockTable {
+        final long[] pointers;
+        final long[] endPointers;
+        final int[] sizes;
+        final int[] compressTypes;
 
-    KFzReaderImpl(File file) throws Exception {
+        BlockTable(int count) {
+            pointers = new long[count];
+            endPointers = new long[count];
+            sizes = new int[count];
+            compressTypes = new int[count];
+        }
+    }
+
+    KFzReaderImpl(File file, Options options) throws Exception {
         this.file = file;
-        try (RandomAccessFile dis = new RandomAccessFile(file, "r")) {
-            init(dis);
+        this.solidCacheSize = Math.max(options.solidCacheSize, 0);
+        this.verifyChecksums = options.verifyChecksums;
+        this.access = KFzImageAccess.open(file, options.readMode);
+        try {
+            if (access.size() >= KFzImageFormat.HEADER_SIZE + KFzImageFormat.FOOTER_SIZE
+                    && data(0, 4).readInt() == KFzImageFormat.MAGIC) {
+                initV2(options.openStrategy);
+            } else {
+                try (RandomAccessFile dis = new RandomAccessFile(file, "r")) {
+                    initV1(dis);
+                }
+            }
+        } catch (Throwable throwable) {
+            try {
+                access.close();
+            } catch (Throwable t2) {
+                throwable.addSuppressed(t2);
+            }
+            throw throwable;
         }
     }
 
-    void init(RandomAccessFile dataInput) throws Exception {
-        root.name = "<root>";
-        root.children = new HashMap<>();
+    private DataInputStream data(long pointer, long size) throws IOException {
+        return new DataInputStream(access.open(pointer, size));
+    }
 
-        int moduleCount = dataInput.readInt();
-        while (moduleCount-- > 0) {
-            initModule(dataInput);
+    private DataInputStream section(int id) throws IOException {
+        long[] section = sections.get(id);
+        if (section == null) return null;
+        return data(section[0], section[1]);
+    }
+
+    /**
+     * The content of a v2 section, {@code null} if the image has none
+     */
+    byte[] sectionContent(int id) throws IOException {
+        long[] section = sections.get(id);
+        if (section == null) return null;
+        if (section[1] > Integer.MAX_VALUE - 8) throw new IOException("Section " + id + " too large in " + file);
+        byte[] content = new byte[(int) section[1]];
+        try (DataInputStream input = data(section[0], section[1])) {
+            input.readFully(content);
+        }
+        return content;
+    }
+
+    /**
+     * Digest the whole image as opened, through the access reading its resources
+     */
+    void digestImage(MessageDigest digest) throws IOException {
+        byte[] buffer = new byte[64 * 1024];
+        try (InputStream input = access.open(0, access.size())) {
+            for (int read; (read = input.read(buffer)) != -1; ) {
+                digest.update(buffer, 0, read);
+            }
         }
     }
 
-    void initModule(RandomAccessFile raf) throws Exception {
-        String moduleName = raf.readUTF();
-        if (root.children.containsKey(moduleName)) {
+    private Module newModule(String moduleName, int ordinal, int resourceCount) {
+        Module module = new Module(moduleName, ordinal, resourceCount);
+        if (moduleByName.putIfAbsent(moduleName, module) != null) {
             throw new IllegalStateException("module " + moduleName + " duplicated in " + file);
         }
-        int resourceCount = raf.readInt();
-        Node module = new Node();
-        module.name = moduleName;
-        module.parent = root;
-        module.children = new HashMap<>(resourceCount);
-        root.children.put(moduleName, module);
-        List<Node> resources = new ArrayList<>(resourceCount);
-        while (resourceCount-- > 0) {
-            Node res = new Node();
-            res.name = raf.readUTF();
-
-            while (!res.name.isEmpty() && res.name.charAt(0) == '/')
-                res.name = res.name.substring(1);
-
-            res.pointer = raf.readLong();
-            res.endPointer = raf.readLong();
-            res.modifiers = raf.readInt();
-            resources.add(res);
-        }
-        long contentSize = raf.readLong();
-        long baseOffset = raf.getFilePointer();
-        for (Node res : resources) {
-            res.pointer += baseOffset;
-            res.endPointer += baseOffset;
-            module.children.put(res.name, res);
-            res.parent = module;
-        }
-        raf.seek(raf.getFilePointer() + contentSize);
-    }
-
-    Node rsNode(String path) {
+        return module;
+    }
+
+    void initV2(Options.OpenStrategy strategy) throws Exception {
+        DataInputStream header = data(0, KFzImageFormat.HEADER_SIZE);
+        header.readInt(); // magic
+        int version = header.readUnsignedShort();
+        if (version != KFzImageFormat.VERSION_2) {
+            throw new IllegalStateException("Unsupported image version " + version + " of " + file);
+        }
+        flags = header.readUnsignedShort();
+
+        DataInputStream footer = data(access.size() - KFzImageFormat.FOOTER_SIZE, KFzImageFormat.FOOTER_SIZE);
+        long directoryPointer = footer.readLong();
+        int directorySize = footer.readInt();
+        if (footer.readInt() != KFzImageFormat.MAGIC) {
+            throw new IllegalStateException("Image " + file + " is truncated: footer not found");
+        }
+
+        DataInputStream directory = data(directoryPointer, directorySize);
+        int sectionCount = directory.readInt();
+        while (sectionCount-- > 0) {
+            int id = directory.readInt();
+            long pointer = directory.readLong();
+            long size = directory.readLong();
+            sections.put(id, new long[]{pointer, size});
+        }
+
+        DataInputStream table = section(KFzImageFormat.SECTION_MODULE_TABLE);
+        if (table == null) {
+            throw new IllegalStateException("Missing module table in " + file);
+        }
+        modules = new Module[table.readInt()];
+        for (int i = 0; i < modules.length; i++) {
+            String moduleName = table.readUTF();
+            Module module = modules[i] = newModule(moduleName, i, table.readInt());
+            module.indexPointer = table.readLong();
+            module.indexSize = table.readLong();
+        }
+
+        switch (strategy) {
+            case EAGER:
+                pathIndex();
+                for (Module module : modules) {
+                    index(module);
+                }
+                break;
+            case PARALLEL: {
+                List<ForkJoinTask<?>> tasks = new ArrayList<>(modules.length + 1);
+                tasks.add(ForkJoinPool.commonPool().submit(this::pathIndex));
+                for (Module module : modules) {
+                    tasks.add(ForkJoinPool.commonPool().submit(() -> index(module)));
+                }
+                for (ForkJoinTask<?> task : tasks) {
+                    task.join();
+                }
+                break;
+            }
+            case LAZY:
+                break;
+        }
+    }
+
+    void initV1(RandomAccessFile raf) throws Exception {
+        List<Module> modules = new ArrayList<>();
+        PathIndexBuilder paths = new PathIndexBuilder();
+        int moduleCount = raf.readInt();
+        while (moduleCount-- > 0) {
+            String moduleName = raf.readUTF();
+            Module module = newModule(moduleName, modules.size(), raf.readInt());
+            modules.add(module);
+            ModuleIndex index = readIndex(module, raf, paths, false);
+            long contentSize = raf.readLong();
+            long baseOffset = raf.getFilePointer();
+            for (int i = 0; i < module.resourceCount; i++) {
+                index.pointers[i] += baseOffset;
+                index.endPointers[i] += baseOffset;
+            }
+            module.index = index;
+            raf.seek(raf.getFilePointer() + contentSize);
+        }
+        this.modules = modules.toArray(new Module[0]);
+        this.pathIndex = paths.build();
+    }
+
+    /**
+     * Read a resource index.
+     *
+     * @param paths if not {@code null}, collect resource names into it.
+     *              Otherwise names are skipped and come from the path index section.
+     */
+    private static ModuleIndex readIndex(Module module, DataInput input, PathIndexBuilder paths, boolean checksums) throws IOException {
+        ModuleIndex index = new ModuleIndex(module.resourceCount, checksums);
+        for (int i = 0; i < module.resourceCount; i++) {
+            if (paths != null) {
+                int path = paths.names.intern(stripSlashes(input.readUTF()));
+                module.paths[i] = path;
+                paths.add(path, module.ordinal, i);
+            } else {
+                int len = input.readUnsignedShort();
+                while (len > 0) {
+                    int skipped = input.skipBytes(len);
+                    if (skipped <= 0) throw new IOException("Unexpected end of module index");
+                    len -= skipped;
+                }
+            }
+            index.pointers[i] = input.readLong();
+            index.endPointers[i] = input.readLong();
+            index.modifiers[i] = input.readInt();
+            if (checksums) {
+                index.sizes[i] = input.readLong();
+                index.checksums[i] = input.readInt();
+            }
+        }
+        return index;
+    }
+
+    boolean checksums() {
+        return (flags & KFzImageFormat.FLAG_RESOURCE_CHECKSUMS) != 0;
+    }
+
+    private static String stripSlashes(String name) {
+        int i = 0;
+        while (i < name.length() && name.charAt(i) == '/') i++;
+        return i == 0 ? name : name.substring(i);
+    }
+
+    /**
+     * The resources of {@code module}, reading its index on first access.
+     */
+    ModuleIndex index(Module module) {
+        ModuleIndex index = module.index;
+        if (index != null) return index;
+        synchronized (module) {
+            index = module.index;
+            if (index != null) return index;
+            try {
+                index = readIndex(module, data(module.indexPointer, module.indexSize), null, checksums());
+            } catch (IOException e) {
+                throw new UncheckedIOException("Failed to read index of module " + module.name + " in " + file, e);
+            }
+            return module.index = index;
+        }
+    }
+
+    static class PathIndexBuilder {
+        final KFzNameTable names = new KFzNameTable(1024, 1024 * 32);
+        int[] providers = new int[3 * 1024];
+        int count;
+
+        void add(int path, int module, int entry) {
+            if (count * 3 == providers.length) {
+                providers = Arrays.copyOf(providers, providers.length * 2);
+            }
+            providers[count * 3] = path;
+            providers[count * 3 + 1] = module;
+            providers[count * 3 + 2] = entry;
+            count++;
+        }
+
+        PathIndex build() {
+            PathIndex index = new PathIndex();
+            int pathCount = names.size();
+            names.trim();
+            index.names = names;
+            // Counting sort by path, stable to keep the shadowing order
+            int[] offsets = index.providerOffsets = new int[pathCount + 1];
+            for (int i = 0; i < count; i++) {
+                offsets[providers[i * 3] + 1]++;
+            }
+            for (int i = 0; i < pathCount; i++) {
+                offsets[i + 1] += offsets[i];
+            }
+            int[] next = Arrays.copyOf(offsets, pathCount);
+            index.providerModules = new int[count];
+            index.providerEntries = new int[count];
+            for (int i = 0; i < count; i++) {
+                int pos = next[providers[i * 3]]++;
+                index.providerModules[pos] = providers[i * 3 + 1];
+                index.providerEntries[pos] = providers[i * 3 + 2];
+            }
+            return index;
+        }
+    }
+
+    /**
+     * The global path index, read from the image or built from all module indexes on first access.
+     */
+    PathIndex pathIndex() {
+        PathIndex pathIndex = this.pathIndex;
+        if (pathIndex != null) return pathIndex;
+        synchronized (sections) {
+            pathIndex = this.pathIndex;
+            if (pathIndex != null) return pathIndex;
+            try {
+                DataInputStream input = section(KFzImageFormat.SECTION_PATH_INDEX);
+                if (input != null) {
+                    long length = sections.get(KFzImageFormat.SECTION_PATH_INDEX)[1];
+                    int pathCount = input.readInt();
+                    int providerCount = input.readInt();
+                    // Each path takes at least its name length and provider count, each provider a module and an entry
+                    if (pathCount < 0 || providerCount < 0 || length > Integer.MAX_VALUE
+                            || 8 + 6L * pathCount + 8L * providerCount > length) {
+                        throw corruptPathIndex();
+                    }
+                    pathIndex = new PathIndex();
+                    pathIndex.names = new KFzNameTable(pathCount, (int) length);
+                    pathIndex.providerOffsets = new int[pathCount + 1];
+                    pathIndex.providerModules = new int[providerCount];
+                    pathIndex.providerEntries = new int[providerCount];
+                    int pos = 0;
+                    for (int path = 0; path < pathCount; path++) {
+                        if (pathIndex.names.read(input) != path) throw corruptPathIndex();
+                        pathIndex.providerOffsets[path] = pos;
+                        int providers = input.readInt();
+                        if (providers < 0 || providers > providerCount - pos) throw corruptPathIndex();
+                        while (providers-- > 0) {
+                            int module = input.readInt();
+                            int entry = input.readInt();
+                            if (module < 0 || module >= modules.length
+                                    || entry < 0 || entry >= modules[module].resourceCount) {
+                                throw corruptPathIndex();
+                            }
+                            pathIndex.providerModules[pos] = module;
+                            pathIndex.providerEntries[pos] = entry;
+                            modules[module].paths[entry] = path;
+                            pos++;
+                        }
+                    }
+                    if (pos != providerCount) throw corruptPathIndex();
+                    pathIndex.providerOffsets[pathCount] = pos;
+                    pathIndex.names.trim();
+                } else {
+                    PathIndexBuilder builder = new PathIndexBuilder();
+                    for (Module module : modules) {
+                        synchronized (module) {
+                            ModuleIndex index = readIndex(module, data(module.indexPointer, module.indexSize), builder, checksums());
+                            if (module.index == null) module.index = index;
+                        }
+                    }
+                    pathIndex = builder.build();
+                }
+            } catch (EOFException e) {
+                throw new UncheckedIOException("Failed to read path index of " + file, corruptPathIndex());
+            } catch (IOException e) {
+                throw new UncheckedIOException("Failed to read path index of " + file, e);
+            }
+            return this.pathIndex = pathIndex;
+        }
+    }
+
+    private IOException corruptPathIndex() {
+        return new IOException("Invalid path index, corrupt image " + file);
+    }
+
+    /**
+     * The package table, read from the image or built from module indexes and manifests on first access.
+     */
+    Map<String, Pkg> packageIndex() {
+        Map<String, Pkg> packageIndex = this.packageIndex;
+        if (packageIndex != null) return packageIndex;
+        synchronized (sections) {
+            packageIndex = this.packageIndex;
+            if (packageIndex != null) return packageIndex;
+            try {
+                DataInputStream table = section(KFzImageFormat.SECTION_PACKAGE_TABLE);
+                if (table != null) {
+                    KFzPackageAttributes[] attributes = new KFzPackageAttributes[table.readInt()];
+                    for (int i = 0; i < attributes.length; i++) {
+                        attributes[i] = KFzPackageAttributes.read(table);
+                    }
+                    int packageCount = table.readInt();
+                    packageIndex = new HashMap<>(packageCount);
+                    while (packageCount-- > 0) {
+                        Pkg pkg = new Pkg();
+                        pkg.name = table.readUTF();
+                        int providers = table.readInt();
+                        pkg.modules = new Module[providers];
+                        pkg.attributes = new KFzPackageAttributes[providers];
+                        for (int i = 0; i < providers; i++) {
+                            pkg.modules[i] = modules[table.readInt()];
+                            int attr = table.readInt();
+                            if (attr != -1) pkg.attributes[i] = attributes[attr];
+                        }
+                        packageIndex.put(pkg.name, pkg);
+                    }
+                } else {
+                    packageIndex = new HashMap<>();
+                    for (Module module : modules) {
+                        Manifest manifest = null;
+                        Entry manifestEntry = entry(module, KFzImageFormat.MANIFEST);
+                        if (manifestEntry != null) {
+                            try (InputStream is = resource(manifestEntry)) {
+                                manifest = new Manifest(is);
+                            } catch (IOException malformed) {
+                                manifest = null;
+                            }
+                        }
+                        for (String path : paths(module)) {
+                            String name = KFzImageFormat.packageOf(path);
+                            if (name == null) continue;
+                            Pkg pkg = packageIndex.get(name);
+                            if (pkg == null) {
+                                pkg = new Pkg();
+                                pkg.name = name;
+                                pkg.modules = new Module[0];
+                                pkg.attributes = new KFzPackageAttributes[0];
+                                packageIndex.put(name, pkg);
+                            }
+                            int size = pkg.modules.length;
+                            if (size != 0 && pkg.modules[size - 1] == module) continue;
+                            pkg.modules = Arrays.copyOf(pkg.modules, size + 1);
+                            pkg.attributes = Arrays.copyOf(pkg.attributes, size + 1);
+                            pkg.modules[size] = module;
+                            if (manifest != null) {
+                                pkg.attributes[size] = KFzPackageAttributes.resolve(manifest, name);
+                            }
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException("Failed to read package table of " + file, e);
+            }
+            return this.packageIndex = packageIndex;
+        }
+    }
+
+    /**
+     * The dictionary {@code id}, which is the ordinal of its module, or past the module table for a module
+     * an update removed. All dictionaries of the image are read once on first access.
+     */
+    private byte[] dictionary(int id) throws IOException {
+        byte[][] dictionaries = this.dictionaries;
+        if (dictionaries == null) {
+            synchronized (sections) {
+                dictionaries = this.dictionaries;
+                if (dictionaries == null) {
+                    dictionaries = new byte[modules.length][];
+                    DataInputStream input = section(KFzImageFormat.SECTION_DICTIONARY);
+                    if (input != null) {
+                        int count = input.readInt();
+                        while (count-- > 0) {
+                            int dictionaryId = input.readInt();
+                            byte[] dictionary = new byte[input.readInt()];
+                            input.readFully(dictionary);
+                            if (dictionaryId >= dictionaries.length) {
+                                dictionaries = Arrays.copyOf(dictionaries, dictionaryId + 1);
+                            }
+                            dictionaries[dictionaryId] = dictionary;
+                        }
+                    }
+                    this.dictionaries = dictionaries;
+                }
+            }
+        }
+        byte[] dictionary = id < dictionaries.length ? dictionaries[id] : null;
+        if (dictionary == null) {
+            throw new IOException("Missing dictionary " + id + " in " + file);
+        }
+        return dictionary;
+    }
+
+    private BlockTable blockTable() throws IOException {
+        BlockTable blockTable = this.blockTable;
+        if (blockTable != null) return blockTable;
+        synchronized (sections) {
+            blockTable = this.blockTable;
+            if (blockTable != null) return blockTable;
+            DataInputStream input = section(KFzImageFormat.SECTION_BLOCK_TABLE);
+            if (input == null) {
+                blockTable = new BlockTable(0);
+            } else {
+                blockTable = new BlockTable(input.readInt());
+                for (int i = 0; i < blockTable.pointers.length; i++) {
+                    blockTable.pointers[i] = input.readLong();
+                    blockTable.endPointers[i] = input.readLong();
+                    blockTable.sizes[i] = input.readInt();
+                    blockTable.compressTypes[i] = input.readInt();
+                }
+            }
+            return this.blockTable = blockTable;
+        }
+    }
+
+    /**
+     * The decompressed solid block {@code id}, from the cache if it was read recently.
+     * Concurrent misses of a block may decompress it more than once.
+     */
+    byte[] solidBlock(int id) throws IOException {
+        synchronized (solidCache) {
+            byte[] block = solidCache.get(id);
+            if (block != null) return block;
+        }
+        BlockTable blockTable = blockTable();
+        if (id < 0 || id >= blockTable.pointers.length) {
+            throw new IOException("Missing solid block " + id + " in " + file);
+        }
+        long pointer = blockTable.pointers[id];
+        byte[] block = new byte[blockTable.sizes[id]];
+        InputStream is = access.open(pointer, blockTable.endPointers[id] - pointer);
+        switch (blockTable.compressTypes[id]) {
+            case COMPRESS_TYPE_NONE:
+                break;
+            case COMPRESS_TYPE_DEFL:
+                is = new RawInflaterInputStream(is);
+                break;
+            default:
+                is.close();
+                throw new IOException("Unsupported compress type " + blockTable.compressTypes[id] + " of solid block " + id + " in " + file);
+        }
+        try (DataInputStream input = new DataInputStream(is)) {
+            input.readFully(block);
+        }
+        if (block.length > solidCacheSize) return block;
+        synchronized (solidCache) {
+            if (solidCache.put(id, block) == null) solidCached += block.length;
+            Iterator<byte[]> iterator = solidCache.values().iterator();
+            while (solidCached > solidCacheSize) {
+                solidCached -= iterator.next().length;
+                iterator.remove();
+            }
+        }
+        return block;
+    }
+
+    /**
+     * A solid resource of {start, end} pointers {block id, offset in block << 32 | length}
+     */
+    private ByteBuffer solidContent(long pointer, long endPointer) throws IOException {
+        byte[] block = solidBlock((int) pointer);
+        int offset = (int) (endPointer >>> 32), length = (int) endPointer;
+        if (offset < 0 || length < 0 || offset > block.length - length) {
+            throw new IOException("Solid resource out of block " + pointer + " in " + file);
+        }
+        return ByteBuffer.wrap(block, offset, length);
+    }
+
+    /**
+     * The whole content of {@code entry} without a stream, for {@link ClassLoader#defineClass(String, ByteBuffer, CodeSource)}.
+     * <p>
+     * Stored resources are read-only slices of the mapped image, solid ones slices of the cached block.
+     * Other resources are decompressed into a buffer of the calling thread, only valid until its next call.
+     * That's enough for defineClass, which copies heap buffers before loading the supertypes.
+     *
+     * @return {@code null} if the resource is a directory
+     */
+    ByteBuffer content(Entry entry) throws IOException {
+        return content(entry, false);
+    }
+
+    /**
+     * The content of {@code entry} in an array of its own, allocated once if the index records its size
+     */
+    byte[] bytes(Entry entry) throws IOException {
+        ByteBuffer content = content(entry, true);
+        if (content == null) return null;
+        byte[] array = content.array();
+        if (content.position() == 0 && content.remaining() == array.length) return array;
+        return Arrays.copyOfRange(array, content.position(), content.limit());
+    }
+
+    /**
+     * @param exact return an array of its own, exactly sized if possible
+     */
+    private ByteBuffer content(Entry entry, boolean exact) throws IOException {
+        ByteBuffer content = decode(entry, exact);
+        if (verifyChecksums && content != null) check(entry, content.duplicate());
+        return content;
+    }
+
+    private ByteBuffer decode(Entry entry, boolean exact) throws IOException {
+        ModuleIndex index = index(entry.module);
+        long pointer = index.pointers[entry.id];
+        long endPointer = index.endPointers[entry.id];
+        int compressType = index.modifiers[entry.id] & COMPRESS_TYPE_BITS;
+        if (compressType == COMPRESS_TYPE_SOLID) {
+            ByteBuffer content = solidContent(pointer, endPointer);
+            if (!exact) return content;
+            return ByteBuffer.wrap(Arrays.copyOfRange(content.array(), content.position(), content.limit()));
+        }
+        if (pointer == 0) return null;
+        long size = endPointer - pointer;
+        if (size > Integer.MAX_VALUE - 8) {
+            throw new IOException("Resource " + name(entry) + " too large in " + file);
+        }
+        if (compressType == COMPRESS_TYPE_NONE) {
+            ByteBuffer slice = access.slice(pointer, size);
+            if (slice != null) {
+                if (!exact) return slice;
+                byte[] content = new byte[(int) size];
+                slice.get(content);
+                return ByteBuffer.wrap(content);
+            }
+        } else if (compressType == COMPRESS_TYPE_GZIP) {
+            return TransferKit.read(resource(entry));
+        }
+
+        byte[][] scratch = SCRATCH.get();
+        // One more byte for the nowrap inflater, see RawInflaterInputStream
+        byte[] input = exact && compressType == COMPRESS_TYPE_NONE
+                ? new byte[(int) size]
+                : scratch(scratch, 0, (int) size + 1);
+        try (InputStream is = access.open(pointer, size)) {
+            for (int offset = 0; offset < size; ) {
+                int read = is.read(input, offset, (int) size - offset);
+                if (read == -1) throw new EOFException("Unexpected end of " + file);
+                offset += read;
+            }
+        }
+        switch (compressType) {
+            case COMPRESS_TYPE_NONE:
+                return ByteBuffer.wrap(input, 0, (int) size);
+            case COMPRESS_TYPE_LZ4_: {
+                int length = Lz4Block.uncompressedSize(input, 0, (int) size);
+                byte[] output = exact ? new byte[length] : scratch(scratch, 1, length);
+                Lz4Block.decompressBlock(input, 4, (int) size - 4, output, 0, length);
+                return ByteBuffer.wrap(output, 0, length);
+            }
+            case COMPRESS_TYPE_INF_:
+            case COMPRESS_TYPE_DEFL:
+            case COMPRESS_TYPE_DICT:
+                input[(int) size] = 0;
+                long expected = index.sizes == null ? -1 : index.sizes[entry.id];
+                return inflate(entry, compressType, input, (int) size, expected, exact ? null : scratch);
+        }
+        throw new IOException("Unsupported compress type " + compressType + " of " + name(entry) + " in " + file);
+    }
+
+    /**
+     * @param expected the size told by the index, {@code -1} if unknown
+     * @param scratch  {@code null} to inflate into an array of its own
+     */
+    private ByteBuffer inflate(Entry entry, int compressType, byte[] input, int size, long expected, byte[][] scratch) throws IOException {
+        if (expected > Integer.MAX_VALUE - 8) {
+            throw new IOException("Resource " + name(entry) + " too large in " + file);
+        }
+        InflaterPool pool = compressType == COMPRESS_TYPE_INF_ ? InflaterPool.ZLIB : InflaterPool.RAW;
+        Inflater inflater = pool.acquire();
+        try {
+            if (compressType == COMPRESS_TYPE_DICT) inflater.setDictionary(dictionary(entry));
+            inflater.setInput(input, 0, compressType == COMPRESS_TYPE_INF_ ? size : size + 1);
+            // Most classes deflate to a third or more of their size
+            int initial = expected >= 0 ? (int) expected : Math.max(512, size * 4);
+            byte[] output = scratch == null ? new byte[initial] : scratch(scratch, 1, initial);
+            int length = 0;
+            while (!inflater.finished()) {
+                if (length == output.length) {
+                    if (expected >= 0) {
+                        // The end of the data may still follow the last byte
+                        if (inflater.inflate(new byte[1]) != 0 || !inflater.finished()) break;
+                        continue;
+                    }
+                    output = grow(scratch, output, length);
+                }
+                int read = inflater.inflate(output, length, output.length - length);
+                if (read == 0 && !inflater.finished()) {
+                    throw new EOFException("Truncated deflate data of " + name(entry) + " in " + file);
+                }
+                length += read;
+            }
+            if (expected >= 0 && (length != expected || !inflater.finished())) {
+                throw new IOException("Size mismatch of " + name(entry) + " in " + file);
+            }
+            if (scratch == null && length != output.length) output = Arrays.copyOf(output, length);
+            return ByteBuffer.wrap(output, 0, length);
+        } catch (DataFormatException e) {
+            throw new IOException("Invalid deflate data of " + name(entry) + " in " + file, e);
+        } finally {
+            pool.release(inflater);
+        }
+    }
+
+    /**
+     * Check {@code content} against the size and CRC-32C of the index
+     *
+     * @return {@code false} if the index doesn't record them
+     */
+    private boolean check(Entry entry, ByteBuffer content) throws IOException {
+        ModuleIndex index = index(entry.module);
+        if (index.sizes == null || index.sizes[entry.id] < 0) return false;
+        long size = content.remaining();
+        Crc32c crc = new Crc32c();
+        crc.update(content);
+        if (size != index.sizes[entry.id] || (int) crc.getValue() != index.checksums[entry.id]) {
+            throw new IOException("Checksum mismatch of " + entry.module.name + '/' + name(entry) + " in " + file);
+        }
+        return true;
+    }
+
+    long size(Entry entry) throws IOException {
+        ModuleIndex index = index(entry.module);
+        if (index.sizes != null && index.sizes[entry.id] >= 0) return index.sizes[entry.id];
+        long pointer = index.pointers[entry.id];
+        long endPointer = index.endPointers[entry.id];
+        switch (index.modifiers[entry.id] & COMPRESS_TYPE_BITS) {
+            case COMPRESS_TYPE_SOLID:
+                return (int) endPointer;
+            case COMPRESS_TYPE_NONE:
+                return pointer == 0 ? -1 : endPointer - pointer;
+            case COMPRESS_TYPE_LZ4_:
+                if (pointer == 0 || endPointer - pointer < 4) return -1;
+                return data(pointer, 4).readInt();
+        }
+        return -1;
+    }
+
+    @Override
+    public long size(String module, String path) throws IOException {
+        Entry entry = rsEntry(module, path);
+        return entry == null ? -1 : size(entry);
+    }
+
+    @Override
+    public byte[] readBytes(String module, String path) throws IOException {
+        Entry entry = rsEntry(module, path);
+        return entry == null ? null : bytes(entry);
+    }
+
+    @Override
+    public boolean verify(String module, String path) throws IOException {
+        Entry entry = rsEntry(module, path);
+        if (entry == null) return false;
+        ByteBuffer content = decode(entry, false);
+        return content != null && check(entry, content);
+    }
+
+    /**
+     * Buffers of {@link #content(Entry)}, {compressed, decompressed}
+     */
+    private static final ThreadLocal<byte[][]> SCRATCH = ThreadLocal.withInitial(() -> new byte[2][]);
+    /**
+     * Larger buffers are not kept by the thread
+     */
+    private static final int MAX_SCRATCH = 1 << 20;
+
+    private static byte[] scratch(byte[][] scratch, int i, int size) {
+        byte[] buffer = scratch[i];
+        if (buffer != null && buffer.length >= size) return buffer;
+        buffer = new byte[size];
+        if (size <= MAX_SCRATCH) scratch[i] = buffer;
+        return buffer;
+    }
+
+    /**
+     * Grow the decompressed buffer of {@code scratch}, or an array of its own if {@code scratch} is {@code null}
+     */
+    private static byte[] grow(byte[][] scratch, byte[] buffer, int length) {
+        byte[] grown = Arrays.copyOf(buffer, length > Integer.MAX_VALUE / 2 - 8 ? Integer.MAX_VALUE - 8 : length * 2);
+        if (scratch != null && grown.length <= MAX_SCRATCH) scratch[1] = grown;
+        return grown;
+    }
+
+    /**
+     * The dictionary {@code entry} is deflated with, told by {@link #DICTIONARY_MODULE_SHIFT}
+     */
+    byte[] dictionary(Entry entry) throws IOException {
+        int owner = index(entry.module).modifiers[entry.id] >>> DICTIONARY_MODULE_SHIFT;
+        return dictionary(owner == 0 ? entry.module.ordinal : owner - 1);
+    }
+
+    Module module(String name) {
+        return moduleByName.get(name);
+    }
+
+    /**
+     * The name of resource {@code id} of {@code module}
+     */
+    String name(Module module, int id) {
+        return pathIndex().names.name(module.paths[id]);
+    }
+
+    String name(Entry entry) {
+        return name(entry.module, entry.id);
+    }
+
+    /**
+     * The resource at {@code path} of the first module providing it.
+     */
+    Entry findEntry(String path) {
+        PathIndex index = pathIndex();
+        int id = index.names.find(path);
+        if (id == -1) return null;
+        int pos = index.providerOffsets[id];
+        return new Entry(modules[index.providerModules[pos]], index.providerEntries[pos]);
+    }
+
+    /**
+     * The resources at {@code path} of all modules providing it, in shadowing order.
+     */
+    List<Entry> findEntries(String path) {
+        PathIndex index = pathIndex();
+        int id = index.names.find(path);
+        if (id == -1) return Collections.emptyList();
+        int start = index.providerOffsets[id], end = index.providerOffsets[id + 1];
+        List<Entry> entries = new ArrayList<>(end - start);
+        for (int pos = start; pos < end; pos++) {
+            entries.add(new Entry(modules[index.providerModules[pos]], index.providerEntries[pos]));
+        }
+        return entries;
+    }
+
+    Entry entry(Module module, String path) {
+        PathIndex index = pathIndex();
+        int id = index.names.find(path);
+        if (id == -1) return null;
+        int end = index.providerOffsets[id + 1];
+        for (int pos = index.providerOffsets[id]; pos < end; pos++) {
+            if (index.providerModules[pos] == module.ordinal) {
+                return new Entry(module, index.providerEntries[pos]);
+            }
+        }
+        return null;
+    }
+
+    Entry rsEntry(String path) {
         int index;
         if ((index = path.indexOf('/')) == -1) return null;
         if (path.charAt(0) == '/') return null;
         String module = path.substring(0, index);
         String path0 = path.substring(index + 1);
-        return rsNode(module, path0);
+        return rsEntry(module, path0);
+    }
+
+    Entry rsEntry(String module, String path) {
+        Module m = moduleByName.get(module);
+        if (m == null) return null;
+        return entry(m, path);
+    }
+
+    @Override
+    public List<String> providers(String path) {
+        PathIndex index = pathIndex();
+        int id = index.names.find(path);
+        if (id == -1) return Collections.emptyList();
+        return providers(index, id);
+    }
+
+    private List<String> providers(PathIndex index, int id) {
+        int start = index.providerOffsets[id], end = index.providerOffsets[id + 1];
+        List<String> names = new ArrayList<>(end - start);
+        int last = -1;
+        for (int pos = start; pos < end; pos++) {
+            int module = index.providerModules[pos];
+            if (module == last) continue;
+            names.add(modules[module].name);
+            last = module;
+        }
+        return names;
+    }
+
+    @Override
+    public Map<String, List<String>> duplicates() {
+        PathIndex index = pathIndex();
+        Map<String, List<String>> duplicates = new TreeMap<>();
+        for (int id = 0; id < index.names.size(); id++) {
+            List<String> providers = providers(index, id);
+            if (providers.size() < 2) continue;
+            duplicates.put(index.names.name(id), providers);
+        }
+        return duplicates;
     }
 
     @Override
     public InputStream getResource(String path) throws Exception {
-        return resource(rsNode(path));
+        return resource(rsEntry(path));
     }
 
     @Override
     public List<String> modules() {
-        return new ArrayList<>(root.children.keySet());
+        List<String> names = new ArrayList<>(modules.length);
+        for (Module module : modules) {
+            names.add(module.name);
+        }
+        return names;
     }
 
     @Override
     public List<String> paths(String module) {
-        Node node = root.children.get(module);
-        if (node == null) return null;
-        return new ArrayList<>(node.children.keySet());
+        Module m = moduleByName.get(module);
+        if (m == null) return null;
+        return paths(m);
     }
 
-    Node rsNode(String module, String path) {
-        Node modules = root.children.get(module);
-        if (modules == null) return null;
-        return modules.children.get(path);
+    List<String> paths(Module module) {
+        KFzNameTable names = pathIndex().names;
+        Map<String, Boolean> paths = new LinkedHashMap<>(module.resourceCount);
+        for (int path : module.paths) {
+            paths.put(names.name(path), Boolean.TRUE);
+        }
+        return new ArrayList<>(paths.keySet());
     }
 
     public InputStream resource(String module, String path) throws Exception {
-        return resource(rsNode(module, path));
+        return resource(rsEntry(module, path));
+    }
+
+    @Override
+    public void close() throws IOException {
+        access.close();
     }
 
-    InputStream resource(Node res) throws Exception {
-        if (res == null) return null;
-        if (res.pointer == 0) return null;
-        if (res.pointer == res.endPointer) return EmptyStream.EMPTY_INPUT_STREAM;
-        RandomAccessFile stream = new RandomAccessFile(file, "r");
+    InputStream resource(Entry entry) throws IOException {
+        if (entry == null) return null;
+        ModuleIndex index = index(entry.module);
+        long pointer = index.pointers[entry.id];
+        long endPointer = index.endPointers[entry.id];
+        if ((index.modifiers[entry.id] & COMPRESS_TYPE_BITS) == COMPRESS_TYPE_SOLID) {
+            ByteBuffer content = solidContent(pointer, endPointer);
+            return new ByteArrayInputStream(content.array(), content.position(), content.remaining());
+        }
+        if (pointer == 0) return null;
+        if (pointer == endPointer) return EmptyStream.EMPTY_INPUT_STREAM;
+        InputStream base = access.open(pointer, endPointer - pointer);
         try {
-            stream.seek(res.pointer);
-            InputStream base = new LimitedInputStream(
-                    new RAFInputStream(stream),
-                    res.endPointer - res.pointer
-            );
-            switch (res.modifiers & COMPRESS_TYPE_BITS) {
+            switch (index.modifiers[entry.id] & COMPRESS_TYPE_BITS) {
                 case COMPRESS_TYPE_INF_:
-                    base = new InflaterInputStream(base);
-                    break;
+                    return new BufferedInputStream(new PooledInflaterInputStream(base, InflaterPool.ZLIB));
                 case COMPRESS_TYPE_GZIP:
-                    base = new GZIPInputStream(base);
-                    break;
+                    return new BufferedInputStream(new EndingGZIPInputStream(base));
+                case COMPRESS_TYPE_DEFL:
+                    return new BufferedInputStream(new RawInflaterInputStream(base));
+                case COMPRESS_TYPE_DICT:
+                    return new BufferedInputStream(new RawInflaterInputStream(base, dictionary(entry)));
+                case COMPRESS_TYPE_LZ4_: {
+                    byte[] compressed = new byte[(int) (endPointer - pointer)];
+                    try (DataInputStream is = new DataInputStream(base)) {
+                        is.readFully(compressed);
+                    }
+                    return new ByteArrayInputStream(Lz4Block.decompress(compressed));
+                }
             }
-            return new BufferedInputStream(base);
+            return base;
         } catch (Throwable throwable) {
             try {
-                stream.close();
+                base.close();
             } catch (Throwable t2) {
                 throwable.addSuppressed(t2);
             }
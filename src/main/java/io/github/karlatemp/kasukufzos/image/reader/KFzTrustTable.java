@@ -0,0 +1,235 @@
+/*
+ * Copyright (c) 2018-2021 Karlatemp and contributors. All rights reserved.
+ *
+ * Use of this source code is governed by the MIT license that can be found via the following link.
+ *
+ * https://github.com/KasukuSakura/kasuku-fzos/blob/master/LICENSE
+ */
+
+package io.github.karlatemp.kasukufzos.image.reader;
+
+import io.github.karlatemp.kasukufzos.image.KFzImageFormat;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.*;
+import java.security.CodeSource;
+import java.security.MessageDigest;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateFactory;
+import java.util.*;
+import java.util.jar.Attributes;
+import java.util.jar.Manifest;
+
+/**
+ * The certificates and the manifest digests of the signed resources of an image,
+ * resolved by verifying the image when it's built, see {@link KFzImageFormat#SECTION_TRUST_TABLE}.
+ * <p>
+ * The table ends with a HMAC-SHA256 of it and the names of the resources of its modules under a key given
+ * to both the writer and the class loader. {@link KFzClassLoader.Options.SignAction#TRUST_TABLE} takes the CodeSources
+ * from a table that authenticates instead of verifying the signature files and the manifests,
+ * and checks each resource against its digests when it's first read.
+ */
+public final class KFzTrustTable {
+    private static final String MAC = "HmacSHA256";
+    private static final int MAC_SIZE = 32;
+
+    static class ModuleTrust {
+        int module;
+        /**
+         * Certificates of each group, then the resource ids it covers
+         */
+        int[][] groupCertificates;
+        int[][] groupEntries;
+        /**
+         * The {@code *-Digest} attributes of the manifest section of each resource by id, {@code null} if it's unsigned
+         */
+        Attributes[] digests;
+    }
+
+    final Certificate[] certificates;
+    final Map<Integer, ModuleTrust> modules;
+
+    private KFzTrustTable(Certificate[] certificates, Map<Integer, ModuleTrust> modules) {
+        this.certificates = certificates;
+        this.modules = modules;
+    }
+
+    /**
+     * Verify the signed modules of {@code image} as {@link KFzClassLoader.Options.SignAction#THROW_ON_FAILURE}
+     * and build the content of its trust table, authenticated with {@code key}. Modules without signers are left out.
+     */
+    public static byte[] build(File image, byte[] key) throws Exception {
+        try (KFzReader kFzReader = KFzReader.from(image)) {
+            KFzReaderImpl reader = (KFzReaderImpl) kFzReader;
+            KFzClassLoader.Options options = new KFzClassLoader.Options();
+            options.signAction = KFzClassLoader.Options.SignAction.THROW_ON_FAILURE;
+            options.publiclyModules = null;
+            new KFzClassLoader(null, reader, options);
+
+            Map<Certificate, Integer> certificates = new LinkedHashMap<>();
+            List<Integer> trusted = new ArrayList<>();
+            ByteArrayOutputStream modules = new ByteArrayOutputStream();
+            DataOutputStream dos = new DataOutputStream(modules);
+            for (KFzReaderImpl.Module module : reader.modules) {
+                KFzClassLoaderData.KClData data = module.data;
+                // Unsigned, or without a manifest
+                if (data.signers == null || data.signers.length == 0 || data.entryCs == null) continue;
+                Manifest manifest;
+                try (InputStream input = reader.resource(reader.entry(module, KFzImageFormat.MANIFEST))) {
+                    manifest = new Manifest(input);
+                }
+                trusted.add(module.ordinal);
+                dos.writeInt(module.ordinal);
+                Map<CodeSource, List<Integer>> groups = new LinkedHashMap<>();
+                for (int id = 0; id < data.entryCs.length; id++) {
+                    CodeSource source = data.entryCs[id];
+                    if (source != null) groups.computeIfAbsent(source, k -> new ArrayList<>()).add(id);
+                }
+                dos.writeInt(groups.size());
+                for (Map.Entry<CodeSource, List<Integer>> group : groups.entrySet()) {
+                    Certificate[] chain = group.getKey().getCertificates();
+                    dos.writeInt(chain.length);
+                    for (Certificate certificate : chain) {
+                        dos.writeInt(certificates.computeIfAbsent(certificate, k -> certificates.size()));
+                    }
+                    dos.writeInt(group.getValue().size());
+                    for (int id : group.getValue()) {
+                        dos.writeInt(id);
+                        Map<String, String> digests = new LinkedHashMap<>();
+                        Attributes section = manifest.getAttributes(reader.name(module, id));
+                        for (Map.Entry<Object, Object> attribute : section == null ? Collections.<Map.Entry<Object, Object>>emptySet() : section.entrySet()) {
+                            String type = attribute.getKey().toString();
+                            if (type.endsWith("-Digest")) digests.put(type, attribute.getValue().toString());
+                        }
+                        if (digests.isEmpty()) {
+                            throw new IllegalStateException("No manifest digest of the signed " + module.name + '/' + reader.name(module, id));
+                        }
+                        dos.writeShort(digests.size());
+                        for (Map.Entry<String, String> digest : digests.entrySet()) {
+                            dos.writeUTF(digest.getKey());
+                            dos.writeUTF(digest.getValue());
+                        }
+                    }
+                }
+            }
+
+            ByteArrayOutputStream table = new ByteArrayOutputStream();
+            DataOutputStream output = new DataOutputStream(table);
+            output.writeInt(certificates.size());
+            for (Certificate certificate : certificates.keySet()) {
+                byte[] encoded = certificate.getEncoded();
+                output.writeInt(encoded.length);
+                output.write(encoded);
+            }
+            output.writeInt(trusted.size());
+            modules.writeTo(output);
+            output.write(mac(key, reader, table.toByteArray(), table.size(), trusted));
+            return table.toByteArray();
+        }
+    }
+
+    /**
+     * Read the trust table of {@code reader} and authenticate it with {@code key}
+     *
+     * @return {@code null} if the image has none
+     * @throws SecurityException if the table doesn't authenticate or doesn't match the image
+     */
+    static KFzTrustTable read(KFzReaderImpl reader, byte[] key) throws Exception {
+        byte[] table = reader.sectionContent(KFzImageFormat.SECTION_TRUST_TABLE);
+        if (table == null) return null;
+        if (table.length < MAC_SIZE) {
+            throw new SecurityException("Invalid trust table in " + reader.file);
+        }
+        DataInputStream input = new DataInputStream(new ByteArrayInputStream(table, 0, table.length - MAC_SIZE));
+        try {
+            byte[][] encodedCertificates = new byte[input.readInt()][];
+            for (int i = 0; i < encodedCertificates.length; i++) {
+                encodedCertificates[i] = new byte[input.readInt()];
+                input.readFully(encodedCertificates[i]);
+            }
+            Map<Integer, ModuleTrust> modules = new HashMap<>();
+            List<Integer> trusted = new ArrayList<>();
+            for (int i = input.readInt(); i > 0; i--) {
+                ModuleTrust trust = new ModuleTrust();
+                trust.module = input.readInt();
+                if (trust.module < 0 || trust.module >= reader.modules.length || modules.put(trust.module, trust) != null) {
+                    throw new SecurityException("Invalid trust table in " + reader.file);
+                }
+                trusted.add(trust.module);
+                int resourceCount = reader.modules[trust.module].resourceCount;
+                trust.digests = new Attributes[resourceCount];
+                int groups = input.readInt();
+                trust.groupCertificates = new int[groups][];
+                trust.groupEntries = new int[groups][];
+                for (int g = 0; g < groups; g++) {
+                    int[] groupCertificates = trust.groupCertificates[g] = new int[input.readInt()];
+                    for (int c = 0; c < groupCertificates.length; c++) {
+                        groupCertificates[c] = checkIndex(reader, input.readInt(), encodedCertificates.length);
+                    }
+                    int[] entries = trust.groupEntries[g] = new int[input.readInt()];
+                    for (int e = 0; e < entries.length; e++) {
+                        int id = entries[e] = checkIndex(reader, input.readInt(), resourceCount);
+                        Attributes digests = new Attributes();
+                        for (int d = input.readUnsignedShort(); d > 0; d--) {
+                            digests.putValue(input.readUTF(), input.readUTF());
+                        }
+                        if (digests.isEmpty() || trust.digests[id] != null) {
+                            throw new SecurityException("Invalid trust table in " + reader.file);
+                        }
+                        trust.digests[id] = digests;
+                    }
+                }
+            }
+            if (input.available() != 0) throw new SecurityException("Invalid trust table in " + reader.file);
+
+            byte[] mac = mac(key, reader, table, table.length - MAC_SIZE, trusted);
+            if (!MessageDigest.isEqual(mac, Arrays.copyOfRange(table, table.length - MAC_SIZE, table.length))) {
+                throw new SecurityException("Trust table doesn't authenticate or doesn't match the content of " + reader.file);
+            }
+            CertificateFactory factory = CertificateFactory.getInstance("X509");
+            Certificate[] certificates = new Certificate[encodedCertificates.length];
+            for (int i = 0; i < certificates.length; i++) {
+                certificates[i] = factory.generateCertificate(new ByteArrayInputStream(encodedCertificates[i]));
+            }
+            return new KFzTrustTable(certificates, modules);
+        } catch (IOException | IllegalArgumentException e) {
+            throw new SecurityException("Invalid trust table in " + reader.file, e);
+        }
+    }
+
+    private static int checkIndex(KFzReaderImpl reader, int index, int bound) {
+        if (index < 0 || index >= bound) throw new SecurityException("Invalid trust table in " + reader.file);
+        return index;
+    }
+
+    /**
+     * HMAC-SHA256 of the table, then of the name and the paths of the resources of each trusted module
+     */
+    private static byte[] mac(byte[] key, KFzReaderImpl reader, byte[] table, int length, List<Integer> trusted) throws Exception {
+        Mac mac = Mac.getInstance(MAC);
+        mac.init(new SecretKeySpec(key, MAC));
+        mac.update(table, 0, length);
+        DataOutputStream dos = new DataOutputStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+                mac.update((byte) b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                mac.update(b, off, len);
+            }
+        });
+        for (int ordinal : trusted) {
+            KFzReaderImpl.Module module = reader.modules[ordinal];
+            dos.writeUTF(module.name);
+            dos.writeInt(module.resourceCount);
+            for (int id = 0; id < module.resourceCount; id++) {
+                dos.writeUTF(reader.name(module, id));
+            }
+        }
+        dos.flush();
+        return mac.doFinal();
+    }
+}
@@ -17,26 +17,51 @@ import java.net.URLStreamHandler;
 
 public class KFzUrlStreamHandler extends URLStreamHandler {
     final KFzReaderImpl reader;
+    /**
+     * Verifies the resources read, {@code null} if they are read as they are
+     */
+    final KFzClassLoaderData loaderData;
 
     public KFzUrlStreamHandler(KFzReader reader) {
+        this(reader, null);
+    }
+
+    KFzUrlStreamHandler(KFzReader reader, KFzClassLoaderData loaderData) {
         this.reader = (KFzReaderImpl) reader;
+        this.loaderData = loaderData;
     }
 
     @Override
     protected URLConnection openConnection(URL u) throws IOException {
-        KFzReaderImpl.Node node = reader.rsNode(u.getPath());
-        if (node == null) throw new FileNotFoundException(u.getPath());
+        KFzReaderImpl.Entry entry = reader.rsEntry(u.getPath());
+        if (entry == null) throw new FileNotFoundException(u.getPath());
         return new URLConnection(u) {
             @Override
             public void connect() throws IOException {
             }
 
+            @Override
+            public long getContentLengthLong() {
+                try {
+                    return reader.size(entry);
+                } catch (IOException e) {
+                    return -1;
+                }
+            }
+
+            @Override
+            public int getContentLength() {
+                long length = getContentLengthLong();
+                return length > Integer.MAX_VALUE ? -1 : (int) length;
+            }
+
             @Override
             public InputStream getInputStream() throws IOException {
                 try {
-                    return reader.resource(node);
-                } catch (IOException ioe) {
-                    throw ioe;
+                    if (loaderData != null) return loaderData.resource(entry);
+                    return reader.resource(entry);
+                } catch (IOException | SecurityException e) {
+                    throw e;
                 } catch (Exception e) {
                     throw new IOException(e);
                 }
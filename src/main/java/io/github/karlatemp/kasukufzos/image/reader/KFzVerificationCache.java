@@ -0,0 +1,212 @@
+/*
+ * Copyright (c) 2018-2021 Karlatemp and contributors. All rights reserved.
+ *
+ * Use of this source code is governed by the MIT license that can be found via the following link.
+ *
+ * https://github.com/KasukuSakura/kasuku-fzos/blob/master/LICENSE
+ */
+
+package io.github.karlatemp.kasukufzos.image.reader;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.CodeSource;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateFactory;
+import java.util.*;
+
+/**
+ * The certificates of each resource resolved by verifying an image, saved to skip verifying it again,
+ * see {@link KFzClassLoader.Options#verificationCache}.
+ * <p>
+ * The cache holds one image, keyed by the SHA-256 of the whole image and of the sign action, the publicly
+ * certificate and the publicly modules it was verified with, and ends with a HMAC-SHA256 of its content under
+ * {@link KFzClassLoader.Options#verificationCacheKey}.
+ * A cache that doesn't match or can't be read is ignored and replaced once the image is verified.
+ */
+final class KFzVerificationCache {
+    private static final int MAGIC = 0x4B465A56; // "KFZV"
+    private static final int VERSION = 2;
+    private static final String MAC = "HmacSHA256";
+    private static final int MAC_SIZE = 32;
+
+    private KFzVerificationCache() {
+    }
+
+    /**
+     * SHA-256 of what the cache of the image opened by {@code reader} is valid for:
+     * the whole image, read through the reader, and the options it's verified with
+     *
+     * @return {@code null} if the image can't be read
+     */
+    static byte[] fingerprint(KFzReaderImpl reader, String signAction, Certificate publiclyCertificate,
+                              Collection<String> publiclyModules) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            DataOutputStream output = new DataOutputStream(new DigestOutputStream(new ByteArrayOutputStream(), digest));
+            output.writeUTF(signAction);
+            if (publiclyCertificate == null) {
+                output.writeInt(-1);
+            } else {
+                byte[] encoded = publiclyCertificate.getEncoded();
+                output.writeInt(encoded.length);
+                output.write(encoded);
+            }
+            if (publiclyModules == null) {
+                output.writeInt(-1);
+            } else {
+                Set<String> modules = new TreeSet<>(publiclyModules);
+                output.writeInt(modules.size());
+                for (String module : modules) output.writeUTF(module);
+            }
+            output.flush();
+            reader.digestImage(digest);
+            return digest.digest();
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     * The certificates of each resource by module ordinal, {@code null} for a module without signed resources
+     *
+     * @return {@code null} if there is no cache, or it doesn't match, authenticate or parse
+     */
+    static List<Certificate>[][] read(File cache, byte[] key, byte[] fingerprint, KFzReaderImpl reader) {
+        try {
+            if (!cache.isFile()) return null;
+            byte[] content = Files.readAllBytes(cache.toPath());
+            if (content.length < MAC_SIZE) return null;
+            byte[] mac = mac(key, content, content.length - MAC_SIZE);
+            if (!MessageDigest.isEqual(mac, Arrays.copyOfRange(content, content.length - MAC_SIZE, content.length))) {
+                return null;
+            }
+            DataInputStream input = new DataInputStream(new ByteArrayInputStream(content, 0, content.length - MAC_SIZE));
+            if (input.readInt() != MAGIC || input.readInt() != VERSION) return null;
+            byte[] imageFingerprint = new byte[fingerprint.length];
+            input.readFully(imageFingerprint);
+            if (!MessageDigest.isEqual(imageFingerprint, fingerprint)) return null;
+            CertificateFactory factory = CertificateFactory.getInstance("X509");
+            Certificate[] certificates = new Certificate[input.readInt()];
+            for (int i = 0; i < certificates.length; i++) {
+                byte[] encoded = new byte[input.readInt()];
+                input.readFully(encoded);
+                certificates[i] = factory.generateCertificate(new ByteArrayInputStream(encoded));
+            }
+            if (input.readInt() != reader.modules.length) return null;
+            List<Certificate>[][] modules = newModules(reader.modules.length);
+            for (KFzReaderImpl.Module module : reader.modules) {
+                if (!input.readUTF().equals(module.name) || input.readInt() != module.resourceCount) return null;
+                int groups = input.readInt();
+                if (groups == 0) continue;
+                List<Certificate>[] entries = modules[module.ordinal] = newEntries(module.resourceCount);
+                while (groups-- > 0) {
+                    List<Certificate> chain = new ArrayList<>();
+                    for (int i = input.readInt(); i > 0; i--) {
+                        chain.add(certificates[input.readInt()]);
+                    }
+                    for (int i = input.readInt(); i > 0; i--) {
+                        entries[input.readInt()] = new ArrayList<>(chain);
+                    }
+                }
+            }
+            if (input.available() != 0) return null;
+            return modules;
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     * Save the CodeSources of the verified modules of {@code reader}, without the publicly certificate.
+     * It's only an optimization, failing to write it is ignored.
+     */
+    static void write(File cache, byte[] key, byte[] fingerprint, KFzReaderImpl reader,
+                      Certificate publiclyCertificate) throws Exception {
+        Map<Certificate, Integer> certificates = new LinkedHashMap<>();
+        ByteArrayOutputStream modules = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(modules);
+        dos.writeInt(reader.modules.length);
+        for (KFzReaderImpl.Module module : reader.modules) {
+            dos.writeUTF(module.name);
+            dos.writeInt(module.resourceCount);
+            CodeSource[] entryCs = module.data == null ? null : module.data.entryCs;
+            Map<CodeSource, List<Integer>> groups = new LinkedHashMap<>();
+            if (entryCs != null) {
+                for (int id = 0; id < entryCs.length; id++) {
+                    if (entryCs[id] != null) groups.computeIfAbsent(entryCs[id], k -> new ArrayList<>()).add(id);
+                }
+            }
+            List<int[]> chains = new ArrayList<>();
+            List<List<Integer>> covered = new ArrayList<>();
+            for (Map.Entry<CodeSource, List<Integer>> group : groups.entrySet()) {
+                List<Integer> chain = new ArrayList<>();
+                for (Certificate certificate : group.getKey().getCertificates()) {
+                    if (certificate == publiclyCertificate) continue;
+                    chain.add(certificates.computeIfAbsent(certificate, k -> certificates.size()));
+                }
+                if (chain.isEmpty()) continue;
+                int[] indexes = new int[chain.size()];
+                for (int i = 0; i < indexes.length; i++) indexes[i] = chain.get(i);
+                chains.add(indexes);
+                covered.add(group.getValue());
+            }
+            dos.writeInt(chains.size());
+            for (int i = 0; i < chains.size(); i++) {
+                dos.writeInt(chains.get(i).length);
+                for (int index : chains.get(i)) dos.writeInt(index);
+                dos.writeInt(covered.get(i).size());
+                for (int id : covered.get(i)) dos.writeInt(id);
+            }
+        }
+
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        DataOutputStream output = new DataOutputStream(content);
+        output.writeInt(MAGIC);
+        output.writeInt(VERSION);
+        output.write(fingerprint);
+        output.writeInt(certificates.size());
+        for (Certificate certificate : certificates.keySet()) {
+            byte[] encoded = certificate.getEncoded();
+            output.writeInt(encoded.length);
+            output.write(encoded);
+        }
+        modules.writeTo(output);
+        output.write(mac(key, content.toByteArray(), content.size()));
+
+        File temp = new File(cache.getPath() + ".tmp");
+        try {
+            Files.write(temp.toPath(), content.toByteArray());
+            try {
+                Files.move(temp.toPath(), cache.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException atomicMoveFailed) {
+                Files.move(temp.toPath(), cache.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException ignored) {
+            //noinspection ResultOfMethodCallIgnored
+            temp.delete();
+        }
+    }
+
+    private static byte[] mac(byte[] key, byte[] content, int length) throws Exception {
+        Mac mac = Mac.getInstance(MAC);
+        mac.init(new SecretKeySpec(key, MAC));
+        mac.update(content, 0, length);
+        return mac.doFinal();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<Certificate>[][] newModules(int size) {
+        return (List<Certificate>[][]) new List<?>[size][];
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<Certificate>[] newEntries(int size) {
+        return (List<Certificate>[]) new List<?>[size];
+    }
+}
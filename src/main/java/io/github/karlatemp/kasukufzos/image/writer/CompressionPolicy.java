@@ -0,0 +1,211 @@
+/*
+ * Copyright (c) 2018-2021 Karlatemp and contributors. All rights reserved.
+ *
+ * Use of this source code is governed by the MIT license that can be found via the following link.
+ *
+ * https://github.com/KasukuSakura/kasuku-fzos/blob/master/LICENSE
+ */
+
+package io.github.karlatemp.kasukufzos.image.writer;
+
+import io.github.karlatemp.kasukufzos.image.reader.KFzReader;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.zip.Deflater;
+
+/**
+ * Decides how the resources added by {@link KFzWriter.KFZModuleWriter#addResource(String, java.util.concurrent.Callable)}
+ * are compressed. The chosen compress type is recorded in the modifiers of the resource.
+ * <p>
+ * Methods may be called from multiple threads at once.
+ */
+public abstract class CompressionPolicy {
+
+    public static final class Method {
+        public static final Method STORE = new Method(KFzReader.COMPRESS_TYPE_NONE, 0);
+
+        final int compressType;
+        final int level;
+
+        private Method(int compressType, int level) {
+            this.compressType = compressType;
+            this.level = level;
+        }
+
+        /**
+         * Raw DEFLATE, see {@link KFzReader#COMPRESS_TYPE_DEFL}
+         *
+         * @param level {@link Deflater#DEFAULT_COMPRESSION} or {@code 0-9}
+         */
+        public static Method deflate(int level) {
+            return new Method(KFzReader.COMPRESS_TYPE_DEFL, checkLevel(level));
+        }
+
+        private static int checkLevel(int level) {
+            if (level != Deflater.DEFAULT_COMPRESSION && (level < 0 || level > 9)) {
+                throw new IllegalArgumentException("Invalid deflate level: " + level);
+            }
+            return level;
+        }
+
+        /**
+         * {@link KFzReader#COMPRESS_TYPE_LZ4_}, faster to load than deflate at a lower ratio
+         */
+        public static Method lz4() {
+            return LZ4;
+        }
+
+        private static final Method LZ4 = new Method(KFzReader.COMPRESS_TYPE_LZ4_, 0);
+
+        /**
+         * Raw DEFLATE with a preset dictionary trained from the resources of the module using this method,
+         * see {@link KFzReader#COMPRESS_TYPE_DICT}. Meant for small resources sharing a lot, like classes.
+         * <p>
+         * These resources are written when the module is complete. They are deflated without dictionary
+         * if {@link KFzWriter.Options#dictionarySize} is {@code 0} or the module has too few of them.
+         *
+         * @param level {@link Deflater#DEFAULT_COMPRESSION} or {@code 0-9}
+         */
+        public static Method dictionary(int level) {
+            return new Method(KFzReader.COMPRESS_TYPE_DICT, checkLevel(level));
+        }
+
+        /**
+         * Packed with the following resources of the module using this method into blocks of about
+         * {@link KFzWriter.Options#solidBlockSize}, each block raw deflated, see {@link KFzReader#COMPRESS_TYPE_SOLID}.
+         * Meant for many tiny resources read together, like the classes of a package.
+         * <p>
+         * Resources are deflated on their own if {@link KFzWriter.Options#solidBlockSize} is {@code 0}.
+         *
+         * @param level {@link Deflater#DEFAULT_COMPRESSION} or {@code 0-9}
+         */
+        public static Method solid(int level) {
+            return new Method(KFzReader.COMPRESS_TYPE_SOLID, checkLevel(level));
+        }
+
+        public int compressType() {
+            return compressType;
+        }
+
+        public int level() {
+            return level;
+        }
+
+        @Override
+        public String toString() {
+            switch (compressType) {
+                case KFzReader.COMPRESS_TYPE_NONE:
+                    return "store";
+                case KFzReader.COMPRESS_TYPE_LZ4_:
+                    return "lz4";
+                case KFzReader.COMPRESS_TYPE_DICT:
+                    return "dictionary(" + level + ")";
+                case KFzReader.COMPRESS_TYPE_SOLID:
+                    return "solid(" + level + ")";
+                default:
+                    return "deflate(" + level + ")";
+            }
+        }
+    }
+
+    /**
+     * How to compress {@code path} of {@code module}, {@code size} bytes before compression
+     */
+    public abstract Method method(String module, String path, long size);
+
+    /**
+     * Whether the compressed form of the resource is kept, otherwise the resource is stored.
+     */
+    public boolean accept(String module, String path, long size, long compressedSize) {
+        return compressedSize < size;
+    }
+
+    public static CompressionPolicy defaults() {
+        return new Rules();
+    }
+
+    /**
+     * Chooses by module, then by file extension, then by size, then {@link #defaultMethod}.
+     */
+    public static class Rules extends CompressionPolicy {
+        /**
+         * Extensions of formats that are compressed already
+         */
+        public static final String[] COMPRESSED_FORMATS = {
+                "png", "jpg", "jpeg", "gif", "webp",
+                "jar", "zip", "war", "gz", "tgz", "bz2", "xz", "lz4", "zst", "7z",
+                "woff", "woff2", "mp3", "mp4", "ogg",
+        };
+
+        public Method defaultMethod = Method.deflate(Deflater.DEFAULT_COMPRESSION);
+        /**
+         * Extension in lower case without the dot -> method
+         */
+        public final Map<String, Method> extensions = new HashMap<>();
+        /**
+         * Resources smaller than this without extension rule use {@link #smallMethod}
+         */
+        public int smallSize = 4096;
+        public Method smallMethod = Method.dictionary(Deflater.DEFAULT_COMPRESSION);
+        /**
+         * Store a resource if compression saves less than this percent of it
+         */
+        public int minSavings = 5;
+        /**
+         * Module name -> policy used for all resources of the module instead
+         */
+        public final Map<String, CompressionPolicy> modules = new HashMap<>();
+
+        public Rules() {
+            for (String ext : COMPRESSED_FORMATS) {
+                extensions.put(ext, Method.STORE);
+            }
+        }
+
+        @Override
+        public Method method(String module, String path, long size) {
+            CompressionPolicy override = modules.get(module);
+            if (override != null) return override.method(module, path, size);
+            int dot = path.lastIndexOf('.');
+            if (dot != -1 && dot > path.lastIndexOf('/')) {
+                Method method = extensions.get(path.substring(dot + 1).toLowerCase(Locale.ROOT));
+                if (method != null) return method;
+            }
+            if (size < smallSize) return smallMethod;
+            return defaultMethod;
+        }
+
+        @Override
+        public boolean accept(String module, String path, long size, long compressedSize) {
+            CompressionPolicy override = modules.get(module);
+            if (override != null) return override.accept(module, path, size, compressedSize);
+            return compressedSize * 100 <= size * (100L - minSavings);
+        }
+
+        @Override
+        public String toString() {
+            return "Rules{default=" + defaultMethod + ", extensions=" + extensions
+                    + ", small=" + smallMethod + " below " + smallSize
+                    + ", minSavings=" + minSavings + "%, modules=" + modules.keySet() + '}';
+        }
+    }
+
+    /**
+     * A policy using {@code method} for every resource, keeping the compressed form whenever it's smaller
+     */
+    public static CompressionPolicy of(Method method) {
+        return new CompressionPolicy() {
+            @Override
+            public Method method(String module, String path, long size) {
+                return method;
+            }
+
+            @Override
+            public String toString() {
+                return method.toString();
+            }
+        };
+    }
+}
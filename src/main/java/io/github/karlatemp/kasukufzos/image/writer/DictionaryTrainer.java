@@ -0,0 +1,168 @@
+/*
+ * Copyright (c) 2018-2021 Karlatemp and contributors. All rights reserved.
+ *
+ * Use of this source code is governed by the MIT license that can be found via the following link.
+ *
+ * https://github.com/KasukuSakura/kasuku-fzos/blob/master/LICENSE
+ */
+
+package io.github.karlatemp.kasukufzos.image.writer;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Builds a preset deflate dictionary from sample resources.
+ * <p>
+ * Every 8-byte sequence is weighted by the number of samples containing it. The best
+ * {@link #SEGMENT}-byte window of each {@link #EPOCH} of the samples is a candidate, and
+ * candidates are picked greedily, best first, not counting sequences already in the dictionary.
+ * The best segments end up at the end of the dictionary, closest to the compressed data.
+ */
+final class DictionaryTrainer {
+    private static final int K = 8;
+    static final int SEGMENT = 64;
+    static final int EPOCH = 1024;
+    /**
+     * Samples beyond this are skipped evenly
+     */
+    static final int MAX_SAMPLE = 1 << 20;
+
+    private final List<byte[]> samples;
+    private long[] keys;
+    /**
+     * Samples containing the sequence, {@code 0} for empty slots
+     */
+    private int[] frequencies;
+    private int[] lastSample;
+    private int mask;
+
+    private DictionaryTrainer(List<byte[]> samples) {
+        this.samples = samples;
+    }
+
+    /**
+     * @return the dictionary, or {@code null} if the samples share nothing worth it
+     */
+    static byte[] train(List<byte[]> resources, int dictionarySize) {
+        long total = 0;
+        for (byte[] resource : resources) total += resource.length;
+        long stride = Math.max(1, (total + MAX_SAMPLE - 1) / MAX_SAMPLE);
+        List<byte[]> samples = new ArrayList<>();
+        for (int i = 0; i < resources.size(); i += stride) {
+            if (resources.get(i).length >= SEGMENT) samples.add(resources.get(i));
+        }
+        if (samples.size() < 2) return null;
+        return new DictionaryTrainer(samples).train(dictionarySize);
+    }
+
+    private static long sequence(byte[] data, int i) {
+        return ((data[i] & 0xFFL) << 56) | ((data[i + 1] & 0xFFL) << 48)
+                | ((data[i + 2] & 0xFFL) << 40) | ((data[i + 3] & 0xFFL) << 32)
+                | ((data[i + 4] & 0xFFL) << 24) | ((data[i + 5] & 0xFFL) << 16)
+                | ((data[i + 6] & 0xFFL) << 8) | (data[i + 7] & 0xFFL);
+    }
+
+    private int slot(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        int slot = (int) (h ^ (h >>> 32)) & mask;
+        while (frequencies[slot] != 0 && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    /**
+     * Weight of a sequence, sequences of a single sample are not shared
+     */
+    private int weight(byte[] data, int i) {
+        int f = frequencies[slot(sequence(data, i))];
+        return f >= 2 ? f : 0;
+    }
+
+    private int score(byte[] data, int start) {
+        int score = 0;
+        for (int i = start; i <= start + SEGMENT - K; i++) {
+            score += weight(data, i);
+        }
+        return score;
+    }
+
+    private byte[] train(int dictionarySize) {
+        long total = 0;
+        for (byte[] sample : samples) total += sample.length;
+        int capacity = Integer.highestOneBit((int) Math.min(1 << 30, Math.max(16, total * 2)) - 1) << 1;
+        keys = new long[capacity];
+        frequencies = new int[capacity];
+        lastSample = new int[capacity];
+        mask = capacity - 1;
+        for (int s = 0; s < samples.size(); s++) {
+            byte[] data = samples.get(s);
+            for (int i = 0; i + K <= data.length; i++) {
+                long key = sequence(data, i);
+                int slot = slot(key);
+                if (frequencies[slot] == 0) {
+                    keys[slot] = key;
+                    frequencies[slot] = 1;
+                    lastSample[slot] = s;
+                } else if (lastSample[slot] != s) {
+                    frequencies[slot]++;
+                    lastSample[slot] = s;
+                }
+            }
+        }
+
+        // {score, sample, start}
+        PriorityQueue<int[]> candidates = new PriorityQueue<>((a, b) -> {
+            if (a[0] != b[0]) return Integer.compare(b[0], a[0]);
+            if (a[1] != b[1]) return Integer.compare(a[1], b[1]);
+            return Integer.compare(a[2], b[2]);
+        });
+        for (int s = 0; s < samples.size(); s++) {
+            byte[] data = samples.get(s);
+            for (int epoch = 0; epoch + SEGMENT <= data.length; epoch += EPOCH) {
+                int end = Math.min(data.length, epoch + EPOCH) - SEGMENT;
+                int score = score(data, epoch);
+                int best = score, bestStart = epoch;
+                for (int start = epoch + 1; start <= end; start++) {
+                    score += weight(data, start + SEGMENT - K) - weight(data, start - 1);
+                    if (score > best) {
+                        best = score;
+                        bestStart = start;
+                    }
+                }
+                if (best > 0) candidates.add(new int[]{best, s, bestStart});
+            }
+        }
+
+        List<int[]> picked = new ArrayList<>();
+        int size = 0;
+        while (size < dictionarySize && !candidates.isEmpty()) {
+            int[] candidate = candidates.poll();
+            byte[] data = samples.get(candidate[1]);
+            int score = score(data, candidate[2]);
+            if (score <= 0) continue;
+            if (score < candidate[0] && !candidates.isEmpty() && score < candidates.peek()[0]) {
+                // Overlaps segments picked before, try again with its score left
+                candidate[0] = score;
+                candidates.add(candidate);
+                continue;
+            }
+            picked.add(candidate);
+            size += SEGMENT;
+            for (int i = candidate[2]; i <= candidate[2] + SEGMENT - K; i++) {
+                frequencies[slot(sequence(data, i))] = 1;
+            }
+        }
+        if (picked.isEmpty()) return null;
+
+        ByteArrayOutputStream dictionary = new ByteArrayOutputStream(size);
+        for (int i = picked.size() - 1; i >= 0; i--) {
+            int[] segment = picked.get(i);
+            dictionary.write(samples.get(segment[1]), segment[2], SEGMENT);
+        }
+        return dictionary.toByteArray();
+    }
+}
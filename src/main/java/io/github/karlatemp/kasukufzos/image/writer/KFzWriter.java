@@ -11,18 +11,165 @@ package io.github.karlatemp.kasukufzos.image.writer;
 import io.github.karlatemp.kasukufzos.utils.ETask;
 
 import java.io.File;
+import java.io.IOException;
 import java.io.OutputStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.zip.Checksum;
 
 public abstract class KFzWriter {
+    public static class Options {
+        /**
+         * Threads compressing resources added by {@link KFZModuleWriter#addResource(String, int, Callable)}.
+         * {@code 1} compresses on the adding thread. The image is the same for any value.
+         */
+        public int threads = Runtime.getRuntime().availableProcessors();
+        /**
+         * Compress on this executor instead of {@link #threads} own threads. It's not shut down by the writer.
+         */
+        public ExecutorService executor;
+        /**
+         * Resources compressed ahead of the output before {@code addResource} waits, {@code 0} for {@code 4 * threads}
+         */
+        public int maxPending;
+        /**
+         * Used by {@link KFZModuleWriter#addResource(String, Callable)}
+         */
+        public CompressionPolicy compressionPolicy = CompressionPolicy.defaults();
+        /**
+         * Maximum size of the dictionary trained per module for {@link CompressionPolicy.Method#dictionary(int)},
+         * {@code 0} to never train one. Deflate uses at most 32 KiB of it.
+         */
+        public int dictionarySize = 16 * 1024;
+        /**
+         * Uncompressed size of the blocks of {@link CompressionPolicy.Method#solid(int)}, {@code 0} to disable solid blocks
+         */
+        public int solidBlockSize = 128 * 1024;
+        /**
+         * Point resources at the content of an identical resource written before instead of writing it again,
+         * matched by SHA-256
+         */
+        public boolean deduplicate = true;
+        /**
+         * Non-{@code null} to verify the signed modules once the image is written and append a trust table of them
+         * authenticated with this HMAC-SHA256 key, see {@link io.github.karlatemp.kasukufzos.image.reader.KFzTrustTable}.
+         * Closing fails if a signed module doesn't verify, and the image is then aborted.
+         */
+        public byte[] trustTableKey;
+    }
+
     public static KFzWriter of(File file) throws Exception {
-        return new KFzWriterImpl(file);
+        return of(file, new Options());
+    }
+
+    public static KFzWriter of(File file, Options options) throws Exception {
+        if (options == null) options = new Options();
+        return new KFzWriterImpl(file, options);
+    }
+
+    /**
+     * Update the v2 image {@code image} in place. Its modules are kept in their order, {@link #writeModule(String, ETask)}
+     * replaces the module of the same name once or adds one at the end, and {@link #removeModule(String)} drops one.
+     * <p>
+     * Only the new content and the metadata are written, appended to the image on {@link #close()}.
+     * The content of replaced and removed modules stays as dead space until {@link #compact(File, File)}.
+     * If writing a module or closing fails, or on {@link #abort()}, the image is restored as it was.
+     * New resources are deduplicated against each other but not against the content already in the image.
+     */
+    public static KFzWriter update(File image) throws Exception {
+        return update(image, new Options());
+    }
+
+    public static KFzWriter update(File image, Options options) throws Exception {
+        if (options == null) options = new Options();
+        return new KFzWriterImpl(image, options, image);
+    }
+
+    /**
+     * Write the modules of {@code image} to {@code output} without the content nothing uses anymore,
+     * as left by {@link #update(File)}. Content and solid blocks are copied as they are, not compressed again.
+     */
+    public static void compact(File image, File output) throws Exception {
+        if (image.getCanonicalFile().equals(output.getCanonicalFile())) {
+            throw new IOException("Cannot compact " + image + " into itself");
+        }
+        Options options = new Options();
+        options.threads = 1;
+        new KFzWriterImpl(output, options, image).close();
     }
 
     public abstract void close() throws Exception;
 
+    /**
+     * Stop writing without completing the image: an image being {@link #update(File) updated} is restored
+     * as it was, a new image is deleted. Done by a {@link #writeModule(String, ETask)} or {@link #close()}
+     * that fails, does nothing once closed.
+     */
+    public abstract void abort() throws Exception;
+
+    /**
+     * Drop the module {@code name} written before or carried over by {@link #update(File)}
+     *
+     * @return {@code false} if there's no such module
+     */
+    public abstract boolean removeModule(String name);
+
+    /**
+     * Resources sharing the content of another one, see {@link Options#deduplicate}
+     */
+    public abstract int deduplicatedResources();
+
+    /**
+     * Bytes not written thanks to {@link Options#deduplicate}, counted before solid blocks are compressed
+     */
+    public abstract long deduplicatedBytes();
+
     public static abstract class KFZModuleWriter {
+        /**
+         * Add a resource written by {@code task}, already compressed as {@code modifier} tells.
+         */
         public abstract void addResource(String path, int modifier, ETask<OutputStream> task) throws Exception;
+
+        /**
+         * Add a resource and let the writer compress it as the compress type of {@code modifier} tells.
+         * <p>
+         * {@code content} is called and compressed on a worker thread and may still run after this method returns,
+         * but not after {@link KFzWriter#writeModule(String, ETask)} returns. Resources are written in the order they are added.
+         */
+        public abstract void addResource(String path, int modifier, Callable<byte[]> content) throws Exception;
+
+        /**
+         * Add a resource compressed as the {@link Options#compressionPolicy} decides,
+         * loaded the same way as {@link #addResource(String, int, Callable)}.
+         */
+        public abstract void addResource(String path, Callable<byte[]> content) throws Exception;
+
+        public abstract CompressionPolicy compressionPolicy();
+
+        /**
+         * Add a resource whose content is already compressed as {@code modifier} tells,
+         * loaded the same way as {@link #addResource(String, int, Callable)}.
+         */
+        public abstract void addCompressedResource(String path, int modifier, Callable<byte[]> content) throws Exception;
+
+        /**
+         * {@link #addCompressedResource(String, int, Callable)} without decompressing the content again:
+         * {@code content} passes the whole uncompressed content to the checksum it's given, in order.
+         */
+        public abstract void addCompressedResource(String path, int modifier, CompressedContent content) throws Exception;
+    }
+
+    public interface CompressedContent {
+        /**
+         * Load the compressed content, passing the uncompressed content to {@code uncompressed} as it's read or checked
+         */
+        byte[] load(Checksum uncompressed) throws Exception;
     }
 
+    /**
+     * Write a module, replacing the module of the same name at its position if it's carried over by {@link #update(File)}
+     *
+     * @throws IllegalStateException if a module of the same name was written before
+     */
     public abstract void writeModule(String name, ETask<KFZModuleWriter> moduleWriter) throws Exception;
 }
@@ -8,43 +8,264 @@
 
 package io.github.karlatemp.kasukufzos.image.writer;
 
+import io.github.karlatemp.kasukufzos.image.KFzImageFormat;
+import io.github.karlatemp.kasukufzos.image.KFzPackageAttributes;
+import io.github.karlatemp.kasukufzos.image.reader.KFzReader;
+import io.github.karlatemp.kasukufzos.image.reader.KFzTrustTable;
+import io.github.karlatemp.kasukufzos.utils.CountingOutputStream;
+import io.github.karlatemp.kasukufzos.utils.Crc32c;
+import io.github.karlatemp.kasukufzos.utils.DeflaterPool;
 import io.github.karlatemp.kasukufzos.utils.ETask;
+import io.github.karlatemp.kasukufzos.utils.InflaterPool;
+import io.github.karlatemp.kasukufzos.utils.Lz4Block;
 import io.github.karlatemp.kasukufzos.utils.NonClosableStream;
-import io.github.karlatemp.kasukufzos.utils.RAFOutputStream;
+import io.github.karlatemp.kasukufzos.utils.PooledInflaterInputStream;
+import io.github.karlatemp.kasukufzos.utils.RawInflaterInputStream;
+import io.github.karlatemp.kasukufzos.utils.TransferKit;
 
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.jar.Manifest;
+import java.util.zip.Checksum;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 class KFzWriterImpl extends KFzWriter {
-    // private final File out;
-    private final File moduleOut;
-    private final RandomAccessFile outOs;
-    private final RandomAccessFile moduleOs;
-    int moduleCount = 0;
+    private final File file;
+    private final CountingOutputStream out;
+    private final DataOutputStream dos;
+    private final OutputStream contentOs;
+    private final List<ModuleWriterImpl> modules = new ArrayList<>();
+    private final List<long[]> sections = new ArrayList<>();
+    private boolean closed;
+    /**
+     * {@code null} to compress on the adding thread
+     */
+    private final ExecutorService executor;
+    private final boolean ownExecutor;
+    private final int maxPending;
+    private final CompressionPolicy compressionPolicy;
+    private final int dictionarySize;
+    private final int solidBlockSize;
+    private final boolean deduplicate;
+    private final byte[] trustTableKey;
+    /**
+     * Written resources by the SHA-256 of their content
+     */
+    private final Map<ByteBuffer, Res> contents = new HashMap<>();
+    private int deduplicatedResources;
+    private long deduplicatedBytes;
+    private final List<Block> blocks = new ArrayList<>();
+    /**
+     * Resources being compressed, in the order they are written
+     */
+    private final ArrayDeque<Pending> pending = new ArrayDeque<>();
+    /**
+     * The image being updated lacks {@link KFzImageFormat#FLAG_RESOURCE_CHECKSUMS}, set by {@link #complete()}
+     */
+    private boolean addChecksumFlag;
+    /**
+     * Length and header of the image being updated, restored by {@link #rollback()}. {@code -1} for a new image
+     */
+    private final long originLength;
+    private final byte[] originHeader;
 
-    KFzWriterImpl(File out) throws Exception {
-        // this.out = out;
-        this.moduleOut = new File(out.getPath() + ".module.bin");
+    KFzWriterImpl(File out, Options options) throws Exception {
+        this(out, options, null);
+    }
 
-        outOs = new RandomAccessFile(out, "rw");
-        moduleOs = new RandomAccessFile(moduleOut, "rw");
-        outOs.writeInt(0);
+    /**
+     * @param source an image whose modules are carried over. If it's {@code out}, new content and metadata are
+     *               appended to it, otherwise the content of its modules is copied to {@code out}.
+     */
+    KFzWriterImpl(File out, Options options, File source) throws Exception {
+        this.file = out;
+        boolean append = source != null && source.getCanonicalFile().equals(out.getCanonicalFile());
+        if (append) {
+            originHeader = new byte[KFzImageFormat.HEADER_SIZE];
+            try (RandomAccessFile raf = new RandomAccessFile(out, "r")) {
+                originLength = raf.length();
+                raf.readFully(originHeader);
+            }
+        } else {
+            originLength = -1;
+            originHeader = null;
+        }
+        if (options.executor != null) {
+            executor = options.executor;
+            ownExecutor = false;
+        } else if (options.threads > 1) {
+            AtomicInteger counter = new AtomicInteger();
+            executor = Executors.newFixedThreadPool(options.threads, task -> {
+                Thread thread = new Thread(task, "KFzWriter Compressor #" + counter.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            });
+            ownExecutor = true;
+        } else {
+            executor = null;
+            ownExecutor = false;
+        }
+        dictionarySize = Math.max(options.dictionarySize, 0);
+        solidBlockSize = Math.max(options.solidBlockSize, 0);
+        deduplicate = options.deduplicate;
+        trustTableKey = options.trustTableKey;
+        compressionPolicy = options.compressionPolicy == null ? CompressionPolicy.defaults() : options.compressionPolicy;
+        maxPending = options.maxPending > 0 ? options.maxPending : 4 * Math.max(options.threads, 1);
+        this.out = append
+                ? new CountingOutputStream(new BufferedOutputStream(new FileOutputStream(out, true), 20480), out.length())
+                : new CountingOutputStream(new BufferedOutputStream(new FileOutputStream(out), 20480));
+        this.dos = new DataOutputStream(this.out);
+        this.contentOs = NonClosableStream.of(this.out);
+        try {
+            if (!append) {
+                dos.writeInt(KFzImageFormat.MAGIC);
+                dos.writeShort(KFzImageFormat.CURRENT_VERSION);
+                dos.writeShort(KFzImageFormat.FLAG_RESOURCE_CHECKSUMS);
+            }
+            if (source != null) load(source, !append);
+        } catch (Throwable throwable) {
+            abort(throwable);
+            throw throwable;
+        }
     }
 
     @Override
     public void close() throws Exception {
-        complete();
+        if (closed) return;
+        closed = true;
+        try {
+            complete();
+            if (ownExecutor) executor.shutdownNow();
+            if (trustTableKey != null) appendTrustTable();
+        } catch (Throwable throwable) {
+            abort(throwable);
+            throw throwable;
+        }
+    }
+
+    @Override
+    public void abort() throws Exception {
+        if (closed) return;
+        closed = true;
+        if (ownExecutor) executor.shutdownNow();
+        rollback();
+    }
+
+    /**
+     * {@link #abort()} on a failure, adding what fails to abort to it
+     */
+    private void abort(Throwable failure) {
+        closed = true;
+        if (ownExecutor) executor.shutdownNow();
+        try {
+            rollback();
+        } catch (Throwable t2) {
+            failure.addSuppressed(t2);
+        }
+    }
+
+    /**
+     * Restore the image being updated to its length and header before the update, or delete a new image
+     */
+    private void rollback() throws IOException {
+        pending.clear();
+        try {
+            dos.close();
+        } catch (IOException ignored) {
+            // Anything it failed to write is dropped anyway
+        }
+        if (originHeader == null) {
+            Files.deleteIfExists(file.toPath());
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(originHeader), 0);
+            channel.truncate(originLength);
+        }
+    }
+
+    /**
+     * Append the trust table of the written image as a section, followed by a new directory and footer
+     */
+    private void appendTrustTable() throws Exception {
+        byte[] table = KFzTrustTable.build(file, trustTableKey);
+        try (CountingOutputStream out = new CountingOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)), file.length())) {
+            DataOutputStream dos = new DataOutputStream(out);
+            long pointer = out.count();
+            dos.write(table);
+            sections.add(new long[]{KFzImageFormat.SECTION_TRUST_TABLE, pointer, table.length});
+            writeDirectory(out, dos);
+            dos.flush();
+        }
     }
 
     @Override
     public void writeModule(String name, ETask<KFZModuleWriter> moduleWriter) throws Exception {
-        ModuleWriterImpl mwriter = mwriter(name);
-        moduleWriter.run(mwriter);
-        complete(mwriter);
+        int replaced = -1;
+        for (int i = 0; i < modules.size(); i++) {
+            if (modules.get(i).name.equals(name)) {
+                if (!modules.get(i).carriedOver) throw new IllegalStateException("module " + name + " duplicated");
+                replaced = i;
+            }
+        }
+        if (closed) throw new IllegalStateException("Writer closed");
+        ModuleWriterImpl mwriter = new ModuleWriterImpl(name);
+        try {
+            moduleWriter.run(mwriter);
+            drain();
+            mwriter.writeDeferred();
+            drain();
+            mwriter.flushSolid();
+            // Sources of the module may be closed once it's written
+            drain();
+        } catch (Throwable throwable) {
+            abort(throwable);
+            throw throwable;
+        }
+        if (replaced != -1) {
+            modules.set(replaced, mwriter);
+        } else {
+            modules.add(mwriter);
+        }
+    }
+
+    @Override
+    public boolean removeModule(String name) {
+        return modules.removeIf(module -> module.name.equals(name));
     }
 
     static class Res {
@@ -52,74 +273,904 @@ class KFzWriterImpl extends KFzWriter {
         long pointer;
         long endPointer;
         int modifiers;
+        /**
+         * Content waiting for the dictionary of the module
+         */
+        byte[] deferred;
+        int level;
+        /**
+         * Uncompressed size, {@code -1} if unknown
+         */
+        long size = -1;
+        int checksum;
+        /**
+         * SHA-256 of the uncompressed content if {@link KFzWriter.Options#deduplicate}
+         */
+        byte[] digest;
+        /**
+         * The module whose dictionary the content is deflated with, which may have been replaced or removed since
+         */
+        ModuleWriterImpl dictionaryOwner;
+    }
+
+    void checksum(Res rs, byte[] data) {
+        rs.size = data.length;
+        rs.checksum = Crc32c.of(data, 0, data.length);
+        if (deduplicate && data.length != 0) {
+            try {
+                rs.digest = MessageDigest.getInstance("SHA-256").digest(data);
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    /**
+     * Size, CRC-32C and SHA-256 of content passed by {@link KFzWriter.CompressedContent#load(Checksum)}
+     */
+    final class ContentChecksum implements Checksum {
+        private final Crc32c crc = new Crc32c();
+        private final MessageDigest digest;
+        private long size;
+
+        ContentChecksum() throws NoSuchAlgorithmException {
+            digest = deduplicate ? MessageDigest.getInstance("SHA-256") : null;
+        }
+
+        @Override
+        public void update(int b) {
+            size++;
+            crc.update(b);
+            if (digest != null) digest.update((byte) b);
+        }
+
+        @Override
+        public void update(byte[] b, int off, int len) {
+            size += len;
+            crc.update(b, off, len);
+            if (digest != null) digest.update(b, off, len);
+        }
+
+        @Override
+        public long getValue() {
+            return crc.getValue();
+        }
+
+        @Override
+        public void reset() {
+            size = 0;
+            crc.reset();
+            if (digest != null) digest.reset();
+        }
+
+        void checksum(Res rs) {
+            rs.size = size;
+            rs.checksum = (int) crc.getValue();
+            if (digest != null && size != 0) rs.digest = digest.digest();
+        }
+    }
+
+    /**
+     * Point {@code rs} at the content of an identical resource written before
+     *
+     * @return {@code false} if there's none
+     */
+    private boolean share(Res rs, int length) {
+        if (rs.digest == null) return false;
+        Res written = contents.get(ByteBuffer.wrap(rs.digest));
+        if (written == null) return false;
+        rs.pointer = written.pointer;
+        rs.endPointer = written.endPointer;
+        rs.modifiers = written.modifiers & KFzReader.COMPRESS_TYPE_BITS;
+        rs.dictionaryOwner = written.dictionaryOwner;
+        deduplicatedResources++;
+        deduplicatedBytes += length;
+        return true;
+    }
+
+    /**
+     * Let later identical resources share the content of {@code rs}
+     */
+    private void written(Res rs) {
+        if (rs.digest == null) return;
+        contents.putIfAbsent(ByteBuffer.wrap(rs.digest), rs);
+    }
+
+    @Override
+    public int deduplicatedResources() {
+        return deduplicatedResources;
+    }
+
+    @Override
+    public long deduplicatedBytes() {
+        return deduplicatedBytes;
+    }
+
+    interface Content {
+        /**
+         * Load the bytes to write for {@code rs}, may update its modifiers
+         */
+        byte[] load(Res rs) throws Exception;
+    }
+
+    /**
+     * Fewer resources using a dictionary are deflated without one
+     */
+    static final int MIN_DICTIONARY_RESOURCES = 16;
+
+    static class Block {
+        final int id;
+        long pointer;
+        long endPointer;
+        int size;
+        int compressType;
+
+        Block(int id) {
+            this.id = id;
+        }
+    }
+
+    static class Pending {
+        ModuleWriterImpl module;
+        Res rs;
+        /**
+         * Set instead of {@link #rs} for a solid block
+         */
+        Block block;
+        Future<byte[]> content;
+    }
+
+    static byte[] compress(byte[] data, int modifiers) throws IOException {
+        return compress(data, modifiers & KFzReader.COMPRESS_TYPE_BITS, Deflater.DEFAULT_COMPRESSION);
+    }
+
+    static byte[] compress(byte[] data, int compressType, int level) throws IOException {
+        return compress(data, compressType, level, null);
+    }
+
+    static byte[] compress(byte[] data, int compressType, int level, byte[] dictionary) throws IOException {
+        ByteArrayOutputStream result = new ByteArrayOutputStream(data.length / 2 + 64);
+        switch (compressType) {
+            case KFzReader.COMPRESS_TYPE_INF_:
+            case KFzReader.COMPRESS_TYPE_DEFL:
+            case KFzReader.COMPRESS_TYPE_DICT: {
+                DeflaterPool pool = compressType == KFzReader.COMPRESS_TYPE_INF_ ? DeflaterPool.ZLIB : DeflaterPool.RAW;
+                Deflater deflater = pool.acquire(level);
+                try {
+                    if (compressType == KFzReader.COMPRESS_TYPE_DICT) deflater.setDictionary(dictionary);
+                    try (OutputStream owx = new DeflaterOutputStream(result, deflater)) {
+                        owx.write(data);
+                    }
+                } finally {
+                    pool.release(deflater);
+                }
+                break;
+            }
+            case KFzReader.COMPRESS_TYPE_GZIP:
+                try (GZIPOutputStream owx = new GZIPOutputStream(result) {
+                    {
+                        def.setLevel(level);
+                    }
+                }) {
+                    owx.write(data);
+                }
+                break;
+            case KFzReader.COMPRESS_TYPE_LZ4_:
+                return Lz4Block.compress(data);
+            default:
+                return data;
+        }
+        return result.toByteArray();
+    }
+
+    static byte[] decompress(byte[] content, int compressType, byte[] dictionary) throws IOException {
+        InputStream is;
+        switch (compressType) {
+            case KFzReader.COMPRESS_TYPE_NONE:
+                return content;
+            case KFzReader.COMPRESS_TYPE_LZ4_:
+                return Lz4Block.decompress(content);
+            case KFzReader.COMPRESS_TYPE_INF_:
+                is = new PooledInflaterInputStream(new ByteArrayInputStream(content), InflaterPool.ZLIB);
+                break;
+            case KFzReader.COMPRESS_TYPE_GZIP:
+                is = new GZIPInputStream(new ByteArrayInputStream(content));
+                break;
+            case KFzReader.COMPRESS_TYPE_DEFL:
+                is = new RawInflaterInputStream(new ByteArrayInputStream(content));
+                break;
+            case KFzReader.COMPRESS_TYPE_DICT:
+                if (dictionary == null) throw new IOException("No dictionary");
+                is = new RawInflaterInputStream(new ByteArrayInputStream(content), dictionary);
+                break;
+            default:
+                throw new IOException("Unsupported compress type " + compressType);
+        }
+        return TransferKit.readAndClose(is);
+    }
+
+    /**
+     * Write the compressed resource at the head of {@link #pending}
+     */
+    private void commitHead() throws Exception {
+        Pending head = pending.poll();
+        byte[] content;
+        try {
+            content = head.content.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) throw (Exception) cause;
+            if (cause instanceof Error) throw (Error) cause;
+            throw e;
+        }
+        if (head.block != null) {
+            writeBlock(head.block, content);
+        } else {
+            head.module.commit(head.rs, content);
+        }
+    }
+
+    /**
+     * @return the block deflated, or {@code data} itself if that is not smaller
+     */
+    private static byte[] compressBlock(byte[] data, int level) throws IOException {
+        byte[] compressed = compress(data, KFzReader.COMPRESS_TYPE_DEFL, level);
+        return compressed.length < data.length ? compressed : data;
+    }
+
+    private void writeBlock(Block block, byte[] content) throws IOException {
+        if (content.length == block.size) {
+            block.compressType = KFzReader.COMPRESS_TYPE_NONE;
+        }
+        block.pointer = out.count();
+        contentOs.write(content);
+        block.endPointer = out.count();
+    }
+
+    private void drain() throws Exception {
+        while (!pending.isEmpty()) {
+            commitHead();
+        }
     }
 
-    static class ModuleWriterImpl extends KFZModuleWriter {
-        private final RandomAccessFile os;
-        private final OutputStream oos;
+    class ModuleWriterImpl extends KFZModuleWriter {
+        final String name;
+        /**
+         * Position in the module table, or past it if resources of other modules still use the dictionary
+         * of this module after it was replaced or removed. Assigned by {@link #complete()}.
+         */
+        int dictionaryId = -1;
         List<Res> rsList = new ArrayList<>();
+        long indexPointer, indexSize;
+        byte[] manifest;
+        int manifestModifiers;
+        /**
+         * Resources using {@link CompressionPolicy.Method#dictionary(int)}, written by {@link #writeDeferred()}
+         */
+        final List<Res> deferred = new ArrayList<>();
+        byte[] dictionary;
+        /**
+         * The solid block being filled
+         */
+        ByteArrayOutputStream solid;
+        Block solidBlock;
+        int solidLevel;
+
+        /**
+         * Carried over from the image being updated, a module of the same name written later replaces it
+         */
+        boolean carriedOver;
 
-        ModuleWriterImpl(RandomAccessFile os) {
-            this.os = os;
-            this.oos = NonClosableStream.of(new BufferedOutputStream(new RAFOutputStream(os), 20480));
+        ModuleWriterImpl(String name) {
+            this.name = name;
         }
 
-        void writeFile(String path, int modifiers, ETask<OutputStream> os) throws Exception {
+        Res newRes(String path, int modifiers) {
             while (path.charAt(0) == '/') path = path.substring(1);
             Res rs = new Res();
             rs.path = path;
             rs.modifiers = modifiers;
-            oos.flush();
-            rs.pointer = this.os.getFilePointer();
-            os.run(oos);
-            oos.flush();
-            rs.endPointer = this.os.getFilePointer();
+            rs.dictionaryOwner = this;
+            return rs;
+        }
+
+        void writeFile(String path, int modifiers, ETask<OutputStream> os) throws Exception {
+            drain();
+            Res rs = newRes(path, modifiers);
+            rs.pointer = out.count();
+            // Keep a copy to checksum it, and to resolve the package table from the manifest
+            ByteArrayOutputStream copy = new ByteArrayOutputStream();
+            os.run(new FilterOutputStream(contentOs) {
+                @Override
+                public void write(int b) throws IOException {
+                    out.write(b);
+                    copy.write(b);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    out.write(b, off, len);
+                    copy.write(b, off, len);
+                }
+            });
+            rs.endPointer = out.count();
+            byte[] content = copy.toByteArray();
+            int compressType = modifiers & KFzReader.COMPRESS_TYPE_BITS;
+            if (compressType != KFzReader.COMPRESS_TYPE_DICT && compressType != KFzReader.COMPRESS_TYPE_SOLID) {
+                checksum(rs, decompress(content, compressType, null));
+            }
+            if (rs.path.equals(KFzImageFormat.MANIFEST)) {
+                manifest = content;
+                manifestModifiers = modifiers;
+            }
+            if (compressType != KFzReader.COMPRESS_TYPE_DICT) written(rs);
             rsList.add(rs);
         }
 
+        void commit(Res rs, byte[] content) throws IOException {
+            if (content == null) {
+                deferred.add(rs);
+                return;
+            }
+            boolean solid = (rs.modifiers & KFzReader.COMPRESS_TYPE_BITS) == KFzReader.COMPRESS_TYPE_SOLID;
+            if (rs.path.equals(KFzImageFormat.MANIFEST)) {
+                manifest = content;
+                manifestModifiers = solid ? KFzReader.COMPRESS_TYPE_NONE : rs.modifiers;
+            }
+            if (share(rs, content.length)) return;
+            if (solid) {
+                appendSolid(rs, content);
+            } else {
+                rs.pointer = out.count();
+                contentOs.write(content);
+                rs.endPointer = out.count();
+            }
+            written(rs);
+        }
+
+        private void appendSolid(Res rs, byte[] content) throws IOException {
+            if (solid == null) {
+                solid = new ByteArrayOutputStream(solidBlockSize + 4096);
+                solidBlock = new Block(blocks.size());
+                solidLevel = rs.level;
+                blocks.add(solidBlock);
+            }
+            rs.pointer = solidBlock.id;
+            rs.endPointer = ((long) solid.size() << 32) | content.length;
+            solid.write(content);
+            if (solid.size() >= solidBlockSize) flushSolid();
+        }
+
+        /**
+         * Compress and write the solid block being filled
+         */
+        void flushSolid() throws IOException {
+            if (solid == null) return;
+            byte[] data = solid.toByteArray();
+            Block block = solidBlock;
+            int level = solidLevel;
+            solid = null;
+            solidBlock = null;
+            block.size = data.length;
+            block.compressType = KFzReader.COMPRESS_TYPE_DEFL;
+            if (executor == null) {
+                writeBlock(block, compressBlock(data, level));
+                return;
+            }
+            Pending write = new Pending();
+            write.block = block;
+            write.content = executor.submit(() -> compressBlock(data, level));
+            // Right after the resource committed last, wherever the other pending resources are
+            pending.addFirst(write);
+        }
+
+        Manifest manifest() {
+            if (manifest == null) return null;
+            try {
+                return new Manifest(new ByteArrayInputStream(decompress(manifest, manifestModifiers & KFzReader.COMPRESS_TYPE_BITS, dictionary)));
+            } catch (IOException malformed) {
+                return null;
+            }
+        }
+
         @Override
         public void addResource(String path, int modifier, ETask<OutputStream> task) throws Exception {
             writeFile(path, modifier, task);
         }
+
+        @Override
+        public void addResource(String path, int modifier, Callable<byte[]> content) throws Exception {
+            add(path, modifier, rs -> {
+                byte[] data = content.call();
+                checksum(rs, data);
+                return compress(data, modifier);
+            });
+        }
+
+        @Override
+        public void addCompressedResource(String path, int modifier, Callable<byte[]> content) throws Exception {
+            add(path, modifier, rs -> {
+                byte[] compressed = content.call();
+                checksum(rs, decompress(compressed, modifier & KFzReader.COMPRESS_TYPE_BITS, null));
+                return compressed;
+            });
+        }
+
+        @Override
+        public void addCompressedResource(String path, int modifier, KFzWriter.CompressedContent content) throws Exception {
+            add(path, modifier, rs -> {
+                ContentChecksum checksum = new ContentChecksum();
+                byte[] compressed = content.load(checksum);
+                checksum.checksum(rs);
+                return compressed;
+            });
+        }
+
+        @Override
+        public void addResource(String path, Callable<byte[]> content) throws Exception {
+            add(path, KFzReader.COMPRESS_TYPE_NONE, rs -> {
+                byte[] data = content.call();
+                checksum(rs, data);
+                CompressionPolicy.Method method = compressionPolicy.method(name, rs.path, data.length);
+                if (method.compressType == KFzReader.COMPRESS_TYPE_NONE) return data;
+                if (method.compressType == KFzReader.COMPRESS_TYPE_DICT && dictionarySize != 0) {
+                    rs.deferred = data;
+                    rs.level = method.level;
+                    return null;
+                }
+                if (method.compressType == KFzReader.COMPRESS_TYPE_SOLID && solidBlockSize != 0 && data.length != 0) {
+                    // Packed into the block when committed, in order
+                    rs.modifiers = KFzReader.COMPRESS_TYPE_SOLID;
+                    rs.level = method.level;
+                    return data;
+                }
+                int compressType = method.compressType == KFzReader.COMPRESS_TYPE_DICT || method.compressType == KFzReader.COMPRESS_TYPE_SOLID
+                        ? KFzReader.COMPRESS_TYPE_DEFL
+                        : method.compressType;
+                byte[] compressed = compress(data, compressType, method.level);
+                if (!compressionPolicy.accept(name, rs.path, data.length, compressed.length)) return data;
+                // Only read once the task completed
+                rs.modifiers = compressType;
+                return compressed;
+            });
+        }
+
+        /**
+         * Train the dictionary and write the resources waiting for it
+         */
+        void writeDeferred() throws Exception {
+            if (deferred.isEmpty()) return;
+            List<Res> resources = new ArrayList<>(deferred);
+            deferred.clear();
+            List<byte[]> contents = new ArrayList<>(resources.size());
+            for (Res rs : resources) {
+                // Shares the content written by another module
+                if (rs.digest != null && KFzWriterImpl.this.contents.containsKey(ByteBuffer.wrap(rs.digest))) continue;
+                contents.add(rs.deferred);
+            }
+            byte[] dictionary = contents.size() < MIN_DICTIONARY_RESOURCES
+                    ? null
+                    : DictionaryTrainer.train(contents, dictionarySize);
+            this.dictionary = dictionary;
+            for (Res rs : resources) {
+                enqueue(rs, res -> {
+                    byte[] data = res.deferred;
+                    res.deferred = null;
+                    int compressType = dictionary == null ? KFzReader.COMPRESS_TYPE_DEFL : KFzReader.COMPRESS_TYPE_DICT;
+                    byte[] compressed = compress(data, compressType, res.level, dictionary);
+                    if (!compressionPolicy.accept(name, res.path, data.length, compressed.length)) {
+                        res.modifiers = KFzReader.COMPRESS_TYPE_NONE;
+                        return data;
+                    }
+                    res.modifiers = compressType;
+                    return compressed;
+                });
+            }
+        }
+
+        @Override
+        public CompressionPolicy compressionPolicy() {
+            return compressionPolicy;
+        }
+
+        private void add(String path, int modifier, Content content) throws Exception {
+            Res rs = newRes(path, modifier);
+            rsList.add(rs);
+            enqueue(rs, content);
+        }
+
+        private void enqueue(Res rs, Content content) throws Exception {
+            if (executor == null) {
+                commit(rs, content.load(rs));
+                return;
+            }
+            Pending task = new Pending();
+            task.module = this;
+            task.rs = rs;
+            task.content = executor.submit(() -> content.load(rs));
+            pending.add(task);
+            // Write what's ready without waiting, and bound the memory held by compressed resources
+            while (!pending.isEmpty() && (pending.size() > maxPending || pending.peek().content.isDone())) {
+                commitHead();
+            }
+        }
     }
 
-    ModuleWriterImpl mwriter(String name) throws Exception {
-        moduleCount++;
-        outOs.writeUTF(name);
-        moduleOs.seek(0);
-        return new ModuleWriterImpl(moduleOs);
+    /**
+     * Carry over the modules of a v2 image, with the content pointers, sizes and checksums of their resources,
+     * their dictionaries and their manifests. Their content isn't deduplicated against.
+     *
+     * @param copy copy the content the modules use to the output, otherwise point at it in {@code image}
+     */
+    private void load(File image, boolean copy) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(image, "r")) {
+            if (raf.length() < KFzImageFormat.HEADER_SIZE + KFzImageFormat.FOOTER_SIZE || raf.readInt() != KFzImageFormat.MAGIC) {
+                throw new IOException("Image " + image + " isn't a v2 image");
+            }
+            int version = raf.readUnsignedShort();
+            if (version != KFzImageFormat.VERSION_2) {
+                throw new IOException("Unsupported image version " + version + " of " + image);
+            }
+            boolean checksums = (raf.readUnsignedShort() & KFzImageFormat.FLAG_RESOURCE_CHECKSUMS) != 0;
+            addChecksumFlag = !checksums && !copy;
+
+            raf.seek(raf.length() - KFzImageFormat.FOOTER_SIZE);
+            long directoryPointer = raf.readLong();
+            int directorySize = raf.readInt();
+            if (raf.readInt() != KFzImageFormat.MAGIC) {
+                throw new IOException("Image " + image + " is truncated: footer not found");
+            }
+            Map<Integer, long[]> sections = new HashMap<>();
+            DataInputStream directory = data(raf, directoryPointer, directorySize);
+            for (int i = directory.readInt(); i > 0; i--) {
+                sections.put(directory.readInt(), new long[]{directory.readLong(), directory.readLong()});
+            }
+
+            List<Block> imageBlocks = new ArrayList<>();
+            DataInputStream blockTable = section(raf, sections, KFzImageFormat.SECTION_BLOCK_TABLE);
+            if (blockTable != null) {
+                for (int i = blockTable.readInt(); i > 0; i--) {
+                    Block block = new Block(imageBlocks.size());
+                    block.pointer = blockTable.readLong();
+                    block.endPointer = blockTable.readLong();
+                    block.size = blockTable.readInt();
+                    block.compressType = blockTable.readInt();
+                    imageBlocks.add(block);
+                }
+            }
+            if (!copy) blocks.addAll(imageBlocks);
+
+            Map<Integer, byte[]> dictionaries = new HashMap<>();
+            DataInputStream dictionarySection = section(raf, sections, KFzImageFormat.SECTION_DICTIONARY);
+            if (dictionarySection != null) {
+                for (int i = dictionarySection.readInt(); i > 0; i--) {
+                    int id = dictionarySection.readInt();
+                    byte[] dictionary = new byte[dictionarySection.readInt()];
+                    dictionarySection.readFully(dictionary);
+                    dictionaries.put(id, dictionary);
+                }
+            }
+
+            DataInputStream table = section(raf, sections, KFzImageFormat.SECTION_MODULE_TABLE);
+            if (table == null) {
+                throw new IOException("Missing module table in " + image);
+            }
+            List<ModuleWriterImpl> loaded = new ArrayList<>();
+            List<long[]> indexes = new ArrayList<>();
+            Map<Integer, ModuleWriterImpl> owners = new HashMap<>();
+            for (int i = table.readInt(); i > 0; i--) {
+                ModuleWriterImpl module = new ModuleWriterImpl(table.readUTF());
+                indexes.add(new long[]{table.readInt(), table.readLong(), table.readLong()});
+                module.dictionary = dictionaries.get(loaded.size());
+                owners.put(loaded.size(), module);
+                loaded.add(module);
+            }
+
+            // Old position -> new position of the content copied so far
+            Map<Long, Long> moved = new HashMap<>();
+            Map<Integer, Block> movedBlocks = new HashMap<>();
+            byte[] buffer = copy ? new byte[65536] : null;
+            for (int m = 0; m < loaded.size(); m++) {
+                ModuleWriterImpl module = loaded.get(m);
+                long[] index = indexes.get(m);
+                DataInputStream input = data(raf, index[1], index[2]);
+                for (int i = 0; i < index[0]; i++) {
+                    Res rs = module.newRes(input.readUTF(), 0);
+                    rs.pointer = input.readLong();
+                    rs.endPointer = input.readLong();
+                    int modifiers = input.readInt();
+                    if (checksums) {
+                        rs.size = input.readLong();
+                        rs.checksum = input.readInt();
+                    }
+                    rs.modifiers = modifiers & ~(-1 << KFzReader.DICTIONARY_MODULE_SHIFT);
+                    int compressType = rs.modifiers & KFzReader.COMPRESS_TYPE_BITS;
+                    int owner = modifiers >>> KFzReader.DICTIONARY_MODULE_SHIFT;
+                    if (compressType == KFzReader.COMPRESS_TYPE_DICT && owner != 0) {
+                        rs.dictionaryOwner = owners.get(owner - 1);
+                        if (rs.dictionaryOwner == null) {
+                            byte[] dictionary = dictionaries.get(owner - 1);
+                            if (dictionary == null) {
+                                throw new IOException("Missing dictionary " + (owner - 1) + " of " + module.name + '/' + rs.path + " in " + image);
+                            }
+                            // Of a module an earlier update removed
+                            rs.dictionaryOwner = new ModuleWriterImpl("#" + (owner - 1));
+                            rs.dictionaryOwner.dictionary = dictionary;
+                            owners.put(owner - 1, rs.dictionaryOwner);
+                        }
+                    }
+
+                    if (rs.path.equals(KFzImageFormat.MANIFEST)) {
+                        byte[] content;
+                        if (compressType == KFzReader.COMPRESS_TYPE_SOLID) {
+                            byte[] block = block(raf, image, imageBlocks, rs.pointer);
+                            int offset = (int) (rs.endPointer >>> 32);
+                            content = Arrays.copyOfRange(block, offset, offset + (int) rs.endPointer);
+                        } else {
+                            content = decompress(read(raf, rs.pointer, rs.endPointer), compressType, rs.dictionaryOwner.dictionary);
+                        }
+                        module.manifest = content;
+                        module.manifestModifiers = KFzReader.COMPRESS_TYPE_NONE;
+                    }
+
+                    if (copy && compressType == KFzReader.COMPRESS_TYPE_SOLID) {
+                        Block block = movedBlocks.get((int) rs.pointer);
+                        if (block == null) {
+                            if (rs.pointer < 0 || rs.pointer >= imageBlocks.size()) {
+                                throw new IOException("Missing solid block " + rs.pointer + " in " + image);
+                            }
+                            Block source = imageBlocks.get((int) rs.pointer);
+                            block = new Block(blocks.size());
+                            block.size = source.size;
+                            block.compressType = source.compressType;
+                            block.pointer = out.count();
+                            transfer(raf, source.pointer, source.endPointer, buffer);
+                            block.endPointer = out.count();
+                            blocks.add(block);
+                            movedBlocks.put((int) rs.pointer, block);
+                        }
+                        rs.pointer = block.id;
+                    } else if (copy && rs.pointer != 0) {
+                        long length = rs.endPointer - rs.pointer;
+                        // Empty content may start where other content does
+                        Long pointer = length == 0 ? null : moved.get(rs.pointer);
+                        if (pointer == null) {
+                            pointer = out.count();
+                            transfer(raf, rs.pointer, rs.endPointer, buffer);
+                            if (length != 0) moved.put(rs.pointer, pointer);
+                        }
+                        rs.pointer = pointer;
+                        rs.endPointer = pointer + length;
+                    }
+                    module.rsList.add(rs);
+                }
+            }
+            for (ModuleWriterImpl module : loaded) module.carriedOver = true;
+            modules.addAll(loaded);
+        }
     }
 
-    void complete(ModuleWriterImpl writer) throws Exception {
-        outOs.writeInt(writer.rsList.size());
-        for (Res rs : writer.rsList) {
-            outOs.writeUTF(rs.path);
-            outOs.writeLong(rs.pointer);
-            outOs.writeLong(rs.endPointer);
-            outOs.writeInt(rs.modifiers);
+    private static DataInputStream data(RandomAccessFile raf, long pointer, long size) throws IOException {
+        if (size < 0 || size > Integer.MAX_VALUE) throw new IOException("Bad section size " + size);
+        return new DataInputStream(new ByteArrayInputStream(read(raf, pointer, pointer + size)));
+    }
+
+    private static DataInputStream section(RandomAccessFile raf, Map<Integer, long[]> sections, int id) throws IOException {
+        long[] section = sections.get(id);
+        if (section == null) return null;
+        return data(raf, section[0], section[1]);
+    }
+
+    private static byte[] read(RandomAccessFile raf, long pointer, long endPointer) throws IOException {
+        if (pointer < 0 || endPointer < pointer || endPointer > raf.length()) {
+            throw new IOException("Bad content range [" + pointer + ", " + endPointer + ")");
         }
-        copyTo(moduleOs, outOs);
+        byte[] content = new byte[(int) (endPointer - pointer)];
+        raf.seek(pointer);
+        raf.readFully(content);
+        return content;
     }
 
-    private void copyTo(RandomAccessFile moduleOs, RandomAccessFile outOs) throws Exception {
-        long size = moduleOs.getFilePointer();
-        outOs.writeLong(size);
-        moduleOs.seek(0);
-        byte[] buffer = new byte[10240];
-        while (size > 0) {
-            int len = moduleOs.read(buffer);
-            if (len == -1) break;
-            if (len > size) len = (int) size;
-            outOs.write(buffer, 0, len);
-            size -= len;
+    /**
+     * The uncompressed solid block {@code id} of an image being loaded
+     */
+    private static byte[] block(RandomAccessFile raf, File image, List<Block> blocks, long id) throws IOException {
+        if (id < 0 || id >= blocks.size()) {
+            throw new IOException("Missing solid block " + id + " in " + image);
+        }
+        Block block = blocks.get((int) id);
+        byte[] content = decompress(read(raf, block.pointer, block.endPointer), block.compressType, null);
+        if (content.length != block.size) {
+            throw new IOException("Bad size of solid block " + id + " in " + image);
+        }
+        return content;
+    }
+
+    /**
+     * Copy {@code [pointer, endPointer)} of {@code raf} to the output
+     */
+    private void transfer(RandomAccessFile raf, long pointer, long endPointer, byte[] buffer) throws IOException {
+        if (pointer < 0 || endPointer < pointer || endPointer > raf.length()) {
+            throw new IOException("Bad content range [" + pointer + ", " + endPointer + ")");
+        }
+        raf.seek(pointer);
+        for (long remaining = endPointer - pointer; remaining > 0; ) {
+            int len = (int) Math.min(buffer.length, remaining);
+            raf.readFully(buffer, 0, len);
+            contentOs.write(buffer, 0, len);
+            remaining -= len;
         }
     }
 
     void complete() throws Exception {
-        outOs.seek(0);
-        outOs.writeInt(moduleCount);
-        outOs.close();
-        moduleOs.close();
-        moduleOut.delete();
+        drain();
+        // Dictionaries still used by resources of replaced or removed modules follow the module table
+        List<ModuleWriterImpl> dictionaryOwners = new ArrayList<>(modules);
+        for (int i = 0; i < modules.size(); i++) {
+            modules.get(i).dictionaryId = i;
+        }
+        for (ModuleWriterImpl module : modules) {
+            for (Res rs : module.rsList) {
+                ModuleWriterImpl owner = rs.dictionaryOwner;
+                if ((rs.modifiers & KFzReader.COMPRESS_TYPE_BITS) != KFzReader.COMPRESS_TYPE_DICT || owner.dictionaryId != -1) {
+                    continue;
+                }
+                if (owner.dictionary == null) {
+                    throw new IllegalStateException("Missing dictionary of " + owner.name + " used by " + module.name + '/' + rs.path);
+                }
+                owner.dictionaryId = dictionaryOwners.size();
+                dictionaryOwners.add(owner);
+            }
+        }
+
+        long indexStart = out.count();
+        for (ModuleWriterImpl module : modules) {
+            module.indexPointer = out.count();
+            for (Res rs : module.rsList) {
+                int modifiers = rs.modifiers;
+                if ((modifiers & KFzReader.COMPRESS_TYPE_BITS) == KFzReader.COMPRESS_TYPE_DICT && rs.dictionaryOwner != module) {
+                    modifiers |= (rs.dictionaryOwner.dictionaryId + 1) << KFzReader.DICTIONARY_MODULE_SHIFT;
+                }
+                dos.writeUTF(rs.path);
+                dos.writeLong(rs.pointer);
+                dos.writeLong(rs.endPointer);
+                dos.writeInt(modifiers);
+                dos.writeLong(rs.size);
+                dos.writeInt(rs.checksum);
+            }
+            module.indexSize = out.count() - module.indexPointer;
+        }
+
+        section(KFzImageFormat.SECTION_RESOURCE_INDEX, indexStart);
+
+        long tablePointer = out.count();
+        dos.writeInt(modules.size());
+        for (ModuleWriterImpl module : modules) {
+            dos.writeUTF(module.name);
+            dos.writeInt(module.rsList.size());
+            dos.writeLong(module.indexPointer);
+            dos.writeLong(module.indexSize);
+        }
+        section(KFzImageFormat.SECTION_MODULE_TABLE, tablePointer);
+
+        long pathIndexPointer = out.count();
+        // path -> {module, entry}, in shadowing order
+        Map<String, List<int[]>> paths = new LinkedHashMap<>();
+        int providerCount = 0;
+        for (int i = 0; i < modules.size(); i++) {
+            List<Res> rsList = modules.get(i).rsList;
+            for (int entry = 0; entry < rsList.size(); entry++) {
+                paths.computeIfAbsent(rsList.get(entry).path, k -> new ArrayList<>(1)).add(new int[]{i, entry});
+                providerCount++;
+            }
+        }
+        dos.writeInt(paths.size());
+        dos.writeInt(providerCount);
+        for (Map.Entry<String, List<int[]>> path : paths.entrySet()) {
+            dos.writeUTF(path.getKey());
+            dos.writeInt(path.getValue().size());
+            for (int[] provider : path.getValue()) {
+                dos.writeInt(provider[0]);
+                dos.writeInt(provider[1]);
+            }
+        }
+        section(KFzImageFormat.SECTION_PATH_INDEX, pathIndexPointer);
+
+        long packageTablePointer = out.count();
+        Map<KFzPackageAttributes, Integer> attributes = new LinkedHashMap<>();
+        Map<String, List<int[]>> packages = new LinkedHashMap<>();
+        for (int i = 0; i < modules.size(); i++) {
+            ModuleWriterImpl module = modules.get(i);
+            Manifest manifest = module.manifest();
+            Set<String> modulePackages = new HashSet<>();
+            for (Res rs : module.rsList) {
+                String pkg = KFzImageFormat.packageOf(rs.path);
+                if (pkg == null || !modulePackages.add(pkg)) continue;
+                int attr = -1;
+                if (manifest != null) {
+                    attr = attributes.computeIfAbsent(KFzPackageAttributes.resolve(manifest, pkg), k -> attributes.size());
+                }
+                packages.computeIfAbsent(pkg, k -> new ArrayList<>(1)).add(new int[]{i, attr});
+            }
+        }
+        dos.writeInt(attributes.size());
+        for (KFzPackageAttributes attr : attributes.keySet()) {
+            attr.write(dos);
+        }
+        dos.writeInt(packages.size());
+        for (Map.Entry<String, List<int[]>> pkg : packages.entrySet()) {
+            dos.writeUTF(pkg.getKey());
+            dos.writeInt(pkg.getValue().size());
+            for (int[] provider : pkg.getValue()) {
+                dos.writeInt(provider[0]);
+                dos.writeInt(provider[1]);
+            }
+        }
+        section(KFzImageFormat.SECTION_PACKAGE_TABLE, packageTablePointer);
+
+        long dictionaryPointer = out.count();
+        int dictionaries = 0;
+        for (ModuleWriterImpl module : dictionaryOwners) {
+            if (module.dictionary != null) dictionaries++;
+        }
+        if (dictionaries != 0) {
+            dos.writeInt(dictionaries);
+            for (int i = 0; i < dictionaryOwners.size(); i++) {
+                byte[] dictionary = dictionaryOwners.get(i).dictionary;
+                if (dictionary == null) continue;
+                dos.writeInt(i);
+                dos.writeInt(dictionary.length);
+                dos.write(dictionary);
+            }
+            section(KFzImageFormat.SECTION_DICTIONARY, dictionaryPointer);
+        }
+
+        if (!blocks.isEmpty()) {
+            long blockTablePointer = out.count();
+            dos.writeInt(blocks.size());
+            for (Block block : blocks) {
+                dos.writeLong(block.pointer);
+                dos.writeLong(block.endPointer);
+                dos.writeInt(block.size);
+                dos.writeInt(block.compressType);
+            }
+            section(KFzImageFormat.SECTION_BLOCK_TABLE, blockTablePointer);
+        }
+
+        writeDirectory(out, dos);
+        dos.close();
+
+        if (addChecksumFlag) {
+            // Only now that the indexes of the image all record them
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                raf.seek(6);
+                raf.writeShort(KFzImageFormat.FLAG_RESOURCE_CHECKSUMS);
+            }
+        }
+    }
+
+    /**
+     * Write the directory of {@link #sections} and the footer pointing at it
+     */
+    private void writeDirectory(CountingOutputStream out, DataOutputStream dos) throws IOException {
+        long directoryPointer = out.count();
+        dos.writeInt(sections.size());
+        for (long[] section : sections) {
+            dos.writeInt((int) section[0]);
+            dos.writeLong(section[1]);
+            dos.writeLong(section[2]);
+        }
+        long directorySize = out.count() - directoryPointer;
+
+        dos.writeLong(directoryPointer);
+        dos.writeInt((int) directorySize);
+        dos.writeInt(KFzImageFormat.MAGIC);
+    }
+
+    /**
+     * Record a section from {@code pointer} to the current position
+     */
+    private void section(int id, long pointer) {
+        sections.add(new long[]{id, pointer, out.count() - pointer});
     }
 }
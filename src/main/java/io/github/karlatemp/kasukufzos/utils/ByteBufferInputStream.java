@@ -0,0 +1,56 @@
+/*
+ * Copyright (c) 2018-2021 Karlatemp and contributors. All rights reserved.
+ *
+ * Use of this source code is governed by the MIT license that can be found via the following link.
+ *
+ * https://github.com/KasukuSakura/kasuku-fzos/blob/master/LICENSE
+ */
+
+package io.github.karlatemp.kasukufzos.utils;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+public class ByteBufferInputStream extends InputStream {
+    private final ByteBuffer buffer;
+
+    public ByteBufferInputStream(ByteBuffer buffer) {
+        this.buffer = buffer;
+    }
+
+    /**
+     * The backing buffer, positioned at the first unread byte.
+     */
+    public ByteBuffer buffer() {
+        return buffer;
+    }
+
+    @Override
+    public int read() {
+        if (!buffer.hasRemaining()) return -1;
+        return buffer.get() & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) {
+        if (len == 0) return 0;
+        int remaining = buffer.remaining();
+        if (remaining == 0) return -1;
+        if (len > remaining) len = remaining;
+        buffer.get(b, off, len);
+        return len;
+    }
+
+    @Override
+    public long skip(long n) {
+        if (n <= 0) return 0;
+        int skip = (int) Math.min(n, buffer.remaining());
+        buffer.position(buffer.position() + skip);
+        return skip;
+    }
+
+    @Override
+    public int available() {
+        return buffer.remaining();
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright (c) 2018-2021 Karlatemp and contributors. All rights reserved.
+ *
+ * Use of this source code is governed by the MIT license that can be found via the following link.
+ *
+ * https://github.com/KasukuSakura/kasuku-fzos/blob/master/LICENSE
+ */
+
+package io.github.karlatemp.kasukufzos.utils;
+
+import java.nio.ByteBuffer;
+import java.util.zip.Checksum;
+
+/**
+ * CRC-32C (Castagnoli), as {@code java.util.zip.CRC32C} of Java 9, computed slicing by 8 bytes.
+ */
+public class Crc32c implements Checksum {
+    private static final int POLYNOMIAL = 0x82F63B78; // Reversed 0x1EDC6F41
+    private static final int[][] TABLES = new int[8][256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int crc = i;
+            for (int bit = 0; bit < 8; bit++) {
+                crc = (crc >>> 1) ^ (POLYNOMIAL & -(crc & 1));
+            }
+            TABLES[0][i] = crc;
+        }
+        for (int i = 0; i < 256; i++) {
+            int crc = TABLES[0][i];
+            for (int t = 1; t < 8; t++) {
+                crc = TABLES[0][crc & 0xFF] ^ (crc >>> 8);
+                TABLES[t][i] = crc;
+            }
+        }
+    }
+
+    private int crc = 0xFFFFFFFF;
+
+    public static int of(byte[] b, int off, int len) {
+        Crc32c crc = new Crc32c();
+        crc.update(b, off, len);
+        return (int) crc.getValue();
+    }
+
+    @Override
+    public void update(int b) {
+        crc = TABLES[0][(crc ^ b) & 0xFF] ^ (crc >>> 8);
+    }
+
+    @Override
+    public void update(byte[] b, int off, int len) {
+        if (off < 0 || len < 0 || off > b.length - len) throw new ArrayIndexOutOfBoundsException();
+        int[] t0 = TABLES[0], t1 = TABLES[1], t2 = TABLES[2], t3 = TABLES[3],
+                t4 = TABLES[4], t5 = TABLES[5], t6 = TABLES[6], t7 = TABLES[7];
+        int crc = this.crc;
+        int end = off + len;
+        for (; off + 8 <= end; off += 8) {
+            int lo = crc ^ ((b[off] & 0xFF) | (b[off + 1] & 0xFF) << 8 | (b[off + 2] & 0xFF) << 16 | (b[off + 3] & 0xFF) << 24);
+            crc = t7[lo & 0xFF] ^ t6[(lo >>> 8) & 0xFF] ^ t5[(lo >>> 16) & 0xFF] ^ t4[lo >>> 24]
+                    ^ t3[b[off + 4] & 0xFF] ^ t2[b[off + 5] & 0xFF] ^ t1[b[off + 6] & 0xFF] ^ t0[b[off + 7] & 0xFF];
+        }
+        for (; off < end; off++) {
+            crc = t0[(crc ^ b[off]) & 0xFF] ^ (crc >>> 8);
+        }
+        this.crc = crc;
+    }
+
+    /**
+     * Update with the remaining bytes of {@code buffer}, which is left at its limit
+     */
+    public void update(ByteBuffer buffer) {
+        if (buffer.hasArray()) {
+            update(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            buffer.position(buffer.limit());
+            return;
+        }
+        byte[] chunk = new byte[Math.min(buffer.remaining(), 8192)];
+        while (buffer.hasRemaining()) {
+            int len = Math.min(chunk.length, buffer.remaining());
+            buffer.get(chunk, 0, len);
+            update(chunk, 0, len);
+        }
+    }
+
+    @Override
+    public long getValue() {
+        return ~crc & 0xFFFFFFFFL;
+    }
+
+    @Override
+    public void reset() {
+        crc = 0xFFFFFFFF;
+    }
+}
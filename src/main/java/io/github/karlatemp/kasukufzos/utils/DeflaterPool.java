@@ -0,0 +1,85 @@
+/*
+ * Copyright (c) 2018-2021 Karlatemp and contributors. All rights reserved.
+ *
+ * Use of this source code is governed by the MIT license that can be found via the following link.
+ *
+ * https://github.com/KasukuSakura/kasuku-fzos/blob/master/LICENSE
+ */
+
+package io.github.karlatemp.kasukufzos.utils;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.Deflater;
+
+/**
+ * A bounded pool of {@link Deflater}s for the compressor threads of the image writer.
+ * Deflaters released beyond the capacity are ended.
+ */
+public final class DeflaterPool {
+    /**
+     * Raw DEFLATE (nowrap)
+     */
+    public static final DeflaterPool RAW = new DeflaterPool(true, InflaterPool.DEFAULT_CAPACITY);
+    /**
+     * zlib wrapped DEFLATE
+     */
+    public static final DeflaterPool ZLIB = new DeflaterPool(false, InflaterPool.DEFAULT_CAPACITY);
+
+    private final boolean nowrap;
+    private final ArrayBlockingQueue<Deflater> idle;
+    private final LongAdder hits = new LongAdder(), misses = new LongAdder(), discards = new LongAdder();
+
+    public DeflaterPool(boolean nowrap, int capacity) {
+        this.nowrap = nowrap;
+        this.idle = new ArrayBlockingQueue<>(capacity);
+    }
+
+    /**
+     * @param level {@link Deflater#DEFAULT_COMPRESSION} or {@code 0-9}
+     */
+    public Deflater acquire(int level) {
+        Deflater deflater = idle.poll();
+        if (deflater != null) {
+            hits.increment();
+            // Applied before any input, the stream is the same as of a new deflater
+            deflater.setLevel(level);
+            return deflater;
+        }
+        misses.increment();
+        return new Deflater(level, nowrap);
+    }
+
+    /**
+     * Give back a deflater of {@link #acquire(int)}, which must not be used afterwards
+     */
+    public void release(Deflater deflater) {
+        deflater.reset();
+        if (!idle.offer(deflater)) {
+            discards.increment();
+            deflater.end();
+        }
+    }
+
+    public long hits() {
+        return hits.sum();
+    }
+
+    public long misses() {
+        return misses.sum();
+    }
+
+    public long discards() {
+        return discards.sum();
+    }
+
+    public int idle() {
+        return idle.size();
+    }
+
+    @Override
+    public String toString() {
+        return "DeflaterPool{nowrap=" + nowrap + ", hits=" + hits() + ", misses=" + misses()
+                + ", discards=" + discards() + ", idle=" + idle() + '}';
+    }
+}
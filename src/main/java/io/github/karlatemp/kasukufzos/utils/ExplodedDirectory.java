@@ -0,0 +1,157 @@
+/*
+ * Copyright (c) 2018-2021 Karlatemp and contributors. All rights reserved.
+ *
+ * Use of this source code is governed by the MIT license that can be found via the following link.
+ *
+ * https://github.com/KasukuSakura/kasuku-fzos/blob/master/LICENSE
+ */
+
+package io.github.karlatemp.kasukufzos.utils;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * A directory of class files and resources read like a jar of them, such as {@code build/classes/java/main}.
+ * <p>
+ * The tree is listed once on the common {@link ForkJoinPool}. Entries are sorted by name in each directory,
+ * a directory coming before its content, and may be read from multiple threads.
+ */
+public class ExplodedDirectory implements Closeable {
+    public static class Entry {
+        final String name;
+        final File file;
+        final long size;
+
+        Entry(String name, File file, long size) {
+            this.name = name;
+            this.file = file;
+            this.size = size;
+        }
+
+        /**
+         * Path relative to the root, ending with {@code '/'} for a directory
+         */
+        public String name() {
+            return name;
+        }
+
+        public boolean isDirectory() {
+            return file == null;
+        }
+
+        /**
+         * Size when the directory was listed
+         */
+        public long size() {
+            return size;
+        }
+    }
+
+    private final File root;
+    private final boolean mmap;
+    private final List<Entry> entries;
+    private final long length;
+
+    /**
+     * @param mmap read files by mapping them instead of reading them through a buffer
+     */
+    public ExplodedDirectory(File root, boolean mmap) throws IOException {
+        if (!root.isDirectory()) throw new IOException("Not a directory: " + root);
+        this.root = root;
+        this.mmap = mmap;
+        try {
+            this.entries = Collections.unmodifiableList(ForkJoinPool.commonPool().invoke(new Walk(root, "")));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        long length = 0;
+        for (Entry entry : entries) length += entry.size;
+        this.length = length;
+    }
+
+    static class Walk extends RecursiveTask<List<Entry>> {
+        private static final long serialVersionUID = 1L;
+
+        private final File directory;
+        private final String prefix;
+
+        Walk(File directory, String prefix) {
+            this.directory = directory;
+            this.prefix = prefix;
+        }
+
+        @Override
+        protected List<Entry> compute() {
+            File[] children = directory.listFiles();
+            if (children == null) throw new UncheckedIOException(new IOException("Cannot list " + directory));
+            Arrays.sort(children);
+            List<Object> results = new ArrayList<>(children.length);
+            for (File child : children) {
+                if (child.isDirectory()) {
+                    results.add(new Walk(child, prefix + child.getName() + '/').fork());
+                } else if (child.isFile()) {
+                    results.add(new Entry(prefix + child.getName(), child, child.length()));
+                }
+            }
+            List<Entry> entries = new ArrayList<>();
+            for (Object result : results) {
+                if (result instanceof Entry) {
+                    entries.add((Entry) result);
+                } else {
+                    Walk walk = (Walk) result;
+                    entries.add(new Entry(walk.prefix, null, 0));
+                    entries.addAll(walk.join());
+                }
+            }
+            return entries;
+        }
+    }
+
+    public File root() {
+        return root;
+    }
+
+    public List<Entry> entries() {
+        return entries;
+    }
+
+    /**
+     * Size of all files when the directory was listed
+     */
+    public long length() {
+        return length;
+    }
+
+    /**
+     * The content of {@code entry}, empty for a directory
+     */
+    public byte[] content(Entry entry) throws IOException {
+        if (entry.file == null) return new byte[0];
+        if (!mmap) return Files.readAllBytes(entry.file.toPath());
+        try (FileChannel channel = FileChannel.open(entry.file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE - 8) throw new IOException("File too large: " + entry.file);
+            MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            byte[] content = new byte[(int) size];
+            map.get(content);
+            return content;
+        }
+    }
+
+    @Override
+    public void close() {
+    }
+}
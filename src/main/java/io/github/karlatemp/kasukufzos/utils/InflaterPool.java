@@ -0,0 +1,93 @@
+/*
+ * Copyright (c) 2018-2021 Karlatemp and contributors. All rights reserved.
+ *
+ * Use of this source code is governed by the MIT license that can be found via the following link.
+ *
+ * https://github.com/KasukuSakura/kasuku-fzos/blob/master/LICENSE
+ */
+
+package io.github.karlatemp.kasukufzos.utils;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.Inflater;
+
+/**
+ * A bounded pool of {@link Inflater}s, so that reading a resource doesn't allocate a native zlib context.
+ * Inflaters released beyond the capacity are ended.
+ *
+ * @see PooledInflaterInputStream
+ */
+public final class InflaterPool {
+    static final int DEFAULT_CAPACITY = Math.max(4, Runtime.getRuntime().availableProcessors() * 2);
+
+    /**
+     * Raw DEFLATE (nowrap)
+     */
+    public static final InflaterPool RAW = new InflaterPool(true, DEFAULT_CAPACITY);
+    /**
+     * zlib wrapped DEFLATE
+     */
+    public static final InflaterPool ZLIB = new InflaterPool(false, DEFAULT_CAPACITY);
+
+    private final boolean nowrap;
+    private final ArrayBlockingQueue<Inflater> idle;
+    private final LongAdder hits = new LongAdder(), misses = new LongAdder(), discards = new LongAdder();
+
+    public InflaterPool(boolean nowrap, int capacity) {
+        this.nowrap = nowrap;
+        this.idle = new ArrayBlockingQueue<>(capacity);
+    }
+
+    public Inflater acquire() {
+        Inflater inflater = idle.poll();
+        if (inflater != null) {
+            hits.increment();
+            return inflater;
+        }
+        misses.increment();
+        return new Inflater(nowrap);
+    }
+
+    /**
+     * Give back an inflater of {@link #acquire()}, which must not be used afterwards
+     */
+    public void release(Inflater inflater) {
+        inflater.reset();
+        if (!idle.offer(inflater)) {
+            discards.increment();
+            inflater.end();
+        }
+    }
+
+    /**
+     * Acquisitions served by a pooled inflater
+     */
+    public long hits() {
+        return hits.sum();
+    }
+
+    /**
+     * Acquisitions that allocated an inflater
+     */
+    public long misses() {
+        return misses.sum();
+    }
+
+    /**
+     * Releases that ended the inflater, the pool being full
+     */
+    public long discards() {
+        return discards.sum();
+    }
+
+    public int idle() {
+        return idle.size();
+    }
+
+    @Override
+    public String toString() {
+        return "InflaterPool{nowrap=" + nowrap + ", hits=" + hits() + ", misses=" + misses()
+                + ", discards=" + discards() + ", idle=" + idle() + '}';
+    }
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright (c) 2018-2021 Karlatemp and contributors. All rights reserved.
+ *
+ * Use of this source code is governed by the MIT license that can be found via the following link.
+ *
+ * https://github.com/KasukuSakura/kasuku-fzos/blob/master/LICENSE
+ */
+
+package io.github.karlatemp.kasukufzos.utils;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * A pure Java codec of the LZ4 block format, framed as
+ * {@code int32 uncompressed-size} (big endian) followed by one LZ4 block.
+ * <p>
+ * Greedy single-probe matching: a lower ratio than deflate, but decoded several times faster.
+ */
+public class Lz4Block {
+    private static final int
+            MIN_MATCH = 4,
+            LAST_LITERALS = 5,
+            MF_LIMIT = 12,
+            MAX_DISTANCE = 0xFFFF,
+            SKIP_TRIGGER = 6;
+
+    public static int maxCompressedLength(int length) {
+        return 4 + length + length / 255 + 16;
+    }
+
+    public static byte[] compress(byte[] src) {
+        return compress(src, 0, src.length);
+    }
+
+    public static byte[] compress(byte[] src, int off, int len) {
+        byte[] dst = new byte[maxCompressedLength(len)];
+        dst[0] = (byte) (len >>> 24);
+        dst[1] = (byte) (len >>> 16);
+        dst[2] = (byte) (len >>> 8);
+        dst[3] = (byte) len;
+        int size = compressBlock(src, off, len, dst, 4);
+        return Arrays.copyOf(dst, size);
+    }
+
+    /**
+     * @return the uncompressed size told by the frame
+     */
+    public static int uncompressedSize(byte[] src, int off, int len) throws IOException {
+        if (len < 4) throw new IOException("Truncated LZ4 frame");
+        int size = ((src[off] & 0xFF) << 24) | ((src[off + 1] & 0xFF) << 16) | ((src[off + 2] & 0xFF) << 8) | (src[off + 3] & 0xFF);
+        if (size < 0) throw new IOException("Malformed LZ4 frame");
+        return size;
+    }
+
+    public static byte[] decompress(byte[] src) throws IOException {
+        return decompress(src, 0, src.length);
+    }
+
+    public static byte[] decompress(byte[] src, int off, int len) throws IOException {
+        byte[] dst = new byte[uncompressedSize(src, off, len)];
+        decompressBlock(src, off + 4, len - 4, dst, 0, dst.length);
+        return dst;
+    }
+
+    private static int readInt(byte[] b, int i) {
+        return (b[i] & 0xFF) | ((b[i + 1] & 0xFF) << 8) | ((b[i + 2] & 0xFF) << 16) | ((b[i + 3] & 0xFF) << 24);
+    }
+
+    private static int writeLength(byte[] dst, int dp, int length) {
+        while (length >= 255) {
+            dst[dp++] = (byte) 255;
+            length -= 255;
+        }
+        dst[dp++] = (byte) length;
+        return dp;
+    }
+
+    /**
+     * Compress into a raw LZ4 block
+     *
+     * @return the end of the block in {@code dst}
+     */
+    public static int compressBlock(byte[] src, int srcOff, int srcLen, byte[] dst, int dstOff) {
+        int srcEnd = srcOff + srcLen;
+        int anchor = srcOff;
+        int dp = dstOff;
+
+        if (srcLen > MF_LIMIT) {
+            // Small tables for small resources, most of them are classes of a few KB
+            int hashLog = Math.max(8, Math.min(16, 32 - Integer.numberOfLeadingZeros(srcLen)));
+            int[] table = new int[1 << hashLog];
+            Arrays.fill(table, -1);
+            int matchLimit = srcEnd - LAST_LITERALS;
+            int mfLimit = srcEnd - MF_LIMIT;
+
+            int ip = srcOff;
+            int attempts = 1 << SKIP_TRIGGER;
+            while (ip < mfLimit) {
+                int sequence = readInt(src, ip);
+                int h = (sequence * -1640531535) >>> (32 - hashLog);
+                int ref = table[h];
+                table[h] = ip;
+                if (ref == -1 || ip - ref > MAX_DISTANCE || readInt(src, ref) != sequence) {
+                    // Skip faster through incompressible data
+                    ip += attempts++ >>> SKIP_TRIGGER;
+                    continue;
+                }
+                attempts = 1 << SKIP_TRIGGER;
+
+                while (ip > anchor && ref > srcOff && src[ip - 1] == src[ref - 1]) {
+                    ip--;
+                    ref--;
+                }
+                int matchLength = MIN_MATCH;
+                while (ip + matchLength < matchLimit && src[ip + matchLength] == src[ref + matchLength]) {
+                    matchLength++;
+                }
+
+                int literalLength = ip - anchor;
+                int tokenPos = dp++;
+                int token;
+                if (literalLength >= 15) {
+                    token = 15 << 4;
+                    dp = writeLength(dst, dp, literalLength - 15);
+                } else {
+                    token = literalLength << 4;
+                }
+                System.arraycopy(src, anchor, dst, dp, literalLength);
+                dp += literalLength;
+
+                int offset = ip - ref;
+                dst[dp++] = (byte) offset;
+                dst[dp++] = (byte) (offset >>> 8);
+
+                int ml = matchLength - MIN_MATCH;
+                if (ml >= 15) {
+                    token |= 15;
+                    dp = writeLength(dst, dp, ml - 15);
+                } else {
+                    token |= ml;
+                }
+                dst[tokenPos] = (byte) token;
+
+                ip += matchLength;
+                anchor = ip;
+                if (ip - 2 < mfLimit) {
+                    table[(readInt(src, ip - 2) * -1640531535) >>> (32 - hashLog)] = ip - 2;
+                }
+            }
+        }
+
+        int literalLength = srcEnd - anchor;
+        if (literalLength >= 15) {
+            dst[dp++] = (byte) (15 << 4);
+            dp = writeLength(dst, dp, literalLength - 15);
+        } else {
+            dst[dp++] = (byte) (literalLength << 4);
+        }
+        System.arraycopy(src, anchor, dst, dp, literalLength);
+        return dp + literalLength;
+    }
+
+    /**
+     * Decompress a raw LZ4 block that decodes to exactly {@code dstLen} bytes
+     */
+    public static void decompressBlock(byte[] src, int srcOff, int srcLen, byte[] dst, int dstOff, int dstLen) throws IOException {
+        int sp = srcOff, srcEnd = srcOff + srcLen;
+        int dp = dstOff, dstEnd = dstOff + dstLen;
+        while (true) {
+            if (sp >= srcEnd) throw new IOException("Truncated LZ4 block");
+            int token = src[sp++] & 0xFF;
+
+            int literalLength = token >>> 4;
+            if (literalLength == 15) {
+                int b;
+                do {
+                    if (sp >= srcEnd) throw new IOException("Truncated LZ4 block");
+                    literalLength += b = src[sp++] & 0xFF;
+                } while (b == 255);
+            }
+            if (literalLength > srcEnd - sp || literalLength > dstEnd - dp) {
+                throw new IOException("Malformed LZ4 block");
+            }
+            System.arraycopy(src, sp, dst, dp, literalLength);
+            sp += literalLength;
+            dp += literalLength;
+            if (sp == srcEnd) break;
+
+            if (srcEnd - sp < 2) throw new IOException("Truncated LZ4 block");
+            int offset = (src[sp] & 0xFF) | ((src[sp + 1] & 0xFF) << 8);
+            sp += 2;
+            if (offset == 0 || offset > dp - dstOff) throw new IOException("Malformed LZ4 block");
+
+            int matchLength = token & 15;
+            if (matchLength == 15) {
+                int b;
+                do {
+                    if (sp >= srcEnd) throw new IOException("Truncated LZ4 block");
+                    matchLength += b = src[sp++] & 0xFF;
+                } while (b == 255);
+            }
+            matchLength += MIN_MATCH;
+            if (matchLength > dstEnd - dp) throw new IOException("Malformed LZ4 block");
+
+            int ref = dp - offset;
+            if (offset >= matchLength) {
+                System.arraycopy(dst, ref, dst, dp, matchLength);
+            } else {
+                // Overlapping match, repeats the last offset bytes
+                for (int copied = 0; copied < matchLength; copied += offset) {
+                    System.arraycopy(dst, ref + copied, dst, dp + copied, Math.min(offset, matchLength - copied));
+                }
+            }
+            dp += matchLength;
+        }
+        if (dp != dstEnd) throw new IOException("LZ4 block size mismatch");
+    }
+}
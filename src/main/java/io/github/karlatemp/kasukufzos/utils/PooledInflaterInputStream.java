@@ -0,0 +1,63 @@
+/*
+ * Copyright (c) 2018-2021 Karlatemp and contributors. All rights reserved.
+ *
+ * Use of this source code is governed by the MIT license that can be found via the following link.
+ *
+ * https://github.com/KasukuSakura/kasuku-fzos/blob/master/LICENSE
+ */
+
+package io.github.karlatemp.kasukufzos.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Inflates with an inflater of an {@link InflaterPool}, given back at the end of the data or on close,
+ * whichever comes first. Streams read to the end but never closed don't hold a zlib context.
+ */
+public class PooledInflaterInputStream extends InflaterInputStream {
+    private final InflaterPool pool;
+    private boolean released;
+    private boolean closed;
+
+    public PooledInflaterInputStream(InputStream in, InflaterPool pool) {
+        super(in, pool.acquire(), 512);
+        this.pool = pool;
+    }
+
+    private void release() {
+        if (released) return;
+        released = true;
+        pool.release(inf);
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        // The inflater may be in use by another stream now
+        if (released) {
+            if (closed) throw new IOException("Stream closed");
+            if (len == 0) return 0;
+            return -1;
+        }
+        int n = super.read(b, off, len);
+        if (n == -1) release();
+        return n;
+    }
+
+    @Override
+    public int available() throws IOException {
+        if (released) return 0;
+        return super.available();
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        try {
+            super.close();
+        } finally {
+            release();
+        }
+    }
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright (c) 2018-2021 Karlatemp and contributors. All rights reserved.
+ *
+ * Use of this source code is governed by the MIT license that can be found via the following link.
+ *
+ * https://github.com/KasukuSakura/kasuku-fzos/blob/master/LICENSE
+ */
+
+package io.github.karlatemp.kasukufzos.utils;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Inflates raw DEFLATE data without zlib header (nowrap), as stored in zip files.
+ * The inflater comes from {@link InflaterPool#RAW}.
+ */
+public class RawInflaterInputStream extends PooledInflaterInputStream {
+    private boolean eof;
+
+    public RawInflaterInputStream(InputStream in) {
+        super(in, InflaterPool.RAW);
+    }
+
+    /**
+     * @param dictionary the preset dictionary the data was deflated with
+     */
+    public RawInflaterInputStream(InputStream in, byte[] dictionary) {
+        this(in);
+        inf.setDictionary(dictionary);
+    }
+
+    @Override
+    protected void fill() throws IOException {
+        if (eof) throw new EOFException("Unexpected end of deflate data");
+        len = in.read(buf, 0, buf.length);
+        if (len == -1) {
+            // A nowrap inflater may need an extra byte after the end of the data
+            buf[0] = 0;
+            len = 1;
+            eof = true;
+        }
+        inf.setInput(buf, 0, len);
+    }
+}
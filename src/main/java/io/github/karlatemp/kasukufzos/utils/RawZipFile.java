@@ -0,0 +1,344 @@
+/*
+ * Copyright (c) 2018-2021 Karlatemp and contributors. All rights reserved.
+ *
+ * Use of this source code is governed by the MIT license that can be found via the following link.
+ *
+ * https://github.com/KasukuSakura/kasuku-fzos/blob/master/LICENSE
+ */
+
+package io.github.karlatemp.kasukufzos.utils;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.Checksum;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * A zip file read from its central directory, giving the entries' data as stored in the file.
+ * <p>
+ * Unlike {@link java.util.zip.ZipFile}, deflated entries can be copied without inflating them.
+ * Entries may be read from multiple threads.
+ */
+public class RawZipFile implements Closeable {
+    public static final int STORED = 0, DEFLATED = 8;
+
+    private static final int
+            LOC_SIG = 0x04034b50, LOC_HEADER = 30,
+            CEN_SIG = 0x02014b50, CEN_HEADER = 46,
+            END_SIG = 0x06054b50, END_HEADER = 22,
+            ZIP64_LOCATOR_SIG = 0x07064b50, ZIP64_LOCATOR = 20,
+            ZIP64_END_SIG = 0x06064b50,
+            ZIP64_EXTRA = 0x0001;
+
+    public static class Entry {
+        String name;
+        int flags;
+        int method;
+        int crc;
+        long compressedSize;
+        long size;
+        long localHeaderOffset;
+
+        public String name() {
+            return name;
+        }
+
+        /**
+         * {@link #STORED} or {@link #DEFLATED}, other methods are rejected by {@link #read(Entry)}
+         */
+        public int method() {
+            return method;
+        }
+
+        public int crc() {
+            return crc;
+        }
+
+        public long compressedSize() {
+            return compressedSize;
+        }
+
+        public long size() {
+            return size;
+        }
+    }
+
+    private final File file;
+    private final FileChannel channel;
+    private final List<Entry> entries;
+    /**
+     * The whole file once {@link #preload()}ed
+     */
+    private volatile ByteBuffer data;
+
+    public RawZipFile(File file) throws IOException {
+        this.file = file;
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            this.entries = Collections.unmodifiableList(readCentralDirectory());
+        } catch (Throwable throwable) {
+            try {
+                channel.close();
+            } catch (Throwable t2) {
+                throwable.addSuppressed(t2);
+            }
+            throw throwable;
+        }
+    }
+
+    /**
+     * Entries in the order of the central directory, the same as {@link java.util.zip.ZipFile#entries()}
+     */
+    public List<Entry> entries() {
+        return entries;
+    }
+
+    /**
+     * Read the whole file into memory, entries are read from there afterwards
+     */
+    public void preload() throws IOException {
+        long size = channel.size();
+        if (size > Integer.MAX_VALUE - 8) throw new ZipException("Zip file too large to preload: " + file);
+        data = readAt(0, (int) size);
+    }
+
+    /**
+     * Size of the file
+     */
+    public long length() throws IOException {
+        return channel.size();
+    }
+
+    private ByteBuffer readAt(long position, int size) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        ByteBuffer data = this.data;
+        if (data != null) {
+            if (position < 0 || position > data.capacity() - size) {
+                throw new EOFException("Unexpected end of " + file);
+            }
+            ByteBuffer slice = data.duplicate();
+            slice.position((int) position).limit((int) position + size);
+            buffer.put(slice);
+            buffer.flip();
+            return buffer;
+        }
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) == -1) {
+                throw new EOFException("Unexpected end of " + file);
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private List<Entry> readCentralDirectory() throws IOException {
+        long fileSize = channel.size();
+        if (fileSize < END_HEADER) throw new ZipException("Not a zip file: " + file);
+        // The end record is followed by a comment of up to 65535 bytes
+        int tailSize = (int) Math.min(fileSize, END_HEADER + 0xFFFF);
+        long tailPosition = fileSize - tailSize;
+        ByteBuffer tail = readAt(tailPosition, tailSize);
+        int end = -1;
+        for (int i = tailSize - END_HEADER; i >= 0; i--) {
+            if (tail.getInt(i) == END_SIG && i + END_HEADER + (tail.getShort(i + 20) & 0xFFFF) == tailSize) {
+                end = i;
+                break;
+            }
+        }
+        if (end == -1) throw new ZipException("End of central directory not found in " + file);
+
+        long count = tail.getShort(end + 10) & 0xFFFF;
+        long cenSize = tail.getInt(end + 12) & 0xFFFFFFFFL;
+        long cenOffset = tail.getInt(end + 16) & 0xFFFFFFFFL;
+        long endPosition = tailPosition + end;
+        if (endPosition >= ZIP64_LOCATOR) {
+            ByteBuffer locator = readAt(endPosition - ZIP64_LOCATOR, ZIP64_LOCATOR);
+            if (locator.getInt(0) == ZIP64_LOCATOR_SIG) {
+                ByteBuffer zip64End = readAt(locator.getLong(8), 56);
+                if (zip64End.getInt(0) != ZIP64_END_SIG) {
+                    throw new ZipException("Invalid zip64 end of central directory in " + file);
+                }
+                count = zip64End.getLong(32);
+                cenSize = zip64End.getLong(40);
+                cenOffset = zip64End.getLong(48);
+            }
+        }
+        if (cenSize > Integer.MAX_VALUE || count > Integer.MAX_VALUE) {
+            throw new ZipException("Central directory too large in " + file);
+        }
+
+        ByteBuffer cen = readAt(cenOffset, (int) cenSize);
+        List<Entry> entries = new ArrayList<>((int) count);
+        while (count-- > 0) {
+            int pos = cen.position();
+            if (cen.remaining() < CEN_HEADER || cen.getInt(pos) != CEN_SIG) {
+                throw new ZipException("Invalid central directory header in " + file);
+            }
+            Entry entry = new Entry();
+            entry.flags = cen.getShort(pos + 8) & 0xFFFF;
+            entry.method = cen.getShort(pos + 10) & 0xFFFF;
+            entry.crc = cen.getInt(pos + 16);
+            entry.compressedSize = cen.getInt(pos + 20) & 0xFFFFFFFFL;
+            entry.size = cen.getInt(pos + 24) & 0xFFFFFFFFL;
+            int nameLength = cen.getShort(pos + 28) & 0xFFFF;
+            int extraLength = cen.getShort(pos + 30) & 0xFFFF;
+            int commentLength = cen.getShort(pos + 32) & 0xFFFF;
+            entry.localHeaderOffset = cen.getInt(pos + 42) & 0xFFFFFFFFL;
+
+            byte[] name = new byte[nameLength];
+            cen.position(pos + CEN_HEADER);
+            cen.get(name);
+            entry.name = new String(name, StandardCharsets.UTF_8);
+            readZip64Extra(entry, cen, cen.position(), extraLength);
+            cen.position(pos + CEN_HEADER + nameLength + extraLength + commentLength);
+            entries.add(entry);
+        }
+        return entries;
+    }
+
+    private static void readZip64Extra(Entry entry, ByteBuffer cen, int pos, int length) {
+        int end = pos + length;
+        while (pos + 4 <= end) {
+            int id = cen.getShort(pos) & 0xFFFF;
+            int size = cen.getShort(pos + 2) & 0xFFFF;
+            pos += 4;
+            if (id == ZIP64_EXTRA) {
+                // Only the fields overflowed in the header are present, in this order
+                int off = pos;
+                if (entry.size == 0xFFFFFFFFL && off + 8 <= pos + size) {
+                    entry.size = cen.getLong(off);
+                    off += 8;
+                }
+                if (entry.compressedSize == 0xFFFFFFFFL && off + 8 <= pos + size) {
+                    entry.compressedSize = cen.getLong(off);
+                    off += 8;
+                }
+                if (entry.localHeaderOffset == 0xFFFFFFFFL && off + 8 <= pos + size) {
+                    entry.localHeaderOffset = cen.getLong(off);
+                }
+                return;
+            }
+            pos += size;
+        }
+    }
+
+    /**
+     * Read the data of {@code entry} as stored in the file, raw DEFLATE (nowrap) for {@link #DEFLATED} entries.
+     */
+    public byte[] read(Entry entry) throws IOException {
+        if ((entry.flags & 1) != 0) {
+            throw new ZipException("Encrypted entry " + entry.name + " in " + file);
+        }
+        if (entry.method != STORED && entry.method != DEFLATED) {
+            throw new ZipException("Unsupported compression method " + entry.method + " of " + entry.name + " in " + file);
+        }
+        if (entry.compressedSize > Integer.MAX_VALUE - 8) {
+            throw new ZipException("Entry " + entry.name + " too large in " + file);
+        }
+        ByteBuffer loc = readAt(entry.localHeaderOffset, LOC_HEADER);
+        if (loc.getInt(0) != LOC_SIG) {
+            throw new ZipException("Invalid local header of " + entry.name + " in " + file);
+        }
+        long dataOffset = entry.localHeaderOffset + LOC_HEADER
+                + (loc.getShort(26) & 0xFFFF)
+                + (loc.getShort(28) & 0xFFFF);
+        return readAt(dataOffset, (int) entry.compressedSize).array();
+    }
+
+    /**
+     * Check {@code data} read by {@link #read(Entry)} against the size and CRC-32 of {@code entry}.
+     * Deflated data is inflated into a scratch buffer that is thrown away.
+     */
+    public void verify(Entry entry, byte[] data) throws IOException {
+        check(entry, data, false, null);
+    }
+
+    /**
+     * {@link #verify(Entry, byte[])}, also passing the uncompressed content to {@code uncompressed} as it's checked
+     */
+    public void verify(Entry entry, byte[] data, Checksum uncompressed) throws IOException {
+        check(entry, data, false, uncompressed);
+    }
+
+    /**
+     * The uncompressed content of {@code entry}, checked against its size and CRC-32
+     */
+    public byte[] content(Entry entry) throws IOException {
+        return check(entry, read(entry), true, null);
+    }
+
+    private byte[] check(Entry entry, byte[] data, boolean keep, Checksum uncompressed) throws IOException {
+        CRC32 crc = new CRC32();
+        long size;
+        byte[] content = null;
+        if (entry.method == STORED) {
+            crc.update(data, 0, data.length);
+            if (uncompressed != null) uncompressed.update(data, 0, data.length);
+            size = data.length;
+            content = data;
+        } else {
+            if (keep) {
+                if (entry.size > Integer.MAX_VALUE - 8) {
+                    throw new ZipException("Entry " + entry.name + " too large in " + file);
+                }
+                content = new byte[(int) entry.size];
+            }
+            Inflater inflater = InflaterPool.RAW.acquire();
+            try {
+                inflater.setInput(data);
+                byte[] buffer = keep ? content : new byte[8192];
+                int offset = 0;
+                boolean dummyFed = false;
+                while (!inflater.finished()) {
+                    if (keep && offset == content.length) {
+                        // More data than the entry tells, fails the size check
+                        buffer = new byte[8192];
+                        keep = false;
+                        offset = 0;
+                    }
+                    int len = inflater.inflate(buffer, offset, buffer.length - offset);
+                    if (len == 0) {
+                        if (inflater.finished()) break;
+                        if (inflater.needsDictionary() || !inflater.needsInput() || dummyFed) {
+                            throw new ZipException("Truncated deflate data of " + entry.name + " in " + file);
+                        }
+                        // A nowrap inflater may need an extra byte after the end of the data
+                        inflater.setInput(new byte[1]);
+                        dummyFed = true;
+                        continue;
+                    }
+                    crc.update(buffer, offset, len);
+                    if (uncompressed != null) uncompressed.update(buffer, offset, len);
+                    if (keep) offset += len;
+                }
+                size = inflater.getBytesWritten();
+            } catch (DataFormatException e) {
+                throw new ZipException("Invalid deflate data of " + entry.name + " in " + file + ": " + e.getMessage());
+            } finally {
+                InflaterPool.RAW.release(inflater);
+            }
+        }
+        if (size != entry.size || (int) crc.getValue() != entry.crc) {
+            throw new ZipException("CRC mismatch of " + entry.name + " in " + file);
+        }
+        return content;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -9,6 +9,7 @@
 package io.github.karlatemp.kasukufzos.utils;
 
 import io.github.karlatemp.kasukufzos.image.reader.KFzReader;
+import io.github.karlatemp.kasukufzos.image.writer.CompressionPolicy;
 import io.github.karlatemp.kasukufzos.image.writer.KFzWriter;
 
 import java.io.ByteArrayOutputStream;
@@ -19,7 +20,6 @@ import java.nio.ByteBuffer;
 import java.util.Enumeration;
 import java.util.List;
 import java.util.Set;
-import java.util.zip.DeflaterOutputStream;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 
@@ -42,24 +42,49 @@ public class TransferKit {
             Enumeration<? extends ZipEntry> entries = zip.entries();
             while (entries.hasMoreElements()) {
                 ZipEntry entry = entries.nextElement();
-                long size = entry.getSize();
-                try (InputStream inputStream = zip.getInputStream(entry)) {
-                    moduleWriter.addResource(entry.getName(), size >= 1024 ? KFzReader.COMPRESS_TYPE_INF_ : 0, ew -> {
-                        OutputStream os;
-                        if (size >= 1024) {
-                            os = new DeflaterOutputStream(ew);
-                        } else {
-                            os = ew;
-                        }
-                        try (OutputStream owx = os) {
-                            transfer(inputStream, owx);
-                        }
+                // Inflated and compressed again on the workers of the writer
+                moduleWriter.addResource(entry.getName(), () -> readAndClose(zip.getInputStream(entry)));
+            }
+        });
+    }
+
+    /**
+     * Transfer a zip file, copying deflated entries as {@link KFzReader#COMPRESS_TYPE_DEFL}
+     * without inflating and compressing them again if the compression policy of the writer
+     * wants them deflated. The deflate level of the policy doesn't apply to copied entries.
+     * Every entry is checked against its CRC-32.
+     */
+    public static void transfer(RawZipFile zip, String moduleName, KFzWriter writer) throws Exception {
+        writer.writeModule(moduleName, moduleWriter -> {
+            CompressionPolicy policy = moduleWriter.compressionPolicy();
+            for (RawZipFile.Entry entry : zip.entries()) {
+                if (entry.method() == RawZipFile.DEFLATED
+                        && policy.method(moduleName, entry.name(), entry.size()).compressType() == KFzReader.COMPRESS_TYPE_DEFL
+                        && policy.accept(moduleName, entry.name(), entry.size(), entry.compressedSize())) {
+                    moduleWriter.addCompressedResource(entry.name(), KFzReader.COMPRESS_TYPE_DEFL, uncompressed -> {
+                        byte[] data = zip.read(entry);
+                        zip.verify(entry, data, uncompressed);
+                        return data;
                     });
+                } else {
+                    moduleWriter.addResource(entry.name(), () -> zip.content(entry));
                 }
             }
         });
     }
 
+    /**
+     * Transfer a directory of classes and resources as a module, compressed as the policy of the writer decides.
+     * Files are read on the compressor threads of the writer.
+     */
+    public static void transfer(ExplodedDirectory directory, String moduleName, KFzWriter writer) throws Exception {
+        writer.writeModule(moduleName, moduleWriter -> {
+            for (ExplodedDirectory.Entry entry : directory.entries()) {
+                moduleWriter.addResource(entry.name(), () -> directory.content(entry));
+            }
+        });
+    }
+
     public static void transfer(InputStream inputStream, OutputStream out) throws IOException {
         byte[] buffer = new byte[2048];
         int read;
@@ -68,6 +93,22 @@ public class TransferKit {
         }
     }
 
+    /**
+     * Read {@code inputStream} through the array of {@code buffer}, passing each chunk read to {@code chunks}
+     * as {@code buffer} flipped for reading
+     */
+    public static void transfer(InputStream inputStream, ByteBuffer buffer, ETask<ByteBuffer> chunks) throws Exception {
+        byte[] array = buffer.array();
+        int offset = buffer.arrayOffset();
+        int read;
+        while ((read = inputStream.read(array, offset, buffer.capacity())) >= 0) {
+            if (read == 0) continue;
+            buffer.clear();
+            buffer.limit(read);
+            chunks.run(buffer);
+        }
+    }
+
     public static ByteBuffer read(InputStream resource) throws IOException {
         class BOX extends ByteArrayOutputStream {
             ByteBuffer a() {
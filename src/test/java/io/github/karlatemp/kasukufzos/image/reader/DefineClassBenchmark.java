@@ -0,0 +1,110 @@
+/*
+ * Copyright (c) 2018-2021 Karlatemp and contributors. All rights reserved.
+ *
+ * Use of this source code is governed by the MIT license that can be found via the following link.
+ *
+ * https://github.com/KasukuSakura/kasuku-fzos/blob/master/LICENSE
+ */
+
+package io.github.karlatemp.kasukufzos.image.reader;
+
+import io.github.karlatemp.kasukufzos.image.writer.KFzWriter;
+import io.github.karlatemp.kasukufzos.utils.RawZipFile;
+import io.github.karlatemp.kasukufzos.utils.TransferKit;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Compares reading the classes of an image the way {@link KFzClassLoader#findClass(String)} did,
+ * through {@link KFzReaderImpl#resource(KFzReaderImpl.Entry)} and {@link TransferKit#read},
+ * with {@link KFzReaderImpl#content(KFzReaderImpl.Entry)}, then loads all of them.
+ * <p>
+ * Arguments: the jars to build the image of, the jars in {@code application/} by default.
+ */
+public class DefineClassBenchmark {
+    public static void main(String[] args) throws Exception {
+        List<File> jars = new ArrayList<>();
+        if (args.length == 0) {
+            //noinspection ConstantConditions
+            jars.addAll(Arrays.asList(new File("application").listFiles()));
+        } else {
+            for (String arg : args) jars.add(new File(arg));
+        }
+        File image = File.createTempFile("kfz-benchmark", ".bin");
+        image.deleteOnExit();
+        KFzWriter writer = KFzWriter.of(image);
+        for (File jar : jars) {
+            try (RawZipFile zip = new RawZipFile(jar)) {
+                TransferKit.transfer(zip, jar.getName(), writer);
+            }
+        }
+        writer.close();
+
+        KFzReaderImpl reader = (KFzReaderImpl) KFzReader.from(image);
+        List<KFzReaderImpl.Entry> classes = new ArrayList<>();
+        for (String module : reader.modules()) {
+            for (String path : reader.paths(module)) {
+                if (path.endsWith(".class")) classes.add(reader.rsEntry(module, path));
+            }
+        }
+        System.out.println(classes.size() + " classes");
+
+        for (int round = 0; round < 5; round++) {
+            boolean report = round == 4;
+
+            long start = System.nanoTime(), allocated = allocatedBytes();
+            long size = 0;
+            for (KFzReaderImpl.Entry entry : classes) {
+                size += TransferKit.read(reader.resource(entry)).remaining();
+            }
+            if (report) print("stream  ", start, allocated, classes.size(), size);
+
+            start = System.nanoTime();
+            allocated = allocatedBytes();
+            size = 0;
+            for (KFzReaderImpl.Entry entry : classes) {
+                ByteBuffer content = reader.content(entry);
+                size += content.remaining();
+            }
+            if (report) print("content ", start, allocated, classes.size(), size);
+        }
+
+        long start = System.nanoTime(), allocated = allocatedBytes();
+        KFzClassLoader loader = new KFzClassLoader(null, reader);
+        int failed = 0;
+        for (KFzReaderImpl.Entry entry : classes) {
+            String path = reader.name(entry);
+            try {
+                Class.forName(path.substring(0, path.length() - 6).replace('/', '.'), false, loader);
+            } catch (ClassNotFoundException | LinkageError ignored) {
+                failed++;
+            }
+        }
+        print("define  ", start, allocated, classes.size() - failed, -1);
+        reader.close();
+    }
+
+    /**
+     * Bytes allocated by this thread, {@code -1} if the VM doesn't tell
+     */
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    private static void print(String name, long start, long allocated, int classes, long size) {
+        double ms = (System.nanoTime() - start) / 1e6;
+        long now = allocatedBytes();
+        System.out.printf("%s %8.1f ms %6.2f us/class%s%s%n", name, ms, ms * 1e3 / classes,
+                allocated < 0 ? "" : String.format(" %8d bytes allocated/class", (now - allocated) / classes),
+                size < 0 ? "" : String.format(" %d bytes read", size));
+    }
+}
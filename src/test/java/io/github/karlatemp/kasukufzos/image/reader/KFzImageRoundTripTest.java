@@ -0,0 +1,369 @@
+/*
+ * Copyright (c) 2018-2021 Karlatemp and contributors. All rights reserved.
+ *
+ * Use of this source code is governed by the MIT license that can be found via the following link.
+ *
+ * https://github.com/KasukuSakura/kasuku-fzos/blob/master/LICENSE
+ */
+
+package io.github.karlatemp.kasukufzos.image.reader;
+
+import io.github.karlatemp.kasukufzos.image.KFzImageFormat;
+import io.github.karlatemp.kasukufzos.image.writer.CompressionPolicy;
+import io.github.karlatemp.kasukufzos.image.writer.KFzWriter;
+import io.github.karlatemp.kasukufzos.utils.RawZipFile;
+import io.github.karlatemp.kasukufzos.utils.TransferKit;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Writes v2 images with every compress type and reads them back, and reads a v1 image written by hand
+ */
+public class KFzImageRoundTripTest {
+    @TempDir
+    File temp;
+
+    static byte[] text(int seed, int length) {
+        Random random = new Random(seed);
+        String[] words = {"public ", "class ", "java/lang/Object", "<init>", "()V", "Code", "kasuku", "fzos ", "\n"};
+        StringBuilder builder = new StringBuilder(length + 32);
+        while (builder.length() < length) {
+            builder.append(words[random.nextInt(words.length)]);
+            if (random.nextInt(8) == 0) builder.append(random.nextInt());
+        }
+        return builder.substring(0, length).getBytes(StandardCharsets.UTF_8);
+    }
+
+    static byte[] deflate(byte[] data, boolean nowrap) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, nowrap);
+        try (DeflaterOutputStream os = new DeflaterOutputStream(out, deflater)) {
+            os.write(data);
+        } finally {
+            deflater.end();
+        }
+        return out.toByteArray();
+    }
+
+    static byte[] gzip(byte[] data) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (GZIPOutputStream os = new GZIPOutputStream(out)) {
+            os.write(data);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Resources of each module by path
+     */
+    static Map<String, Map<String, byte[]>> writeAllTypes(File image, int threads) throws Exception {
+        Map<String, Map<String, byte[]>> expected = new LinkedHashMap<>();
+        CompressionPolicy.Rules rules = new CompressionPolicy.Rules();
+        rules.modules.put("dict", CompressionPolicy.of(CompressionPolicy.Method.dictionary(6)));
+        rules.modules.put("solid", CompressionPolicy.of(CompressionPolicy.Method.solid(6)));
+        KFzWriter.Options options = new KFzWriter.Options();
+        options.threads = threads;
+        options.compressionPolicy = rules;
+        options.solidBlockSize = 16 * 1024;
+        KFzWriter writer = KFzWriter.of(image, options);
+
+        Map<String, byte[]> types = new LinkedHashMap<>();
+        writer.writeModule("types", module -> {
+            int[] modifiers = {
+                    KFzReader.COMPRESS_TYPE_NONE, KFzReader.COMPRESS_TYPE_GZIP, KFzReader.COMPRESS_TYPE_INF_,
+                    KFzReader.COMPRESS_TYPE_DEFL, KFzReader.COMPRESS_TYPE_LZ4_,
+            };
+            for (int modifier : modifiers) {
+                byte[] data = text(modifier, 20_000 + modifier);
+                types.put("type/" + modifier + ".txt", data);
+                module.addResource("type/" + modifier + ".txt", modifier, () -> data);
+            }
+            byte[] streamed = text(10, 3000);
+            types.put("streamed/gzip.bin", streamed);
+            module.addResource("streamed/gzip.bin", KFzReader.COMPRESS_TYPE_GZIP, os -> os.write(gzip(streamed)));
+            byte[] copied = text(11, 7000);
+            types.put("copied/deflated.bin", copied);
+            module.addCompressedResource("copied/deflated.bin", KFzReader.COMPRESS_TYPE_DEFL, () -> deflate(copied, true));
+            types.put("empty.txt", new byte[0]);
+            module.addResource("empty.txt", KFzReader.COMPRESS_TYPE_LZ4_, () -> new byte[0]);
+            types.put("META-INF/MANIFEST.MF", "Manifest-Version: 1.0\r\n\r\n".getBytes(StandardCharsets.UTF_8));
+            module.addResource("META-INF/MANIFEST.MF", () -> types.get("META-INF/MANIFEST.MF"));
+        });
+        expected.put("types", types);
+
+        Map<String, byte[]> dict = new LinkedHashMap<>();
+        writer.writeModule("dict", module -> {
+            for (int i = 0; i < 40; i++) {
+                byte[] data = text(100 + i, 300 + i * 7);
+                dict.put("org/example/C" + i + ".class", data);
+                module.addResource("org/example/C" + i + ".class", () -> data);
+            }
+        });
+        expected.put("dict", dict);
+
+        Map<String, byte[]> solid = new LinkedHashMap<>();
+        writer.writeModule("solid", module -> {
+            for (int i = 0; i < 30; i++) {
+                byte[] data = text(200 + i, 1000 + i * 97);
+                solid.put("org/solid/S" + i + ".class", data);
+                module.addResource("org/solid/S" + i + ".class", () -> data);
+            }
+        });
+        expected.put("solid", solid);
+        writer.close();
+        return expected;
+    }
+
+    static void assertImage(KFzReader reader, Map<String, Map<String, byte[]>> expected) throws Exception {
+        assertEquals(new ArrayList<>(expected.keySet()), reader.modules());
+        for (Map.Entry<String, Map<String, byte[]>> module : expected.entrySet()) {
+            assertEquals(new TreeSet<>(module.getValue().keySet()), new TreeSet<>(reader.paths(module.getKey())));
+            for (Map.Entry<String, byte[]> resource : module.getValue().entrySet()) {
+                String name = module.getKey() + '/' + resource.getKey();
+                byte[] data = resource.getValue();
+                assertArrayEquals(data, reader.readBytes(module.getKey(), resource.getKey()), name);
+                assertArrayEquals(data, TransferKit.readAndClose(reader.resource(module.getKey(), resource.getKey())), name);
+                assertEquals(data.length, reader.size(module.getKey(), resource.getKey()), name);
+                assertTrue(reader.verify(module.getKey(), resource.getKey()), name);
+            }
+        }
+    }
+
+    private static int compressType(KFzReaderImpl reader, String module, String path) {
+        KFzReaderImpl.Entry entry = reader.rsEntry(module, path);
+        return reader.index(entry.module).modifiers[entry.id] & KFzReader.COMPRESS_TYPE_BITS;
+    }
+
+    @Test
+    public void everyCompressType() throws Exception {
+        for (int threads : new int[]{1, 4}) {
+            File image = new File(temp, "types-" + threads + ".bin");
+            Map<String, Map<String, byte[]>> expected = writeAllTypes(image, threads);
+            for (KFzReader.Options.ReadMode mode : KFzReader.Options.ReadMode.values()) {
+                KFzReader.Options options = new KFzReader.Options();
+                options.readMode = mode;
+                options.verifyChecksums = true;
+                try (KFzReaderImpl reader = (KFzReaderImpl) KFzReader.from(image, options)) {
+                    assertImage(reader, expected);
+                    for (int type = 0; type <= KFzReader.COMPRESS_TYPE_LZ4_; type++) {
+                        assertEquals(type, compressType(reader, "types", "type/" + type + ".txt"));
+                    }
+                    assertEquals(KFzReader.COMPRESS_TYPE_GZIP, compressType(reader, "types", "streamed/gzip.bin"));
+                    assertEquals(KFzReader.COMPRESS_TYPE_DEFL, compressType(reader, "types", "copied/deflated.bin"));
+                    for (String path : expected.get("dict").keySet()) {
+                        KFzReaderImpl.Entry entry = reader.rsEntry("dict", path);
+                        int modifiers = reader.index(entry.module).modifiers[entry.id];
+                        assertEquals(KFzReader.COMPRESS_TYPE_DICT, modifiers & KFzReader.COMPRESS_TYPE_BITS, path);
+                        assertEquals(0, modifiers >>> KFzReader.DICTIONARY_MODULE_SHIFT, path);
+                    }
+                    for (String path : expected.get("solid").keySet()) {
+                        assertEquals(KFzReader.COMPRESS_TYPE_SOLID, compressType(reader, "solid", path), path);
+                    }
+                    assertArrayEquals(expected.get("dict").get("org/example/C3.class"),
+                            TransferKit.readAndClose(reader.getResource("dict/org/example/C3.class")));
+                    assertEquals(Collections.singletonList("solid"), reader.providers("org/solid/S0.class"));
+                }
+            }
+        }
+        assertArrayEquals(
+                java.nio.file.Files.readAllBytes(new File(temp, "types-1.bin").toPath()),
+                java.nio.file.Files.readAllBytes(new File(temp, "types-4.bin").toPath())
+        );
+    }
+
+    @Test
+    public void transfersZip() throws Exception {
+        File jar = new File(temp, "lib.jar");
+        Map<String, byte[]> entries = new LinkedHashMap<>();
+        entries.put("big/Deflated.class", text(20, 50_000));
+        entries.put("small/Small.class", text(21, 300));
+        entries.put("stored/Stored.class", text(22, 9000));
+        entries.put("empty.txt", new byte[0]);
+        try (java.util.zip.ZipOutputStream zos = new java.util.zip.ZipOutputStream(new FileOutputStream(jar))) {
+            for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+                java.util.zip.ZipEntry zipEntry = new java.util.zip.ZipEntry(entry.getKey());
+                if (entry.getKey().startsWith("stored/")) {
+                    java.util.zip.CRC32 crc = new java.util.zip.CRC32();
+                    crc.update(entry.getValue());
+                    zipEntry.setMethod(java.util.zip.ZipEntry.STORED);
+                    zipEntry.setSize(entry.getValue().length);
+                    zipEntry.setCrc(crc.getValue());
+                }
+                zos.putNextEntry(zipEntry);
+                zos.write(entry.getValue());
+                zos.closeEntry();
+            }
+        }
+
+        File image = new File(temp, "zip.bin");
+        KFzWriter writer = KFzWriter.of(image, new KFzWriter.Options());
+        try (RawZipFile zip = new RawZipFile(jar)) {
+            TransferKit.transfer(zip, "a", writer);
+            TransferKit.transfer(zip, "b", writer);
+        }
+        writer.close();
+        // Every non-empty resource of b shares the content of a, found by the digest computed while verifying
+        assertEquals(entries.size() - 1, writer.deduplicatedResources());
+
+        Map<String, Map<String, byte[]>> expected = new LinkedHashMap<>();
+        expected.put("a", entries);
+        expected.put("b", entries);
+        KFzReader.Options options = new KFzReader.Options();
+        options.verifyChecksums = true;
+        try (KFzReaderImpl reader = (KFzReaderImpl) KFzReader.from(image, options)) {
+            assertImage(reader, expected);
+            assertEquals(KFzReader.COMPRESS_TYPE_DEFL, compressType(reader, "a", "big/Deflated.class"));
+        }
+    }
+
+    @Test
+    public void corruptContentFailsChecksum() throws Exception {
+        File image = new File(temp, "corrupt.bin");
+        Map<String, Map<String, byte[]>> expected = writeAllTypes(image, 1);
+        long pointer;
+        try (KFzReaderImpl reader = (KFzReaderImpl) KFzReader.from(image)) {
+            KFzReaderImpl.Entry entry = reader.rsEntry("types", "type/0.txt");
+            pointer = reader.index(entry.module).pointers[entry.id];
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(image, "rw")) {
+            raf.seek(pointer + 10);
+            int b = raf.read();
+            raf.seek(pointer + 10);
+            raf.write(b ^ 1);
+        }
+        try (KFzReader reader = KFzReader.from(image)) {
+            assertThrows(IOException.class, () -> reader.verify("types", "type/0.txt"));
+            assertTrue(reader.verify("types", "type/1.txt"));
+        }
+        KFzReader.Options options = new KFzReader.Options();
+        options.verifyChecksums = true;
+        try (KFzReader reader = KFzReader.from(image, options)) {
+            assertThrows(IOException.class, () -> reader.readBytes("types", "type/0.txt"));
+            assertArrayEquals(expected.get("types").get("type/2.txt"), reader.readBytes("types", "type/2.txt"));
+        }
+    }
+
+    @Test
+    public void readsV1() throws Exception {
+        Map<String, Map<String, byte[]>> expected = new LinkedHashMap<>();
+        File image = new File(temp, "v1.bin");
+        try (DataOutputStream dos = new DataOutputStream(new FileOutputStream(image))) {
+            dos.writeInt(2);
+            for (int m = 0; m < 2; m++) {
+                String moduleName = "module" + m + ".jar";
+                Map<String, byte[]> resources = new LinkedHashMap<>();
+                ByteArrayOutputStream content = new ByteArrayOutputStream();
+                List<Object[]> infos = new ArrayList<>();
+                int[] modifiers = {KFzReader.COMPRESS_TYPE_NONE, KFzReader.COMPRESS_TYPE_GZIP, KFzReader.COMPRESS_TYPE_INF_};
+                for (int modifier : modifiers) {
+                    String path = "pkg" + m + "/R" + modifier + ".class";
+                    byte[] data = text(m * 10 + modifier, 5000);
+                    resources.put(path, data);
+                    byte[] stored = modifier == KFzReader.COMPRESS_TYPE_NONE ? data
+                            : modifier == KFzReader.COMPRESS_TYPE_GZIP ? gzip(data) : deflate(data, false);
+                    infos.add(new Object[]{path, (long) content.size(), (long) (content.size() + stored.length), modifier});
+                    content.write(stored);
+                }
+                dos.writeUTF(moduleName);
+                dos.writeInt(infos.size());
+                for (Object[] info : infos) {
+                    dos.writeUTF((String) info[0]);
+                    dos.writeLong((Long) info[1]);
+                    dos.writeLong((Long) info[2]);
+                    dos.writeInt((Integer) info[3]);
+                }
+                dos.writeLong(content.size());
+                content.writeTo(dos);
+                expected.put(moduleName, resources);
+            }
+        }
+        try (KFzReader reader = KFzReader.from(image)) {
+            for (Map.Entry<String, Map<String, byte[]>> module : expected.entrySet()) {
+                assertEquals(new TreeSet<>(module.getValue().keySet()), new TreeSet<>(reader.paths(module.getKey())));
+                for (Map.Entry<String, byte[]> resource : module.getValue().entrySet()) {
+                    assertArrayEquals(resource.getValue(), reader.readBytes(module.getKey(), resource.getKey()));
+                    assertArrayEquals(resource.getValue(), TransferKit.readAndClose(reader.getResource(module.getKey() + '/' + resource.getKey())));
+                }
+            }
+            assertEquals(new ArrayList<>(expected.keySet()), reader.modules());
+        }
+    }
+
+    /**
+     * {pointer, size} of section {@code id}, and the position of its size in the directory
+     */
+    private static long[] section(RandomAccessFile raf, int id) throws IOException {
+        raf.seek(raf.length() - KFzImageFormat.FOOTER_SIZE);
+        raf.seek(raf.readLong());
+        for (int count = raf.readInt(); count > 0; count--) {
+            int section = raf.readInt();
+            long pointer = raf.readLong();
+            long sizePointer = raf.getFilePointer();
+            long size = raf.readLong();
+            if (section == id) return new long[]{pointer, size, sizePointer};
+        }
+        throw new AssertionError("Section " + id + " not found");
+    }
+
+    private void assertCorruptPathIndex(File image) {
+        Throwable thrown = assertThrows(Exception.class, () -> {
+            try (KFzReader reader = KFzReader.from(image)) {
+                reader.providers("a/A.class");
+            }
+        });
+        while (thrown.getCause() != null) thrown = thrown.getCause();
+        assertTrue(thrown instanceof IOException, thrown.toString());
+        assertTrue(thrown.getMessage().contains("corrupt image"), thrown.getMessage());
+    }
+
+    @Test
+    public void corruptPathIndex() throws Exception {
+        File image = new File(temp, "path-index.bin");
+        KFzWriter writer = KFzWriter.of(image, new KFzWriter.Options());
+        writer.writeModule("m", module -> {
+            module.addResource("a/A.class", () -> text(1, 100));
+            module.addResource("a/B.class", () -> text(2, 100));
+        });
+        writer.close();
+        byte[] origin = java.nio.file.Files.readAllBytes(image.toPath());
+        try (KFzReader reader = KFzReader.from(image)) {
+            assertEquals(Collections.singletonList("m"), reader.providers("a/A.class"));
+        }
+
+        // {offset in the section, value}
+        int[][] corruptions = {
+                {0, Integer.MAX_VALUE}, // path count
+                {4, -1}, // provider count
+                {4, 1}, // fewer providers than listed
+                {8 + 2 + "a/A.class".length(), 3}, // provider count of the first path
+                {8 + 2 + "a/A.class".length() + 4, 1}, // module of the first provider
+                {8 + 2 + "a/A.class".length() + 8, 2}, // entry of the first provider
+        };
+        for (int[] corruption : corruptions) {
+            java.nio.file.Files.write(image.toPath(), origin);
+            try (RandomAccessFile raf = new RandomAccessFile(image, "rw")) {
+                long[] section = section(raf, KFzImageFormat.SECTION_PATH_INDEX);
+                raf.seek(section[0] + corruption[0]);
+                raf.writeInt(corruption[1]);
+            }
+            assertCorruptPathIndex(image);
+        }
+
+        java.nio.file.Files.write(image.toPath(), origin);
+        try (RandomAccessFile raf = new RandomAccessFile(image, "rw")) {
+            long[] section = section(raf, KFzImageFormat.SECTION_PATH_INDEX);
+            raf.seek(section[2]);
+            raf.writeLong(section[1] - 6);
+        }
+        assertCorruptPathIndex(image);
+    }
+}
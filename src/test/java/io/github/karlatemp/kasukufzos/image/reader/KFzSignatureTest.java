@@ -0,0 +1,430 @@
+/*
+ * Copyright (c) 2018-2021 Karlatemp and contributors. All rights reserved.
+ *
+ * Use of this source code is governed by the MIT license that can be found via the following link.
+ *
+ * https://github.com/KasukuSakura/kasuku-fzos/blob/master/LICENSE
+ */
+
+package io.github.karlatemp.kasukufzos.image.reader;
+
+import io.github.karlatemp.kasukufzos.image.KFzImageFormat;
+import io.github.karlatemp.kasukufzos.image.writer.CompressionPolicy;
+import io.github.karlatemp.kasukufzos.image.writer.KFzWriter;
+import io.github.karlatemp.kasukufzos.utils.RawZipFile;
+import io.github.karlatemp.kasukufzos.utils.TransferKit;
+import org.bouncycastle.asn1.*;
+import org.bouncycastle.asn1.cms.*;
+import org.bouncycastle.asn1.nist.NISTObjectIdentifiers;
+import org.bouncycastle.asn1.pkcs.PKCSObjectIdentifiers;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.asn1.x509.AlgorithmIdentifier;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.*;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.*;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.*;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Signed modules verified by each {@link KFzClassLoader.Options.SignAction}, the trust table and tampering with them
+ */
+public class KFzSignatureTest {
+    @TempDir
+    static File temp;
+    static File signedJar;
+    static X509Certificate certificate;
+
+    static final String DATA = "org/example/data.txt";
+    static final byte[] TABLE_KEY = "trust table key".getBytes(StandardCharsets.UTF_8);
+
+    /**
+     * Sign a jar as jarsigner does, with a PKCS #7 signature block without signed attributes
+     */
+    @BeforeAll
+    static void signJar() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        KeyPair keyPair = generator.generateKeyPair();
+        X500Name name = new X500Name("CN=kasuku-fzos test");
+        long now = System.currentTimeMillis();
+        certificate = new JcaX509CertificateConverter().getCertificate(new JcaX509v3CertificateBuilder(
+                name, BigInteger.ONE, new Date(now - 86400_000L), new Date(now + 86400_000L), name, keyPair.getPublic()
+        ).build(new JcaContentSignerBuilder("SHA256withRSA").build(keyPair.getPrivate())));
+
+        Map<String, byte[]> resources = new LinkedHashMap<>();
+        for (int i = 0; i < 8; i++) {
+            resources.put(i == 0 ? DATA : "org/example/data" + i + ".txt", ("Signed resource " + i + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+        MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
+        Base64.Encoder base64 = Base64.getEncoder();
+        StringBuilder manifest = new StringBuilder("Manifest-Version: 1.0\r\nCreated-By: test\r\n\r\n");
+        StringBuilder sections = new StringBuilder();
+        for (Map.Entry<String, byte[]> resource : resources.entrySet()) {
+            String section = "Name: " + resource.getKey() + "\r\nSHA-256-Digest: "
+                    + base64.encodeToString(sha256.digest(resource.getValue())) + "\r\n\r\n";
+            manifest.append(section);
+            sections.append("Name: ").append(resource.getKey()).append("\r\nSHA-256-Digest: ")
+                    .append(base64.encodeToString(sha256.digest(section.getBytes(StandardCharsets.UTF_8)))).append("\r\n\r\n");
+        }
+        byte[] manifestRaw = manifest.toString().getBytes(StandardCharsets.UTF_8);
+        byte[] sf = ("Signature-Version: 1.0\r\nSHA-256-Digest-Manifest: " + base64.encodeToString(sha256.digest(manifestRaw))
+                + "\r\nCreated-By: test\r\n\r\n" + sections).getBytes(StandardCharsets.UTF_8);
+
+        Signature signature = Signature.getInstance("SHA256withRSA");
+        signature.initSign(keyPair.getPrivate());
+        signature.update(sf);
+        AlgorithmIdentifier digest = new AlgorithmIdentifier(NISTObjectIdentifiers.id_sha256, DERNull.INSTANCE);
+        org.bouncycastle.asn1.x509.Certificate signer = org.bouncycastle.asn1.x509.Certificate.getInstance(certificate.getEncoded());
+        SignerInfo signerInfo = new SignerInfo(
+                new SignerIdentifier(new IssuerAndSerialNumber(signer.getIssuer(), signer.getSerialNumber().getValue())),
+                digest, (ASN1Set) null, new AlgorithmIdentifier(PKCSObjectIdentifiers.rsaEncryption, DERNull.INSTANCE),
+                new DEROctetString(signature.sign()), null
+        );
+        byte[] block = new ContentInfo(CMSObjectIdentifiers.signedData, new SignedData(
+                new DERSet(digest), new ContentInfo(CMSObjectIdentifiers.data, null),
+                new DERSet(signer), null, new DERSet(signerInfo)
+        )).getEncoded(ASN1Encoding.DER);
+
+        signedJar = new File(temp, "signed.jar");
+        try (ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(signedJar))) {
+            zos.putNextEntry(new ZipEntry(KFzImageFormat.MANIFEST));
+            zos.write(manifestRaw);
+            zos.putNextEntry(new ZipEntry("META-INF/TEST.SF"));
+            zos.write(sf);
+            zos.putNextEntry(new ZipEntry("META-INF/TEST.RSA"));
+            zos.write(block);
+            for (Map.Entry<String, byte[]> resource : resources.entrySet()) {
+                zos.putNextEntry(new ZipEntry(resource.getKey()));
+                zos.write(resource.getValue());
+            }
+        }
+    }
+
+    /**
+     * An image of the signed jar, stored so resources can be tampered with in place, and of an unsigned module
+     * without a manifest
+     */
+    static File image(String name, boolean trustTable) throws Exception {
+        File image = new File(temp, name);
+        KFzWriter.Options options = new KFzWriter.Options();
+        options.compressionPolicy = CompressionPolicy.of(CompressionPolicy.Method.STORE);
+        options.trustTableKey = trustTable ? TABLE_KEY : null;
+        KFzWriter writer = KFzWriter.of(image, options);
+        writer.writeModule("plain", module -> module.addResource("org/plain/data.txt", () -> "plain".getBytes(StandardCharsets.UTF_8)));
+        try (RawZipFile zip = new RawZipFile(signedJar)) {
+            TransferKit.transfer(zip, "signed.jar", writer);
+        }
+        writer.close();
+        return image;
+    }
+
+    static KFzClassLoader loader(File image, KFzClassLoader.Options.SignAction signAction) throws Exception {
+        return loader(image, signAction, TABLE_KEY);
+    }
+
+    static KFzClassLoader loader(File image, KFzClassLoader.Options.SignAction signAction, byte[] trustTableKey) throws Exception {
+        KFzClassLoader.Options options = new KFzClassLoader.Options();
+        options.signAction = signAction;
+        options.trustTableKey = trustTableKey;
+        options.publiclyModules = Collections.singleton("plain");
+        KFzReader reader = KFzReader.from(image);
+        try {
+            return new KFzClassLoader(null, reader, options);
+        } catch (Throwable throwable) {
+            reader.close();
+            throw throwable;
+        }
+    }
+
+    static Certificate[] certificates(KFzClassLoader loader, String module, String path) {
+        return loader.image.codeSource(loader.image.reader.rsEntry(module, path)).getCertificates();
+    }
+
+    static void tamper(File image, String module, String path) throws Exception {
+        long pointer;
+        try (KFzReaderImpl reader = (KFzReaderImpl) KFzReader.from(image)) {
+            KFzReaderImpl.Entry entry = reader.rsEntry(module, path);
+            pointer = reader.index(entry.module).pointers[entry.id];
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(image, "rw")) {
+            raf.seek(pointer);
+            int b = raf.read();
+            raf.seek(pointer);
+            raf.write(b ^ 0x20);
+        }
+    }
+
+    @Test
+    public void verifiesSignedModules() throws Exception {
+        File image = image("signed.bin", true);
+        for (KFzClassLoader.Options.SignAction signAction : new KFzClassLoader.Options.SignAction[]{
+                KFzClassLoader.Options.SignAction.THROW_ON_FAILURE,
+                KFzClassLoader.Options.SignAction.VERIFY_ON_LOAD,
+                KFzClassLoader.Options.SignAction.TRUST_TABLE,
+        }) {
+            KFzClassLoader loader = loader(image, signAction);
+            try {
+                assertArrayEquals(new Certificate[]{certificate}, certificates(loader, "signed.jar", DATA), signAction.name());
+                assertNull(certificates(loader, "signed.jar", KFzImageFormat.MANIFEST), signAction.name());
+                assertArrayEquals(new Certificate[]{loader.options.publiclyCertificate},
+                        certificates(loader, "plain", "org/plain/data.txt"), signAction.name());
+                assertEquals("Signed resource 0\n", new String(TransferKit.readAndClose(loader.getResourceAsStream(DATA)), StandardCharsets.UTF_8));
+            } finally {
+                loader.image.reader.close();
+            }
+        }
+    }
+
+    @Test
+    public void rejectsTamperedResource() throws Exception {
+        File image = image("tampered.bin", true);
+        tamper(image, "signed.jar", DATA);
+        assertThrows(IllegalStateException.class, () -> loader(image, KFzClassLoader.Options.SignAction.THROW_ON_FAILURE));
+        for (KFzClassLoader.Options.SignAction signAction : new KFzClassLoader.Options.SignAction[]{
+                KFzClassLoader.Options.SignAction.VERIFY_ON_LOAD,
+                KFzClassLoader.Options.SignAction.TRUST_TABLE,
+        }) {
+            KFzClassLoader loader = loader(image, signAction);
+            try {
+                assertThrows(SecurityException.class, () -> loader.getResourceAsStream(DATA), signAction.name());
+                assertNotNull(loader.getResourceAsStream("org/example/data1.txt"), signAction.name());
+            } finally {
+                loader.image.reader.close();
+            }
+        }
+        // The table isn't built from a tampered image
+        File table = new File(temp, "tampered-table.bin");
+        Files.copy(image("untampered.bin", false).toPath(), table.toPath());
+        tamper(table, "signed.jar", DATA);
+        assertThrows(IllegalStateException.class, () -> KFzTrustTable.build(table, TABLE_KEY));
+    }
+
+    /**
+     * {pointer, size} of the trust table section
+     */
+    static long[] trustTable(RandomAccessFile raf) throws IOException {
+        raf.seek(raf.length() - KFzImageFormat.FOOTER_SIZE);
+        raf.seek(raf.readLong());
+        for (int count = raf.readInt(); count > 0; count--) {
+            int id = raf.readInt();
+            long pointer = raf.readLong();
+            long size = raf.readLong();
+            if (id == KFzImageFormat.SECTION_TRUST_TABLE) return new long[]{pointer, size};
+        }
+        throw new AssertionError("No trust table");
+    }
+
+    /**
+     * Overwrite the int at {@code offset} of the trust table, then authenticate it again with {@code key}
+     */
+    static void forge(File image, int offset, int value, byte[] key) throws Exception {
+        byte[] table;
+        long[] section;
+        try (RandomAccessFile raf = new RandomAccessFile(image, "r")) {
+            section = trustTable(raf);
+            table = new byte[(int) section[1]];
+            raf.seek(section[0]);
+            raf.readFully(table);
+        }
+        table[offset] = (byte) (value >>> 24);
+        table[offset + 1] = (byte) (value >>> 16);
+        table[offset + 2] = (byte) (value >>> 8);
+        table[offset + 3] = (byte) value;
+
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(key, "HmacSHA256"));
+        mac.update(table, 0, table.length - 32);
+        try (KFzReaderImpl reader = (KFzReaderImpl) KFzReader.from(image)) {
+            DataInputStream input = new DataInputStream(new ByteArrayInputStream(table));
+            for (int i = input.readInt(); i > 0; i--) input.skipBytes(input.readInt());
+            ByteArrayOutputStream names = new ByteArrayOutputStream();
+            DataOutputStream dos = new DataOutputStream(names);
+            for (int i = input.readInt(); i > 0; i--) {
+                KFzReaderImpl.Module module = reader.modules[input.readInt()];
+                dos.writeUTF(module.name);
+                dos.writeInt(module.resourceCount);
+                for (int id = 0; id < module.resourceCount; id++) dos.writeUTF(reader.name(module, id));
+                for (int groups = input.readInt(); groups > 0; groups--) {
+                    input.skipBytes(4 * input.readInt());
+                    for (int entries = input.readInt(); entries > 0; entries--) {
+                        input.readInt();
+                        for (int digests = input.readUnsignedShort(); digests > 0; digests--) {
+                            input.readUTF();
+                            input.readUTF();
+                        }
+                    }
+                }
+            }
+            mac.update(names.toByteArray());
+        }
+        System.arraycopy(mac.doFinal(), 0, table, table.length - 32, 32);
+        try (RandomAccessFile raf = new RandomAccessFile(image, "rw")) {
+            raf.seek(section[0]);
+            raf.write(table);
+        }
+    }
+
+    @Test
+    public void rejectsForgedTrustTable() throws Exception {
+        File origin = image("table.bin", true);
+        int certificateLength = certificate.getEncoded().length;
+        // certificate-count, the certificate, module-count
+        int module = 4 + 4 + certificateLength + 4;
+        int firstGroupEntry;
+        try (KFzReaderImpl reader = (KFzReaderImpl) KFzReader.from(origin)) {
+            assertEquals(reader.rsEntry("signed.jar", DATA).module.ordinal, readInt(origin, module));
+            // module, group-count, certificate-count, one certificate, resource-count
+            firstGroupEntry = module + 4 + 4 + 4 + 4 + 4;
+        }
+        byte[] otherKey = "another key".getBytes(StandardCharsets.UTF_8);
+
+        File broken = new File(temp, "broken.bin");
+        Files.copy(origin.toPath(), broken.toPath());
+        try (RandomAccessFile raf = new RandomAccessFile(broken, "rw")) {
+            long[] section = trustTable(raf);
+            raf.seek(section[0] + section[1] - 1);
+            int b = raf.read();
+            raf.seek(section[0] + section[1] - 1);
+            raf.write(b ^ 1);
+        }
+        assertThrows(SecurityException.class, () -> loader(broken, KFzClassLoader.Options.SignAction.TRUST_TABLE));
+
+        // Built with another key
+        assertThrows(SecurityException.class, () -> loader(origin, KFzClassLoader.Options.SignAction.TRUST_TABLE, otherKey));
+
+        // Pointed at the unsigned module, authenticated without the key
+        File moved = new File(temp, "moved.bin");
+        Files.copy(origin.toPath(), moved.toPath());
+        forge(moved, module, 0, otherKey);
+        assertThrows(SecurityException.class, () -> loader(moved, KFzClassLoader.Options.SignAction.TRUST_TABLE));
+
+        // A resource the signature file doesn't name listed as signed
+        File unsigned = new File(temp, "unsigned.bin");
+        Files.copy(origin.toPath(), unsigned.toPath());
+        int manifest;
+        try (KFzReaderImpl reader = (KFzReaderImpl) KFzReader.from(origin)) {
+            manifest = reader.rsEntry("signed.jar", KFzImageFormat.MANIFEST).id;
+        }
+        forge(unsigned, firstGroupEntry, manifest, otherKey);
+        assertThrows(SecurityException.class, () -> loader(unsigned, KFzClassLoader.Options.SignAction.TRUST_TABLE));
+
+        // Without the key, verified as THROW_ON_FAILURE
+        loader(unsigned, KFzClassLoader.Options.SignAction.TRUST_TABLE, null).image.reader.close();
+        tamper(unsigned, "signed.jar", DATA);
+        assertThrows(IllegalStateException.class, () -> loader(unsigned, KFzClassLoader.Options.SignAction.TRUST_TABLE, null));
+    }
+
+    static final byte[] CACHE_KEY = "verification cache key".getBytes(StandardCharsets.UTF_8);
+
+    /**
+     * Load {@code image} with the verification cache, and tell if the cache was taken: it isn't written again then
+     */
+    static boolean loadCached(File image, File cache, KFzClassLoader.Options.SignAction signAction,
+                              Collection<String> publiclyModules) throws Exception {
+        //noinspection ResultOfMethodCallIgnored
+        cache.setLastModified(1000_000L);
+        KFzClassLoader.Options options = new KFzClassLoader.Options();
+        options.signAction = signAction;
+        options.publiclyModules = publiclyModules;
+        options.verificationCache = cache;
+        options.verificationCacheKey = CACHE_KEY;
+        KFzReader reader = KFzReader.from(image);
+        try {
+            KFzClassLoader loader = new KFzClassLoader(null, reader, options);
+            assertArrayEquals(new Certificate[]{certificate}, certificates(loader, "signed.jar", DATA));
+            assertNull(certificates(loader, "signed.jar", KFzImageFormat.MANIFEST));
+        } finally {
+            reader.close();
+        }
+        assertTrue(cache.isFile());
+        return cache.lastModified() == 1000_000L;
+    }
+
+    @Test
+    public void verificationCache() throws Exception {
+        File image = image("cached.bin", false);
+        File cache = new File(temp, "cached.bin.cache");
+        KFzClassLoader.Options.SignAction throwOnFailure = KFzClassLoader.Options.SignAction.THROW_ON_FAILURE;
+        assertFalse(loadCached(image, cache, throwOnFailure, null));
+        assertTrue(loadCached(image, cache, throwOnFailure, null));
+
+        // Edited, it doesn't authenticate
+        byte[] content = Files.readAllBytes(cache.toPath());
+        content[20] ^= 1;
+        Files.write(cache.toPath(), content);
+        assertFalse(loadCached(image, cache, throwOnFailure, null));
+        assertTrue(loadCached(image, cache, throwOnFailure, null));
+
+        // A certificate that doesn't parse in an authenticated cache
+        content = Files.readAllBytes(cache.toPath());
+        byte[] encoded = certificate.getEncoded();
+        int offset = indexOf(content, encoded);
+        assertTrue(offset > 0);
+        content[offset] = 0x31;
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(CACHE_KEY, "HmacSHA256"));
+        mac.update(content, 0, content.length - 32);
+        System.arraycopy(mac.doFinal(), 0, content, content.length - 32, 32);
+        Files.write(cache.toPath(), content);
+        assertFalse(loadCached(image, cache, throwOnFailure, null));
+
+        // Other sign actions and publicly modules
+        assertFalse(loadCached(image, cache, KFzClassLoader.Options.SignAction.CONTINUE_WHEN_ERROR, null));
+        assertTrue(loadCached(image, cache, KFzClassLoader.Options.SignAction.CONTINUE_WHEN_ERROR, null));
+        assertFalse(loadCached(image, cache, throwOnFailure, null));
+        assertFalse(loadCached(image, cache, throwOnFailure, Collections.singleton("plain")));
+        assertTrue(loadCached(image, cache, throwOnFailure, Collections.singleton("plain")));
+        assertFalse(loadCached(image, cache, throwOnFailure, null));
+
+        // Rewritten in place with another image, keeping its modification time
+        long lastModified = image.lastModified();
+        byte[] other = Files.readAllBytes(image("other.bin", true).toPath());
+        try (RandomAccessFile raf = new RandomAccessFile(image, "rw")) {
+            raf.write(other);
+            raf.setLength(other.length);
+        }
+        //noinspection ResultOfMethodCallIgnored
+        image.setLastModified(lastModified);
+        assertFalse(loadCached(image, cache, throwOnFailure, null));
+
+        // A resource overwritten with as many bytes, keeping the modification time, is verified again
+        tamper(image, "signed.jar", DATA);
+        //noinspection ResultOfMethodCallIgnored
+        image.setLastModified(lastModified);
+        assertThrows(IllegalStateException.class, () -> loadCached(image, cache, throwOnFailure, null));
+    }
+
+    private static int indexOf(byte[] content, byte[] part) {
+        search:
+        for (int i = 0; i + part.length <= content.length; i++) {
+            for (int j = 0; j < part.length; j++) {
+                if (content[i + j] != part[j]) continue search;
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    private static int readInt(File image, int offset) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(image, "r")) {
+            raf.seek(trustTable(raf)[0] + offset);
+            return raf.readInt();
+        }
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright (c) 2018-2021 Karlatemp and contributors. All rights reserved.
+ *
+ * Use of this source code is governed by the MIT license that can be found via the following link.
+ *
+ * https://github.com/KasukuSakura/kasuku-fzos/blob/master/LICENSE
+ */
+
+package io.github.karlatemp.kasukufzos.image.writer;
+
+import io.github.karlatemp.kasukufzos.image.reader.KFzReader;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * {@link KFzWriter#update(File)} and {@link KFzWriter#compact(File, File)}
+ */
+public class KFzWriterUpdateTest {
+    @TempDir
+    File temp;
+
+    static byte[] text(int seed, int length) {
+        Random random = new Random(seed);
+        String[] words = {"public ", "class ", "java/lang/Object", "<init>", "()V", "Code", "kasuku", "fzos ", "\n"};
+        StringBuilder builder = new StringBuilder(length + 32);
+        while (builder.length() < length) {
+            builder.append(words[random.nextInt(words.length)]);
+            if (random.nextInt(8) == 0) builder.append(random.nextInt());
+        }
+        return builder.substring(0, length).getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Resources of a module, small ones for the dictionary, large ones deflated, and a copy of another module's resource
+     */
+    static Map<String, byte[]> resources(int seed) {
+        Map<String, byte[]> resources = new LinkedHashMap<>();
+        for (int i = 0; i < 20; i++) {
+            resources.put("p" + seed + "/Small" + i + ".class", text(seed * 100 + i, 500 + i * 13));
+        }
+        for (int i = 0; i < 3; i++) {
+            resources.put("p" + seed + "/Large" + i + ".class", text(seed * 100 + 50 + i, 10_000 + i));
+        }
+        resources.put("shared.txt", text(7, 6000));
+        return resources;
+    }
+
+    static void write(KFzWriter writer, String module, Map<String, byte[]> resources) throws Exception {
+        writer.writeModule(module, moduleWriter -> {
+            for (Map.Entry<String, byte[]> resource : resources.entrySet()) {
+                moduleWriter.addResource(resource.getKey(), resource::getValue);
+            }
+        });
+    }
+
+    static void assertImage(File image, Map<String, Map<String, byte[]>> expected) throws Exception {
+        KFzReader.Options options = new KFzReader.Options();
+        options.verifyChecksums = true;
+        try (KFzReader reader = KFzReader.from(image, options)) {
+            assertEquals(new ArrayList<>(expected.keySet()), reader.modules());
+            for (Map.Entry<String, Map<String, byte[]>> module : expected.entrySet()) {
+                assertEquals(new TreeSet<>(module.getValue().keySet()), new TreeSet<>(reader.paths(module.getKey())));
+                for (Map.Entry<String, byte[]> resource : module.getValue().entrySet()) {
+                    String name = module.getKey() + '/' + resource.getKey();
+                    assertArrayEquals(resource.getValue(), reader.readBytes(module.getKey(), resource.getKey()), name);
+                    assertTrue(reader.verify(module.getKey(), resource.getKey()), name);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void duplicatedModule() throws Exception {
+        KFzWriter writer = KFzWriter.of(new File(temp, "duplicated.bin"));
+        write(writer, "a", resources(1));
+        IllegalStateException thrown = assertThrows(IllegalStateException.class, () -> write(writer, "a", resources(2)));
+        assertTrue(thrown.getMessage().contains("duplicated"), thrown.getMessage());
+        // Writing it again once removed is fine
+        assertTrue(writer.removeModule("a"));
+        write(writer, "a", resources(2));
+        writer.close();
+        assertImage(new File(temp, "duplicated.bin"), Collections.singletonMap("a", resources(2)));
+    }
+
+    @Test
+    public void updateAndCompact() throws Exception {
+        File image = new File(temp, "image.bin");
+        KFzWriter.Options options = new KFzWriter.Options();
+        options.threads = 2;
+        // Updates don't deduplicate against the content already in the image, keep the fresh build comparable
+        options.deduplicate = false;
+        KFzWriter writer = KFzWriter.of(image, options);
+        write(writer, "a", resources(1));
+        write(writer, "b", resources(2));
+        write(writer, "c", resources(3));
+        writer.close();
+        byte[] origin = Files.readAllBytes(image.toPath());
+
+        Map<String, Map<String, byte[]>> expected = new LinkedHashMap<>();
+        expected.put("a", resources(1));
+        expected.put("b", resources(4));
+        expected.put("d", resources(5));
+        KFzWriter update = KFzWriter.update(image, options);
+        write(update, "b", resources(4));
+        assertThrows(IllegalStateException.class, () -> write(update, "b", resources(6)));
+        assertTrue(update.removeModule("c"));
+        assertFalse(update.removeModule("missing"));
+        write(update, "d", resources(5));
+        update.close();
+
+        assertImage(image, expected);
+        try (KFzReader reader = KFzReader.from(image)) {
+            assertNull(reader.paths("c"));
+            assertTrue(reader.providers("p3/Small0.class").isEmpty());
+            assertTrue(reader.providers("p2/Small0.class").isEmpty());
+            assertEquals(Arrays.asList("a", "b", "d"), reader.providers("shared.txt"));
+        }
+
+        File compacted = new File(temp, "compacted.bin");
+        KFzWriter.compact(image, compacted);
+        assertImage(compacted, expected);
+        assertTrue(compacted.length() < image.length());
+
+        // No dead space left: compacting again changes nothing, and it's as large as building the modules afresh
+        File again = new File(temp, "again.bin");
+        KFzWriter.compact(compacted, again);
+        assertArrayEquals(Files.readAllBytes(compacted.toPath()), Files.readAllBytes(again.toPath()));
+        File fresh = new File(temp, "fresh.bin");
+        KFzWriter freshWriter = KFzWriter.of(fresh, options);
+        for (Map.Entry<String, Map<String, byte[]>> module : expected.entrySet()) {
+            write(freshWriter, module.getKey(), module.getValue());
+        }
+        freshWriter.close();
+        assertImage(fresh, expected);
+        assertEquals(fresh.length(), compacted.length());
+
+        // Truncating the updated image to its previous length restores it
+        try (RandomAccessFile raf = new RandomAccessFile(image, "rw")) {
+            raf.setLength(origin.length);
+        }
+        assertArrayEquals(origin, Files.readAllBytes(image.toPath()));
+        Map<String, Map<String, byte[]>> before = new LinkedHashMap<>();
+        before.put("a", resources(1));
+        before.put("b", resources(2));
+        before.put("c", resources(3));
+        assertImage(image, before);
+    }
+
+    @Test
+    public void failedUpdate() throws Exception {
+        File image = new File(temp, "failed.bin");
+        KFzWriter writer = KFzWriter.of(image);
+        write(writer, "a", resources(1));
+        writer.close();
+        byte[] origin = Files.readAllBytes(image.toPath());
+
+        KFzWriter update = KFzWriter.update(image);
+        write(update, "b", resources(2));
+        IllegalStateException failure = new IllegalStateException("failed");
+        assertSame(failure, assertThrows(IllegalStateException.class, () -> update.writeModule("c", module -> {
+            for (int i = 0; i < 10; i++) {
+                int seed = i;
+                module.addResource("Large" + i + ".class", () -> text(seed, 10_000));
+            }
+            throw failure;
+        })));
+        assertArrayEquals(origin, Files.readAllBytes(image.toPath()));
+        assertThrows(IllegalStateException.class, () -> write(update, "d", resources(3)));
+        update.close();
+        assertArrayEquals(origin, Files.readAllBytes(image.toPath()));
+
+        KFzWriter aborted = KFzWriter.update(image);
+        write(aborted, "b", resources(2));
+        aborted.abort();
+        assertArrayEquals(origin, Files.readAllBytes(image.toPath()));
+        assertImage(image, Collections.singletonMap("a", resources(1)));
+
+        // A new image is deleted
+        File fresh = new File(temp, "failed-fresh.bin");
+        KFzWriter freshWriter = KFzWriter.of(fresh);
+        assertThrows(IllegalStateException.class, () -> freshWriter.writeModule("a", module -> {
+            module.addResource("Large.class", () -> text(1, 10_000));
+            throw new IllegalStateException("failed");
+        }));
+        assertFalse(fresh.exists());
+    }
+}
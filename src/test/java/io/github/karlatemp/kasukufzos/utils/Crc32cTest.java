@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) 2018-2021 Karlatemp and contributors. All rights reserved.
+ *
+ * Use of this source code is governed by the MIT license that can be found via the following link.
+ *
+ * https://github.com/KasukuSakura/kasuku-fzos/blob/master/LICENSE
+ */
+
+package io.github.karlatemp.kasukufzos.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class Crc32cTest {
+    private static long crc(byte[] data) {
+        Crc32c crc = new Crc32c();
+        crc.update(data, 0, data.length);
+        return crc.getValue();
+    }
+
+    @Test
+    public void knownVectors() {
+        // RFC 3720, B.4
+        assertEquals(0xE3069283L, crc("123456789".getBytes(StandardCharsets.US_ASCII)));
+        assertEquals(0x8A9136AAL, crc(new byte[32]));
+        byte[] ones = new byte[32];
+        Arrays.fill(ones, (byte) 0xFF);
+        assertEquals(0x62A8AB43L, crc(ones));
+        byte[] ascending = new byte[32];
+        byte[] descending = new byte[32];
+        for (int i = 0; i < 32; i++) {
+            ascending[i] = (byte) i;
+            descending[i] = (byte) (31 - i);
+        }
+        assertEquals(0x46DD794EL, crc(ascending));
+        assertEquals(0x113FDB5CL, crc(descending));
+        assertEquals(0L, crc(new byte[0]));
+    }
+
+    @Test
+    public void chunksAndBuffers() {
+        byte[] data = new byte[100_003];
+        new Random(3).nextBytes(data);
+        long expected = crc(data);
+
+        Random random = new Random(5);
+        Crc32c chunks = new Crc32c();
+        for (int off = 0; off < data.length; ) {
+            int len = Math.min(random.nextInt(37), data.length - off);
+            if (len % 5 == 0 && len != 0) {
+                chunks.update(data[off]);
+                len = 1;
+            } else {
+                chunks.update(data, off, len);
+            }
+            off += len;
+        }
+        assertEquals(expected, chunks.getValue());
+
+        Crc32c heap = new Crc32c();
+        ByteBuffer buffer = ByteBuffer.wrap(data, 1, data.length - 1).slice();
+        heap.update(data[0]);
+        heap.update(buffer);
+        assertEquals(expected, heap.getValue());
+        assertEquals(buffer.limit(), buffer.position());
+
+        Crc32c direct = new Crc32c();
+        ByteBuffer directBuffer = ByteBuffer.allocateDirect(data.length);
+        directBuffer.put(data).flip();
+        direct.update(directBuffer);
+        assertEquals(expected, direct.getValue());
+
+        direct.reset();
+        assertEquals(0xE3069283L, crc("123456789".getBytes(StandardCharsets.US_ASCII)));
+        assertEquals(Crc32c.of(data, 0, data.length), (int) expected);
+    }
+}
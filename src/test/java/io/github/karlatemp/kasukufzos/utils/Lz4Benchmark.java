@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2018-2021 Karlatemp and contributors. All rights reserved.
+ *
+ * Use of this source code is governed by the MIT license that can be found via the following link.
+ *
+ * https://github.com/KasukuSakura/kasuku-fzos/blob/master/LICENSE
+ */
+
+package io.github.karlatemp.kasukufzos.utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Compares COMPRESS_TYPE_INF_ and COMPRESS_TYPE_LZ4_ on the class files of the given jars,
+ * or of the jars in {@code application/} like {@code UsageExample}.
+ */
+public class Lz4Benchmark {
+    public static void main(String[] args) throws Exception {
+        List<File> jars = new ArrayList<>();
+        if (args.length == 0) {
+            //noinspection ConstantConditions
+            jars.addAll(Arrays.asList(new File("application").listFiles()));
+        } else {
+            for (String arg : args) jars.add(new File(arg));
+        }
+        List<byte[]> classes = new ArrayList<>();
+        long total = 0;
+        for (File jar : jars) {
+            try (ZipFile zip = new ZipFile(jar)) {
+                Enumeration<? extends ZipEntry> entries = zip.entries();
+                while (entries.hasMoreElements()) {
+                    ZipEntry entry = entries.nextElement();
+                    if (!entry.getName().endsWith(".class")) continue;
+                    byte[] data = TransferKit.readAndClose(zip.getInputStream(entry));
+                    classes.add(data);
+                    total += data.length;
+                }
+            }
+        }
+        System.out.println(classes.size() + " classes, " + total + " bytes");
+
+        byte[][] inf = new byte[classes.size()][];
+        byte[][] lz4 = new byte[classes.size()][];
+        for (int round = 0; round < 5; round++) {
+            boolean report = round == 4;
+
+            long start = System.nanoTime();
+            long size = 0;
+            for (int i = 0; i < inf.length; i++) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                try (OutputStream os = new DeflaterOutputStream(out)) {
+                    os.write(classes.get(i));
+                }
+                inf[i] = out.toByteArray();
+                size += inf[i].length;
+            }
+            if (report) print("INF_ compress  ", start, total, size);
+
+            start = System.nanoTime();
+            size = 0;
+            for (int i = 0; i < lz4.length; i++) {
+                lz4[i] = Lz4Block.compress(classes.get(i));
+                size += lz4[i].length;
+            }
+            if (report) print("LZ4_ compress  ", start, total, size);
+
+            // Decompress the way KFzReaderImpl.resource does, into a buffer sized for defineClass
+            start = System.nanoTime();
+            for (int i = 0; i < inf.length; i++) {
+                try (InputStream is = new InflaterInputStream(new ByteArrayInputStream(inf[i]))) {
+                    TransferKit.read(is);
+                }
+            }
+            if (report) print("INF_ decompress", start, total, -1);
+
+            start = System.nanoTime();
+            for (int i = 0; i < lz4.length; i++) {
+                byte[] data = Lz4Block.decompress(lz4[i]);
+                if (data.length != classes.get(i).length) throw new AssertionError();
+            }
+            if (report) print("LZ4_ decompress", start, total, -1);
+        }
+        for (int i = 0; i < lz4.length; i++) {
+            if (!Arrays.equals(Lz4Block.decompress(lz4[i]), classes.get(i))) {
+                throw new AssertionError("LZ4 round trip failed at class " + i);
+            }
+        }
+    }
+
+    private static void print(String name, long start, long total, long size) {
+        double ms = (System.nanoTime() - start) / 1e6;
+        System.out.printf("%s %8.1f ms %8.1f MB/s%s%n", name, ms, total / 1e3 / ms,
+                size < 0 ? "" : String.format(" ratio %.3f", size / (double) total));
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (c) 2018-2021 Karlatemp and contributors. All rights reserved.
+ *
+ * Use of this source code is governed by the MIT license that can be found via the following link.
+ *
+ * https://github.com/KasukuSakura/kasuku-fzos/blob/master/LICENSE
+ */
+
+package io.github.karlatemp.kasukufzos.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class Lz4BlockTest {
+    private static void assertRoundTrip(byte[] data) throws IOException {
+        byte[] compressed = Lz4Block.compress(data);
+        assertTrue(compressed.length <= Lz4Block.maxCompressedLength(data.length));
+        assertEquals(data.length, Lz4Block.uncompressedSize(compressed, 0, compressed.length));
+        assertArrayEquals(data, Lz4Block.decompress(compressed));
+    }
+
+    @Test
+    public void edgeCases() throws IOException {
+        for (int length = 0; length <= 32; length++) {
+            byte[] data = new byte[length];
+            assertRoundTrip(data);
+            for (int i = 0; i < length; i++) data[i] = (byte) i;
+            assertRoundTrip(data);
+        }
+        assertRoundTrip(new byte[1 << 20]);
+        byte[] ff = new byte[70_000];
+        Arrays.fill(ff, (byte) 0xFF);
+        assertRoundTrip(ff);
+    }
+
+    @Test
+    public void random() throws IOException {
+        Random random = new Random(0x4B465A49L);
+        for (int round = 0; round < 200; round++) {
+            byte[] data = new byte[random.nextInt(round < 100 ? 512 : 300_000)];
+            random.nextBytes(data);
+            assertRoundTrip(data);
+        }
+    }
+
+    @Test
+    public void repetitive() throws IOException {
+        Random random = new Random(42);
+        byte[] words = "class method field java/lang/Object <init> ()V Code LineNumberTable ".getBytes(StandardCharsets.UTF_8);
+        for (int round = 0; round < 50; round++) {
+            byte[] data = new byte[random.nextInt(200_000)];
+            for (int i = 0; i < data.length; i++) {
+                data[i] = random.nextInt(16) == 0 ? (byte) random.nextInt() : words[i % words.length];
+            }
+            assertRoundTrip(data);
+        }
+        // Matches longer than 15 and farther than 65535 bytes, needing extra length bytes and a new match
+        byte[] data = new byte[200_000];
+        new Random(7).nextBytes(data);
+        System.arraycopy(data, 0, data, 100_000, 1000);
+        System.arraycopy(data, 50_000, data, 60_000, 5000);
+        assertRoundTrip(data);
+    }
+
+    @Test
+    public void offsets() throws IOException {
+        byte[] data = new byte[10_000];
+        new Random(1).nextBytes(data);
+        Arrays.fill(data, 2000, 6000, (byte) 'a');
+        byte[] compressed = Lz4Block.compress(data, 1000, 8000);
+        assertArrayEquals(Arrays.copyOfRange(data, 1000, 9000), Lz4Block.decompress(compressed));
+
+        byte[] padded = new byte[compressed.length + 20];
+        System.arraycopy(compressed, 0, padded, 7, compressed.length);
+        assertArrayEquals(Arrays.copyOfRange(data, 1000, 9000), Lz4Block.decompress(padded, 7, compressed.length));
+    }
+
+    @Test
+    public void malformed() {
+        byte[] data = new byte[5000];
+        Arrays.fill(data, (byte) 'x');
+        byte[] compressed = Lz4Block.compress(data);
+        assertThrows(IOException.class, () -> Lz4Block.decompress(new byte[3]));
+        assertThrows(IOException.class, () -> Lz4Block.decompress(Arrays.copyOf(compressed, compressed.length - 1)));
+        byte[] larger = compressed.clone();
+        larger[3]++;
+        assertThrows(IOException.class, () -> Lz4Block.decompress(larger));
+        byte[] negative = compressed.clone();
+        negative[0] = (byte) 0x80;
+        assertThrows(IOException.class, () -> Lz4Block.decompress(negative));
+    }
+}